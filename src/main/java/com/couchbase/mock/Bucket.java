@@ -18,15 +18,19 @@ package com.couchbase.mock;
 import com.couchbase.mock.http.BucketAdminServer;
 import com.couchbase.mock.http.capi.CAPIServer;
 import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
 import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.ServerStats;
 import com.couchbase.mock.memcached.Storage;
 import com.couchbase.mock.memcached.VBucketInfo;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -60,6 +64,8 @@ public abstract class Bucket {
     protected final MemcachedServer servers[];
     protected final int numVBuckets;
     protected final int numReplicas;
+    /** The memory each node may use for the items of the bucket */
+    protected final long ramQuota;
     protected final String poolName = "default";
     protected final String name;
     protected final CouchbaseMock cluster;
@@ -83,6 +89,23 @@ public abstract class Bucket {
         return servers;
     }
 
+    /**
+     * Get the traffic counters of the bucket as a whole
+     * @return the sum of the counters of all of its servers
+     */
+    public Map<ServerStats.Counter, Long> getTrafficStats() {
+        Map<ServerStats.Counter, Long> total = new EnumMap<ServerStats.Counter, Long>(ServerStats.Counter.class);
+        for (ServerStats.Counter counter : ServerStats.Counter.values()) {
+            total.put(counter, 0L);
+        }
+        for (MemcachedServer server : servers) {
+            for (Map.Entry<ServerStats.Counter, Long> entry : server.getTrafficStats().getAll().entrySet()) {
+                total.put(entry.getKey(), total.get(entry.getKey()) + entry.getValue());
+            }
+        }
+        return total;
+    }
+
     private Iterator<Item> getMasterItemsIterator(final Storage.StorageType type) {
         return new Iterator<Item>() {
             private int curIndex = -1;
@@ -146,6 +169,15 @@ public abstract class Bucket {
         return -1;
     }
 
+    /**
+     * Get the vBucket a key maps to
+     * @param ks the key. Its vBucket is ignored
+     * @return the vBucket, or -1 if the bucket has no vBuckets
+     */
+    public short getVbIndexForKey(KeySpec ks) {
+        return -1;
+    }
+
     public Bucket(CouchbaseMock cluster, BucketConfiguration config) throws IOException {
         if (config.numVBuckets < 0) {
             throw new IllegalArgumentException("Vbucket count must be > 0");
@@ -160,6 +192,7 @@ public abstract class Bucket {
         name = config.name;
         numVBuckets = config.numVBuckets;
         numReplicas = config.numReplicas;
+        ramQuota = config.ramQuota;
         password = config.password;
 
         vbInfo = new VBucketInfo[numVBuckets];
@@ -176,10 +209,14 @@ public abstract class Bucket {
             throw new FileNotFoundException("I don't know about this type...");
         }
         for (int ii = 0; ii < servers.length; ii++) {
+            File dataDir = null;
+            if (config.dataPath != null) {
+                dataDir = new File(new File(config.dataPath, name), "node-" + ii);
+            }
             servers[ii] = new MemcachedServer(this,
                     config.hostname,
                     (config.bucketStartPort == 0 ? 0 : config.bucketStartPort + ii),
-                    vbInfo, cluster.isCccpBootstrap());
+                    vbInfo, cluster.isCccpBootstrap(), config, dataDir);
         }
 
         rebalance();
@@ -259,8 +296,8 @@ public abstract class Bucket {
         Map<String,Object> mm = new HashMap<String, Object>();
         mm.put("replicaNumber", numReplicas);
         Map<String,Object> ramQuota = new HashMap<String, Object>();
-        ramQuota.put("rawRAM", 1024 * 1024 * 100);
-        ramQuota.put("ram", 1024 * 1024 * 100);
+        ramQuota.put("rawRAM", this.ramQuota);
+        ramQuota.put("ram", this.ramQuota * servers.length);
         mm.put("quota", ramQuota);
         return mm;
     }
@@ -27,6 +27,59 @@ public class BucketConfiguration {
     /** The number of replicas for the bucket */
     public int numReplicas = 2;
 
+    /** The number of reactor (I/O) threads each node should use to serve its connections. With more than one,
+     * the commands of different connections are executed concurrently against the same storage */
+    public int numReactors = 1;
+
+    /** Whether the nodes should receive requests into direct (off-heap) buffers */
+    public boolean directBuffers = false;
+
+    /** Stop processing the requests of a connection once this many bytes of responses are waiting to be
+     * sent to it (0 for no limit) */
+    public long connectionOutputHighWatermark = 8 * 1024 * 1024;
+
+    /** Resume processing the requests of a throttled connection once its pending output is down to this
+     * many bytes */
+    public long connectionOutputLowWatermark = 1024 * 1024;
+
+    /** Stop processing requests on all connections of a node once this many bytes of responses are waiting
+     * to be sent by it (0 for no limit) */
+    public long nodeOutputHighWatermark = 256 * 1024 * 1024;
+
+    /** Resume processing requests on a node once its pending output is down to this many bytes */
+    public long nodeOutputLowWatermark = 128 * 1024 * 1024;
+
+    /** Whether the nodes should keep the values of their items off-heap (in slabs of direct buffers) rather
+     * than in byte arrays */
+    public boolean offHeapValues = false;
+
+    /** The memory (in bytes) each node may use for the items of the bucket (0 for no limit). Once it is running
+     * out, Couchbase buckets eject the values of persisted items and memcached buckets evict items */
+    public long ramQuota = 100 * 1024 * 1024;
+
+    /** How often (in ms) each node deletes the items which have expired, rather than waiting for them to be
+     * accessed (0 to disable) */
+    public long expiryPagerInterval = 1000;
+
+    /** Whether each node sends its mutations to the replicas from a background thread, which lets the replicas
+     * fall behind, rather than right away */
+    public boolean asyncReplication = false;
+
+    /** How long (in ms) the mutations are held back before being sent to the replicas (with asynchronous
+     * replication only) */
+    public long replicationLag = 0;
+
+    /** The maximum number of mutations per second sent to a single replica, 0 for no limit (with asynchronous
+     * replication only) */
+    public int replicationRate = 0;
+
+    /** The directory the persisted items are written to, or null to keep them in memory. Every node of the bucket
+     * gets a directory of its own, <code>dataPath/bucket/node-N</code>, and loads the items found there on start */
+    public String dataPath = null;
+
+    /** The number of commands each reactor of a node keeps in its command log (must be a power of two) */
+    public int commandLogSize = 8192;
+
     /** The type of the bucket (Couchbase or Memcached) */
     public Bucket.BucketType type = Bucket.BucketType.COUCHBASE;
 
@@ -45,7 +98,11 @@ public class BucketConfiguration {
     public int bucketStartPort = 0;
 
     public boolean validate() {
-        return name != null && bucketStartPort >= 0;
+        return name != null && bucketStartPort >= 0 && numReactors > 0 && Integer.bitCount(commandLogSize) == 1 &&
+                ramQuota >= 0 && expiryPagerInterval >= 0 &&
+                replicationLag >= 0 && replicationRate >= 0 &&
+                (connectionOutputHighWatermark == 0 || connectionOutputLowWatermark <= connectionOutputHighWatermark) &&
+                (nodeOutputHighWatermark == 0 || nodeOutputLowWatermark <= nodeOutputHighWatermark);
     }
 
     /**
@@ -65,6 +122,20 @@ public class BucketConfiguration {
         numVBuckets = other.numVBuckets;
         numNodes = other.numNodes;
         numReplicas = other.numReplicas;
+        numReactors = other.numReactors;
+        directBuffers = other.directBuffers;
+        offHeapValues = other.offHeapValues;
+        ramQuota = other.ramQuota;
+        expiryPagerInterval = other.expiryPagerInterval;
+        asyncReplication = other.asyncReplication;
+        replicationLag = other.replicationLag;
+        replicationRate = other.replicationRate;
+        dataPath = other.dataPath;
+        connectionOutputHighWatermark = other.connectionOutputHighWatermark;
+        connectionOutputLowWatermark = other.connectionOutputLowWatermark;
+        nodeOutputHighWatermark = other.nodeOutputHighWatermark;
+        nodeOutputLowWatermark = other.nodeOutputLowWatermark;
+        commandLogSize = other.commandLogSize;
         type = other.type;
         hostname = other.hostname;
     }
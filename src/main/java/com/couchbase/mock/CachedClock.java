@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+/**
+ * The clock used by the storage of the mock, for expiry times, locks and
+ * the like.
+ *
+ * Reading the system clock (and allocating a {@link java.util.Date}) on
+ * every check adds up, so the current time is kept in a volatile field which
+ * is updated by a ticker thread every {@value #TICK_MILLIS} ms. The time
+ * travel offset of {@link Info#getClockOffset()} is already folded in, and
+ * a time travel updates the clock right away. As the time is a single value,
+ * an operation which reads it once sees the same time throughout, even when
+ * it races with a time travel.
+ */
+public final class CachedClock {
+    /** How often (in ms) the time is updated */
+    static final long TICK_MILLIS = 10;
+
+    private static volatile long millis;
+
+    static {
+        update();
+        Thread ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(TICK_MILLIS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    update();
+                }
+            }
+        }, "CachedClock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Read the system clock and the time travel offset again
+     */
+    static synchronized void update() {
+        millis = System.currentTimeMillis() + Info.getClockOffset() * 1000L;
+    }
+
+    /**
+     * @return the current time of the mock in milliseconds since the epoch,
+     *         including the time travel offset
+     */
+    public static long currentTimeMillis() {
+        return millis;
+    }
+
+    /**
+     * @return the current time of the mock in seconds since the epoch,
+     *         including the time travel offset
+     */
+    public static long currentTimeSeconds() {
+        return millis / 1000;
+    }
+
+    private CachedClock() {
+    }
+}
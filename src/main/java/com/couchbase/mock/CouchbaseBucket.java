@@ -27,7 +27,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.CRC32;
 
 /**
  * Representation of a membase bucket
@@ -43,9 +42,12 @@ public class CouchbaseBucket extends Bucket {
 
     @Override
     public short getVbIndexForKey(String key) {
-        CRC32 crc32 = new CRC32();
-        crc32.update(key.getBytes());
-        long digest = ( crc32.getValue() >> 16 ) & 0x7fff;
+        return getVbIndexForKey(new KeySpec(key, (short) 0));
+    }
+
+    @Override
+    public short getVbIndexForKey(KeySpec ks) {
+        long digest = ( (ks.getCrc() & 0xffffffffL) >> 16 ) & 0x7fff;
         long vbKey = digest & ( vbInfo.length - 1 );
         return (short) vbKey;
     }
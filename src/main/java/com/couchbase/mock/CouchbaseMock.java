@@ -34,6 +34,7 @@ import com.couchbase.mock.util.Getopt;
 import com.couchbase.mock.util.Getopt.CommandLineOption;
 import com.couchbase.mock.util.Getopt.Entry;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -365,11 +366,12 @@ public class CouchbaseMock {
      * when all the command line parameters have been initialized; so that when the monitor
      * finally sends the port over the socket, all the items will have already been initialized.
      * @param docsFile Document file to load
+     * @param snapshotFile Snapshot to restore the buckets from
      * @param monitorAddress Monitor address
      * @param useBeerSample Whether to load the beer-sample bucket
      * @throws IOException if an I/O error occurs
      */
-    private void start(String docsFile, String monitorAddress, boolean useBeerSample) throws IOException {
+    private void start(String docsFile, String snapshotFile, String monitorAddress, boolean useBeerSample) throws IOException {
         try {
             if (port == 0) {
                 ServerSocketChannel ch = ServerSocketChannel.open();
@@ -397,7 +399,9 @@ public class CouchbaseMock {
         httpServer.start();
 
         // See if we need to load documents:
-        if (docsFile != null) {
+        if (snapshotFile != null) {
+            Snapshot.restore(this, new File(snapshotFile));
+        } else if (docsFile != null) {
             DocumentLoader loader = new DocumentLoader(this, "default");
             loader.loadDocuments(docsFile);
         } else if (useBeerSample) {
@@ -441,7 +445,7 @@ public class CouchbaseMock {
      * @throws IOException If an I/O error occurs
      */
     public void start() throws IOException {
-        start(null, null, false);
+        start(null, null, null, false);
     }
 
     /**
@@ -465,11 +469,19 @@ public class CouchbaseMock {
         o.printf("-n --nodes            The number of nodes each bucket should contain. Default=%d%n", defaultConfig.numNodes);
         o.printf("-v --vbuckets         The number of vbuckets each bucket should contain. Default=%d%n", defaultConfig.numVBuckets);
         o.printf("-R --replicas         The number of replica nodes for each bucket. Default=%d%n", defaultConfig.numReplicas);
+        o.printf("   --reactors         The number of I/O threads each node should use. Default=%d%n", defaultConfig.numReactors);
+        o.printf("   --direct-buffers   Receive requests into direct (off-heap) buffers%n");
+        o.printf("   --off-heap-values  Keep the values of the items off-heap%n");
+        o.printf("   --ram-quota        The memory (in MB) each node may use for items, 0 for no limit. Default=%d%n", defaultConfig.ramQuota / (1024 * 1024));
+        o.printf("   --replication-lag  Replicate mutations in the background, holding them back for this%n");
+        o.printf("                      many ms%n");
+        o.printf("   --data-path        Persist the items to this directory, and load them from it on start%n");
         o.printf("   --harakiri-monitor The host:port on which the control socket should connect to%n");
         o.printf("-p --port             The REST port to listen on. If 0, port will be sent via --harakiri-monitor%n");
         o.printf("-S --with-beer-sample Initialize the cluster with the `beer-sample` bucket active%n");
         o.printf("-D --docs             Specify a ZIP file that should contain documents to be loaded%n");
         o.printf("                      into the `default` bucket%n");
+        o.printf("   --load-snapshot    Restore the buckets from a snapshot (see the DUMP_SNAPSHOT command)%n");
         o.printf("-E --empty            Initialize a blank cluster without any buckets. Buckets may then%n");
         o.printf("                      be later added via the REST API%n");
         o.printf("-c --cccp             Enable Carrier Publication bootstrap protocol by default%n");
@@ -490,11 +502,18 @@ public class CouchbaseMock {
         int nodes = defaultConfig.numNodes;
         int vbuckets = defaultConfig.numVBuckets;
         int replicaCount = defaultConfig.numReplicas;
+        int reactorCount = defaultConfig.numReactors;
+        boolean directBuffers = defaultConfig.directBuffers;
+        boolean offHeapValues = defaultConfig.offHeapValues;
+        long ramQuota = defaultConfig.ramQuota;
+        long replicationLag = -1;
+        String dataPath = defaultConfig.dataPath;
 
         String harakiriMonitorAddress = null;
         String hostname = null;
         String bucketsSpec = null;
         String docsFile = null;
+        String snapshotFile = null;
         boolean useBeerSample = false;
         boolean emptyCluster = false;
 
@@ -506,7 +525,14 @@ public class CouchbaseMock {
                 addOption(new CommandLineOption('v', "--vbuckets", true)).
                 addOption(new CommandLineOption('\0', "--harakiri-monitor", true)).
                 addOption(new CommandLineOption('R', "--replicas", true)).
+                addOption(new CommandLineOption('\0', "--reactors", true)).
+                addOption(new CommandLineOption('\0', "--direct-buffers", false)).
+                addOption(new CommandLineOption('\0', "--off-heap-values", false)).
+                addOption(new CommandLineOption('\0', "--ram-quota", true)).
+                addOption(new CommandLineOption('\0', "--replication-lag", true)).
+                addOption(new CommandLineOption('\0', "--data-path", true)).
                 addOption(new CommandLineOption('D', "--docs", true)).
+                addOption(new CommandLineOption('\0', "--load-snapshot", true)).
                 addOption(new CommandLineOption('S', "--with-beer-sample", false)).
                 addOption(new CommandLineOption('E', "--empty", false)).
                 addOption(new CommandLineOption('c', "--cccp", false)).
@@ -527,8 +553,22 @@ public class CouchbaseMock {
                 vbuckets = Integer.parseInt(e.value);
             } else if (e.key.equals("-R") || e.key.equals("--replicas")) {
                 replicaCount = Integer.parseInt(e.value);
+            } else if (e.key.equals("--reactors")) {
+                reactorCount = Integer.parseInt(e.value);
+            } else if (e.key.equals("--direct-buffers")) {
+                directBuffers = true;
+            } else if (e.key.equals("--off-heap-values")) {
+                offHeapValues = true;
+            } else if (e.key.equals("--ram-quota")) {
+                ramQuota = Long.parseLong(e.value) * 1024 * 1024;
+            } else if (e.key.equals("--replication-lag")) {
+                replicationLag = Long.parseLong(e.value);
+            } else if (e.key.equals("--data-path")) {
+                dataPath = e.value;
             } else if (e.key.equals("-D") || e.key.equals("--docs")) {
                 docsFile = e.value;
+            } else if (e.key.equals("--load-snapshot")) {
+                snapshotFile = e.value;
             } else if (e.key.equals("-S") || e.key.equals("--with-beer-sample")) {
                 useBeerSample = true;
             } else if (e.key.equals("-E") || e.key.equals("--empty")) {
@@ -551,11 +591,31 @@ public class CouchbaseMock {
 
         try {
             CouchbaseMock mock = new CouchbaseMock(hostname, port, nodes, 0, vbuckets, bucketsSpec, replicaCount);
+            mock.defaultConfig.numReactors = reactorCount;
+            mock.defaultConfig.directBuffers = directBuffers;
+            mock.defaultConfig.offHeapValues = offHeapValues;
+            mock.defaultConfig.ramQuota = ramQuota;
+            mock.defaultConfig.dataPath = dataPath;
+            if (replicationLag >= 0) {
+                mock.defaultConfig.asyncReplication = true;
+                mock.defaultConfig.replicationLag = replicationLag;
+            }
+            for (BucketConfiguration config : mock.initialConfigs.values()) {
+                config.numReactors = reactorCount;
+                config.directBuffers = directBuffers;
+                config.offHeapValues = offHeapValues;
+                config.ramQuota = ramQuota;
+                config.dataPath = dataPath;
+                if (replicationLag >= 0) {
+                    config.asyncReplication = true;
+                    config.replicationLag = replicationLag;
+                }
+            }
             if (emptyCluster) {
                 mock.clearInitialConfigs();
             }
 
-            mock.start(docsFile, harakiriMonitorAddress, useBeerSample);
+            mock.start(docsFile, snapshotFile, harakiriMonitorAddress, useBeerSample);
 
         } catch (Exception e) {
             Logger.getLogger(CouchbaseMock.class.getName()).log(Level.SEVERE, "Could not create cluster: ", e);
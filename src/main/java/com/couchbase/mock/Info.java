@@ -44,6 +44,7 @@ public final class Info {
 
     public static void timeTravel(long offset) {
         clockOffset.addAndGet(offset);
+        CachedClock.update();
     }
 
     public static long getClockOffset() {
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.couchbase.mock;
+
+import com.couchbase.mock.http.capi.CAPIServer;
+import com.couchbase.mock.memcached.BasicVBucketCoordinates;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketCoordinates;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.views.DesignDocument;
+import com.couchbase.mock.views.DesignParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dumps the contents of the buckets of a cluster to a file, and restores
+ * them from it. This is a lot faster than loading the documents through
+ * {@link DocumentLoader}, so large fixtures may be loaded once and then
+ * snapshotted.
+ *
+ * A snapshot holds the items of every vBucket (with their flags, expiry,
+ * CAS, seqno and xattrs), the coordinates (UUID and seqno) of the vBuckets and the
+ * design documents of each bucket. The items of a vBucket are stored in a
+ * section of their own, so the sections may be restored in parallel, each
+ * from its own memory mapping of the file. Restored items are put straight
+ * into every node holding a copy of their vBucket, rather than being
+ * replicated one by one.
+ *
+ * The buckets must already exist when a snapshot is restored, with the same
+ * number of vBuckets as when it was taken. Their current contents are
+ * replaced.
+ */
+public class Snapshot {
+    private static final byte[] MAGIC = "CBMKSNAP".getBytes();
+    private static final int VERSION = 2;
+
+    private static class Section {
+        final Bucket bucket;
+        final int serverIndex;
+        final short vbId;
+        final VBucketCoordinates coords;
+        final int numItems;
+        final long offset;
+        final int length;
+
+        Section(Bucket bucket, int serverIndex, short vbId, VBucketCoordinates coords, int numItems, long offset, int length) {
+            this.bucket = bucket;
+            this.serverIndex = serverIndex;
+            this.vbId = vbId;
+            this.coords = coords;
+            this.numItems = numItems;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private Snapshot() {
+    }
+
+    /**
+     * Write a snapshot of all the buckets of the cluster
+     * @param mock the cluster
+     * @param file the file to write the snapshot to
+     * @return the number of items written
+     * @throws IOException if the snapshot can't be written
+     */
+    public static long dump(CouchbaseMock mock, File file) throws IOException {
+        long numItems = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            List<Bucket> buckets = new ArrayList<Bucket>(mock.getBuckets().values());
+            out.writeInt(buckets.size());
+            for (Bucket bucket : buckets) {
+                numItems += dumpBucket(bucket, out);
+            }
+        } finally {
+            out.close();
+        }
+        return numItems;
+    }
+
+    private static long dumpBucket(Bucket bucket, DataOutputStream out) throws IOException {
+        out.writeUTF(bucket.getName());
+        out.writeInt(bucket.getVBucketInfo().length);
+
+        List<DesignDocument> designs = new ArrayList<DesignDocument>();
+        CAPIServer capi = bucket.getCAPIServer();
+        if (capi != null) {
+            designs.addAll(capi.getDesigns());
+        }
+        out.writeInt(designs.size());
+        for (DesignDocument design : designs) {
+            out.writeUTF(design.getId());
+            writeBytes(out, design.getBody().getBytes("UTF-8"));
+        }
+
+        // A memcached bucket spreads its items over the nodes by key, while a
+        // couchbase bucket keeps the items of a vBucket on its master
+        List<Section> sections = new ArrayList<Section>();
+        MemcachedServer[] servers = bucket.getServers();
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        for (int ii = 0; ii < servers.length; ii++) {
+            for (short vb = 0; vb < vbInfo.length; vb++) {
+                if (bucket.getType() == Bucket.BucketType.COUCHBASE) {
+                    if (vbInfo[vb].getOwner() != servers[ii]) {
+                        continue;
+                    }
+                } else if (servers[ii].getStorage().getCache(vb).getItemCount(vb) == 0) {
+                    continue;
+                }
+                sections.add(new Section(bucket, ii, vb, null, 0, 0, 0));
+            }
+        }
+
+        long numItems = 0;
+        out.writeInt(sections.size());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (Section section : sections) {
+            MemcachedServer server = servers[section.serverIndex];
+            List<Item> items = server.getStorage().getCachedItems(section.vbId);
+            VBucketCoordinates coords = server.getStorage().getCache(section.vbId).getCurrentCoords(section.vbId);
+
+            buffer.reset();
+            DataOutputStream itemsOut = new DataOutputStream(buffer);
+            for (Item item : items) {
+                writeItem(item, itemsOut);
+            }
+            itemsOut.flush();
+
+            out.writeInt(section.serverIndex);
+            out.writeShort(section.vbId);
+            out.writeLong(coords.getUuid());
+            out.writeLong(coords.getSeqno());
+            out.writeInt(items.size());
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            numItems += items.size();
+        }
+        return numItems;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeItem(Item item, DataOutputStream out) throws IOException {
+        byte[] key = item.getKeySpec().getBytes();
+        out.writeShort(key.length);
+        out.write(key);
+        out.writeInt(item.getFlags());
+        out.writeInt(item.getExpiryTime());
+        out.writeLong(item.getCasReal());
+        out.writeLong(item.getSeqno());
+        writeBytes(out, item.getValue());
+        writeBytes(out, item.getXattr());
+    }
+
+    /**
+     * Restore the buckets of the cluster from a snapshot
+     * @param mock the cluster
+     * @param file the snapshot
+     * @return the number of items restored
+     * @throws IOException if the snapshot can't be read, or doesn't match
+     *                     the buckets of the cluster
+     */
+    public static long restore(CouchbaseMock mock, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            Map<Bucket, List<DesignDocument>> buckets = new LinkedHashMap<Bucket, List<DesignDocument>>();
+            List<Section> sections = readSections(mock, raf, buckets);
+            // The buckets are only flushed once the whole snapshot was read
+            for (Map.Entry<Bucket, List<DesignDocument>> entry : buckets.entrySet()) {
+                Bucket bucket = entry.getKey();
+                bucket.getServers()[0].flushAll();
+                for (DesignDocument design : entry.getValue()) {
+                    bucket.getCAPIServer().addDesign(design);
+                }
+            }
+            return load(raf.getChannel(), sections);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read and check everything but the items
+     * @param buckets where to add the buckets being restored, with their
+     *                design documents
+     */
+    private static List<Section> readSections(CouchbaseMock mock, RandomAccessFile in,
+                                              Map<Bucket, List<DesignDocument>> buckets) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+            throw new IOException("Not a snapshot: " + in);
+        }
+
+        List<Section> sections = new ArrayList<Section>();
+        int numBuckets = in.readInt();
+        for (int ii = 0; ii < numBuckets; ii++) {
+            String name = in.readUTF();
+            Bucket bucket = mock.getBuckets().get(name);
+            if (bucket == null) {
+                throw new IOException("No such bucket: " + name);
+            }
+            if (in.readInt() != bucket.getVBucketInfo().length) {
+                throw new IOException("The number of vBuckets of " + name + " doesn't match the snapshot");
+            }
+            List<DesignDocument> designs = new ArrayList<DesignDocument>();
+            buckets.put(bucket, designs);
+
+            int numDesigns = in.readInt();
+            for (int jj = 0; jj < numDesigns; jj++) {
+                String id = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                if (bucket.getCAPIServer() == null) {
+                    continue;
+                }
+                try {
+                    String designName = id.startsWith("_design/") ? id.substring("_design/".length()) : id;
+                    designs.add(DesignDocument.create(new String(body, "UTF-8"), designName));
+                } catch (DesignParseException ex) {
+                    throw new IOException(ex);
+                }
+            }
+
+            int numSections = in.readInt();
+            for (int jj = 0; jj < numSections; jj++) {
+                int serverIndex = in.readInt();
+                short vbId = in.readShort();
+                VBucketCoordinates coords = new BasicVBucketCoordinates(in.readLong(), in.readLong());
+                int numItems = in.readInt();
+                int length = in.readInt();
+                if (serverIndex < 0 || serverIndex >= bucket.getServers().length
+                        || vbId < 0 || vbId >= bucket.getVBucketInfo().length
+                        || numItems < 0 || length < 0 || in.getFilePointer() + length > in.length()) {
+                    throw new IOException("Corrupt section for vBucket " + vbId + " of " + name + " in the snapshot");
+                }
+                sections.add(new Section(bucket, serverIndex, vbId, coords, numItems, in.getFilePointer(), length));
+                in.seek(in.getFilePointer() + length);
+            }
+        }
+        return sections;
+    }
+
+    private static long load(final FileChannel channel, List<Section> sections) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (final Section section : sections) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return loadSection(channel, section);
+                    }
+                }));
+            }
+            long numItems = 0;
+            for (Future<Integer> result : results) {
+                numItems += result.get();
+            }
+            return numItems;
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer bb) {
+        int length = bb.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        bb.get(bytes);
+        return bytes;
+    }
+
+    private static int loadSection(FileChannel channel, Section section) throws IOException {
+        ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, section.offset, section.length);
+        List<Item> items = new ArrayList<Item>(section.numItems);
+        for (int ii = 0; ii < section.numItems; ii++) {
+            byte[] key = new byte[bb.getShort() & 0xffff];
+            bb.get(key);
+            int flags = bb.getInt();
+            int expiry = bb.getInt();
+            long cas = bb.getLong();
+            long seqno = bb.getLong();
+            byte[] value = readBytes(bb);
+            byte[] xattr = readBytes(bb);
+            // The expiry time is stored as is, rather than relative to the clock
+            items.add(Item.restore(new KeySpec(key, section.vbId), flags, expiry, value, xattr, cas, seqno));
+        }
+
+        MemcachedServer[] servers = section.bucket.getServers();
+        if (section.bucket.getType() == Bucket.BucketType.COUCHBASE) {
+            VBucketInfo vbi = section.bucket.getVBucketInfo()[section.vbId];
+            vbi.getOwner().getStorage().loadVBucket(section.vbId, items, section.coords);
+            for (MemcachedServer replica : vbi.getReplicas()) {
+                replica.getStorage().loadVBucket(section.vbId, items, section.coords);
+            }
+        } else if (section.serverIndex < servers.length) {
+            servers[section.serverIndex].getStorage().loadVBucket(section.vbId, items, section.coords);
+        } else {
+            Logger.getLogger(Snapshot.class.getName()).log(Level.WARNING,
+                    "Dropping the items of node {0} of {1}", new Object[]{section.serverIndex, section.bucket.getName()});
+        }
+        return items.size();
+    }
+}
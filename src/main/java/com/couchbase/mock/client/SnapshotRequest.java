@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+public class SnapshotRequest extends MockRequest {
+    /**
+     * @param path the file to write the snapshot to, or to restore it from
+     * @param restore true to restore the buckets from the snapshot, false
+     *                to write it
+     */
+    public SnapshotRequest(String path, boolean restore) {
+        super();
+        setName(restore ? "load_snapshot" : "dump_snapshot");
+        payload.put("Path", path);
+    }
+}
@@ -69,7 +69,11 @@ public abstract class MockCommand {
         START_RETRY_VERIFY,
         CHECK_RETRY_VERIFY,
         SET_ENHANCED_ERRORS,
-        SET_QUERY_ERROR_STATE
+        SET_QUERY_ERROR_STATE,
+        GET_TIMINGS,
+        GET_STATS,
+        DUMP_SNAPSHOT,
+        LOAD_SNAPSHOT
     }
 
     /**
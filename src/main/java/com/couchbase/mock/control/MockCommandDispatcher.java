@@ -22,6 +22,8 @@ import com.couchbase.mock.control.handlers.EnhancedErrorsCommandHandler;
 import com.couchbase.mock.control.handlers.FailoverCommandHandler;
 import com.couchbase.mock.control.handlers.GetCmdLogCommandHandler;
 import com.couchbase.mock.control.handlers.GetMCPortsHandler;
+import com.couchbase.mock.control.handlers.GetStatsCommandHandler;
+import com.couchbase.mock.control.handlers.GetTimingsCommandHandler;
 import com.couchbase.mock.control.handlers.HiccupCommandHandler;
 import com.couchbase.mock.control.handlers.KeyInfoCommandHandler;
 import com.couchbase.mock.control.handlers.MockHelpCommandHandler;
@@ -32,6 +34,7 @@ import com.couchbase.mock.control.handlers.RegenCoordsHandler;
 import com.couchbase.mock.control.handlers.ResetQueryStateHandler;
 import com.couchbase.mock.control.handlers.RespawnCommandHandler;
 import com.couchbase.mock.control.handlers.SetQueryErrorStateCommandHandler;
+import com.couchbase.mock.control.handlers.SnapshotCommandHandler;
 import com.couchbase.mock.control.handlers.StartCmdLogCommandHandler;
 import com.couchbase.mock.control.handlers.StartRetryVerifyComandHandler;
 import com.couchbase.mock.control.handlers.StopCmdLogCommandHandler;
@@ -92,6 +95,10 @@ public class MockCommandDispatcher {
         registerClass(MockCommand.Command.CHECK_RETRY_VERIFY, CheckRetryVerifyCommandHandler.class);
         registerClass(MockCommand.Command.SET_ENHANCED_ERRORS, EnhancedErrorsCommandHandler.class);
         registerClass(MockCommand.Command.SET_QUERY_ERROR_STATE, SetQueryErrorStateCommandHandler.class);
+        registerClass(MockCommand.Command.GET_TIMINGS, GetTimingsCommandHandler.class);
+        registerClass(MockCommand.Command.GET_STATS, GetStatsCommandHandler.class);
+        registerClass(MockCommand.Command.DUMP_SNAPSHOT, SnapshotCommandHandler.class);
+        registerClass(MockCommand.Command.LOAD_SNAPSHOT, SnapshotCommandHandler.class);
     }
 
 
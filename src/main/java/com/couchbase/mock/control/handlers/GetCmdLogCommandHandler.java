@@ -37,6 +37,10 @@ public class GetCmdLogCommandHandler extends CmdLogCommandHandler {
             JsonObject obj = new JsonObject();
             obj.addProperty("opcode", ent.getOpcode());
             obj.addProperty("ms_timestamp", ent.getMsTimestamp());
+            obj.addProperty("ns_timestamp", ent.getNanoTimestamp());
+            obj.addProperty("vbucket", ent.getVBucket());
+            obj.addProperty("key_hash", ent.getKeyHash());
+            obj.addProperty("status", ent.getStatus());
             arr.add(obj);
         }
 
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.control.handlers;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.control.CommandStatus;
+import com.couchbase.mock.control.MockCommand;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.ServerStats;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Get the traffic counters of each of the servers of a bucket, along with
+ * their totals for the bucket as a whole
+ */
+public class GetStatsCommandHandler extends MockCommand {
+    private static JsonObject toJson(Map<ServerStats.Counter, Long> counters) {
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<ServerStats.Counter, Long> entry : counters.entrySet()) {
+            obj.addProperty(entry.getKey().getStatName(), entry.getValue());
+        }
+        return obj;
+    }
+
+    @Override
+    @NotNull
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        String name;
+        if (payload.has("bucket")) {
+            name = payload.get("bucket").getAsString();
+        } else {
+            name = "default";
+        }
+
+        Bucket bucket = mock.getBuckets().get(name);
+        if (bucket == null) {
+            return new CommandStatus().fail("No such bucket: " + name);
+        }
+
+        JsonArray servers = new JsonArray();
+        for (MemcachedServer server : bucket.getServers()) {
+            servers.add(toJson(server.getTrafficStats().getAll()));
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.add("servers", servers);
+        obj.add("total", toJson(bucket.getTrafficStats()));
+        CommandStatus status = new CommandStatus();
+        status.setPayload(obj);
+        return status;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.couchbase.mock.control.handlers;
+import com.couchbase.mock.CouchbaseMock;
+import com.couchbase.mock.Snapshot;
+import com.couchbase.mock.control.CommandStatus;
+import com.couchbase.mock.control.MissingRequiredFieldException;
+import com.couchbase.mock.control.MockCommand;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Write a snapshot of all the buckets to a file (DUMP_SNAPSHOT), or restore
+ * them from one (LOAD_SNAPSHOT). The file is given by the <code>Path</code>
+ * field of the payload, and the number of items is returned.
+ */
+public final class SnapshotCommandHandler extends MockCommand {
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        if (!payload.has("Path")) {
+            throw new MissingRequiredFieldException("Path");
+        }
+        File file = new File(payload.get("Path").getAsString());
+
+        long numItems;
+        try {
+            if (command == Command.DUMP_SNAPSHOT) {
+                numItems = Snapshot.dump(mock, file);
+            } else {
+                numItems = Snapshot.restore(mock, file);
+            }
+        } catch (IOException ex) {
+            return new CommandStatus().fail(ex);
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("items", numItems);
+        CommandStatus status = new CommandStatus();
+        status.setPayload(obj);
+        return status;
+    }
+}
@@ -211,12 +211,13 @@ public class PoolsHandler {
             }
             String sQuota = params.get("ramQuotaMB");
             if (sQuota == null) {
-                throw new CreateBucketBadParamsException("ramQuotaMB missing (but we ignore it)");
+                throw new CreateBucketBadParamsException("ramQuotaMB missing");
             }
             int iQuota = Integer.parseInt(sQuota);
             if (iQuota < 100) {
                 throw new CreateBucketBadParamsException("Ram quota must be greater than 100");
             }
+            config.ramQuota = iQuota * 1024L * 1024L;
         } catch (NumberFormatException ex) {
             throw new CreateBucketBadParamsException("Bad numeric value");
         }
@@ -27,6 +27,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -96,7 +97,11 @@ public final class CAPIServer {
         removeDesign(design, true);
     }
 
-    void addDesign(DesignDocument design) {
+    /**
+     * Define a design document, replacing any existing one with the same id
+     * @param design the design document
+     */
+    public void addDesign(DesignDocument design) {
         synchronized (designDocMap) {
             removeDesign(design, false);
             handleViewPaths(design, true);
@@ -104,6 +109,13 @@ public final class CAPIServer {
         }
     }
 
+    /**
+     * @return all the design documents of the bucket
+     */
+    public Collection<DesignDocument> getDesigns() {
+        return new ArrayList<DesignDocument>(designDocMap.values());
+    }
+
     DesignDocument findDesign(PathInfo info) {
         return designDocMap.get(info.getDesignId());
     }
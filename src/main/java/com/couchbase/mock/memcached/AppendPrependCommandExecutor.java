@@ -36,19 +36,20 @@ class AppendPrependCommandExecutor implements CommandExecutor {
 
         MutationStatus ms;
         Item existing = cache.get(command.getKeySpec());
-        if (existing != null && existing.getValue().length + command.getItem().getValue().length > Info.itemSizeMax()) {
+        if (existing != null && existing.getValueLength() + command.getValueLength() > Info.itemSizeMax()) {
             client.sendResponse(new BinaryResponse(cmd, ErrorCode.E2BIG));
             return;
         }
 
+        Item item = command.getItem();
         switch (cmd.getComCode()) {
             case APPEND:
             case APPENDQ:
-                ms = cache.append(command.getItem(), client.supportsXerror());
+                ms = cache.append(item, client.supportsXerror());
                 break;
             case PREPEND:
             case PREPENDQ:
-                ms = cache.prepend(command.getItem(), client.supportsXerror());
+                ms = cache.prepend(item, client.supportsXerror());
                 break;
             default:
                 return;
@@ -58,7 +59,7 @@ class AppendPrependCommandExecutor implements CommandExecutor {
             switch (cmd.getComCode()) {
                 case APPEND:
                 case PREPEND:
-                    client.sendResponse(new BinaryStoreResponse(command, ms, client.getMutinfoWriter(), existing.getCas()));
+                    client.sendResponse(new BinaryStoreResponse(command, ms, client.getMutinfoWriter(), ms.getCas()));
                 default:
                     break;
             }
@@ -47,7 +47,7 @@ public class ArithmeticCommandExecutor implements CommandExecutor {
                         break;
                     case SUCCESS:
                         if (cc == CommandCode.INCREMENT || cc == CommandCode.DECREMENT) {
-                            client.sendResponse(new BinaryArithmeticResponse(cmd, cmd.getInitial(), item.getCas(), ms, miw));
+                            client.sendResponse(new BinaryArithmeticResponse(cmd, cmd.getInitial(), ms.getCas(), ms, miw));
                         }
                         break;
                     default:
@@ -59,7 +59,7 @@ public class ArithmeticCommandExecutor implements CommandExecutor {
         } else {
             long value;
 
-            if (!item.ensureUnlocked(command.getCas())) {
+            if (!item.isUnlockedFor(command.getCas())) {
                 client.sendResponse(new BinaryResponse(command, ErrorCode.ETMPFAIL));
                 return;
             }
@@ -78,12 +78,12 @@ public class ArithmeticCommandExecutor implements CommandExecutor {
             }
 
             int exp = cmd.getExpiration() > 0 ? cmd.getExpiration() : item.getExpiryTime();
-            Item newValue = new Item(cmd.getKeySpec(), item.getFlags(), exp, Long.toString(value).getBytes(), null, item.getCas());
+            Item newValue = new Item(cmd.getKeySpec(), item.getFlags(), exp, Long.toString(value).getBytes(), null, item.getCasReal());
             MutationStatus ms = cache.set(newValue, client.supportsXerror());
             if (ms.getStatus() == ErrorCode.SUCCESS) {
                 if (cc == CommandCode.INCREMENT || cc == CommandCode.DECREMENT) {
                     // return value
-                    client.sendResponse(new BinaryArithmeticResponse(cmd, value, newValue.getCas(), ms, miw));
+                    client.sendResponse(new BinaryArithmeticResponse(cmd, value, ms.getCas(), ms, miw));
                 }
             } else {
                 client.sendResponse(new BinaryResponse(command, ms.getStatus()));
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized I/O buffers.
+ *
+ * Pools are not thread safe. Every {@link MemcachedReactor} owns its own
+ * pools, and they are only used by the connections pinned to that reactor.
+ * A connection only holds on to a buffer while it has data in it, so the
+ * number of buffers allocated is bounded by the number of connections which
+ * are busy at the same time rather than by the total number of connections.
+ *
+ * Every thread also has a pool of small buffers for the headers of the
+ * responses it creates (see {@link #forHeaders()}). A header is copied into
+ * the output of its connection as soon as the response is sent, after which
+ * the buffer goes back to the pool of the thread sending it.
+ */
+public class BufferPool {
+    /**
+     * The size of the buffers of {@link #forHeaders()}. This is no larger
+     * than {@link OutputContext#COPY_THRESHOLD}, so that a header is always
+     * copied into the output rather than referenced by it
+     */
+    public static final int HEADER_BUFFER_SIZE = 512;
+    private static final int MAX_IDLE_HEADERS = 64;
+    private static final ThreadLocal<BufferPool> headerPools = new ThreadLocal<BufferPool>() {
+        @Override
+        protected BufferPool initialValue() {
+            return new BufferPool(HEADER_BUFFER_SIZE, false, MAX_IDLE_HEADERS);
+        }
+    };
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxIdle;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * Create a new pool
+     * @param bufferSize the size of each buffer
+     * @param direct whether to allocate direct (off-heap) buffers
+     * @param maxIdle the maximum number of unused buffers kept around
+     */
+    BufferPool(int bufferSize, boolean direct, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Get a cleared buffer from the pool, allocating a new one if the pool
+     * is empty
+     * @return the buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.pollFirst();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not touch the buffer
+     * (or any slice of it) afterwards.
+     * @param buffer a buffer previously obtained from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        if (idle.size() < maxIdle) {
+            idle.addFirst(buffer);
+        }
+    }
+
+    /**
+     * @return the pool of header buffers of the current thread
+     */
+    public static BufferPool forHeaders() {
+        return headerPools.get();
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    boolean isDirect() {
+        return direct;
+    }
+}
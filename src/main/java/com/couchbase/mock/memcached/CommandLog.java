@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size log of the most recently executed commands.
+ *
+ * The log is a ring which is only ever appended to by a single thread (the
+ * reactor owning it), so appending an entry takes no locks and allocates
+ * nothing: the fields of the entry are stored in parallel arrays, after which
+ * the entry is published by advancing the sequence number. Once the ring is
+ * full the oldest entries are overwritten.
+ *
+ * Any other thread may take a snapshot of the log. It copies the entries
+ * without stopping the writer, and then discards those which may have been
+ * overwritten while it was copying them.
+ */
+class CommandLog {
+    private final int capacity;
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] opcodes;
+    private final short[] vbuckets;
+    private final int[] keyHashes;
+    private final short[] statuses;
+    /** The sequence number of the next entry */
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong fence = new AtomicLong();
+    /** Entries before this sequence number have been cleared */
+    private volatile long start;
+
+    /**
+     * Create a new log
+     * @param capacity the maximum number of entries kept. Must be a power of two
+     */
+    CommandLog(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        this.capacity = capacity;
+        // The ring is twice as large as the log, so that the writer may carry
+        // on for a while before it overwrites entries a reader is copying
+        int slots = capacity * 2;
+        mask = slots - 1;
+        timestamps = new long[slots];
+        opcodes = new int[slots];
+        vbuckets = new short[slots];
+        keyHashes = new int[slots];
+        statuses = new short[slots];
+    }
+
+    /**
+     * Add an entry to the log. This must only be called by the thread owning the log
+     *
+     * @param nanos when the command was executed, as per {@link System#nanoTime()}
+     * @param opcode the opcode of the command
+     * @param vbucket the vBucket of the command
+     * @param keyHash the hash code of the key (see {@link KeySpec#hashCode()})
+     * @param status the status of the response, or -1 if none was sent
+     */
+    void append(long nanos, int opcode, short vbucket, int keyHash, int status) {
+        long seq = sequence.get();
+        int idx = (int) seq & mask;
+        timestamps[idx] = nanos;
+        opcodes[idx] = opcode;
+        vbuckets[idx] = vbucket;
+        keyHashes[idx] = keyHash;
+        statuses[idx] = (short) status;
+        sequence.lazySet(seq + 1);
+    }
+
+    /**
+     * Drop all the entries currently in the log. This may be called from any thread
+     */
+    void clear() {
+        start = sequence.get();
+    }
+
+    /**
+     * Copy the entries of the log
+     * @param entries the list to add the entries to, oldest first
+     */
+    void snapshot(List<MemcachedServer.CommandLogEntry> entries) {
+        long end = sequence.get();
+        long first = Math.max(start, end - capacity);
+        int size = (int) (end - first);
+        long[] ts = new long[size];
+        int[] ops = new int[size];
+        short[] vbs = new short[size];
+        int[] hashes = new int[size];
+        short[] sts = new short[size];
+        for (int ii = 0; ii < size; ++ii) {
+            int idx = (int) (first + ii) & mask;
+            ts[ii] = timestamps[idx];
+            ops[ii] = opcodes[idx];
+            vbs[ii] = vbuckets[idx];
+            hashes[ii] = keyHashes[idx];
+            sts[ii] = statuses[idx];
+        }
+
+        // Anything the writer has lapped in the meantime (including the slot
+        // it may be writing right now) is garbage. The fence keeps the
+        // copying above from being reordered past the read of the sequence
+        fence.incrementAndGet();
+        long valid = Math.max(first, sequence.get() + 1 - (mask + 1));
+        for (int ii = (int) (valid - first); ii < size; ++ii) {
+            entries.add(new MemcachedServer.CommandLogEntry(ops[ii], ts[ii], vbs[ii], hashes[ii], sts[ii]));
+        }
+    }
+}
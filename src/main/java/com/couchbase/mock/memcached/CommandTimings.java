@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.google.gson.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The latencies of the commands processed by a server, per opcode. Two
+ * phases are timed for every command:
+ *
+ * <ul>
+ *     <li><i>queue</i>: from the moment the command was read off the socket
+ *     until it is executed. This grows when commands are pipelined, or
+ *     when a connection is throttled.</li>
+ *     <li><i>flush</i>: from the moment the command is executed until the
+ *     last byte of its response has been handed to the socket. Commands
+ *     without a response (such as quiet commands which succeeded) are not
+ *     counted here.</li>
+ * </ul>
+ *
+ * All values are in microseconds.
+ */
+public class CommandTimings {
+    public enum Phase {
+        QUEUE, FLUSH
+    }
+
+    private static final int NUM_OPCODES = 256;
+    private final AtomicReferenceArray<LatencyHistogram> queue = new AtomicReferenceArray<LatencyHistogram>(NUM_OPCODES);
+    private final AtomicReferenceArray<LatencyHistogram> flush = new AtomicReferenceArray<LatencyHistogram>(NUM_OPCODES);
+
+    private AtomicReferenceArray<LatencyHistogram> getHistograms(Phase phase) {
+        return phase == Phase.QUEUE ? queue : flush;
+    }
+
+    private static LatencyHistogram getOrCreate(AtomicReferenceArray<LatencyHistogram> histograms, int opcode) {
+        LatencyHistogram histogram = histograms.get(opcode);
+        if (histogram == null) {
+            histograms.compareAndSet(opcode, null, new LatencyHistogram());
+            histogram = histograms.get(opcode);
+        }
+        return histogram;
+    }
+
+    void recordQueued(int opcode, long nanos) {
+        getOrCreate(queue, opcode & 0xff).record(nanos / 1000);
+    }
+
+    void recordFlushed(int opcode, long nanos) {
+        getOrCreate(flush, opcode & 0xff).record(nanos / 1000);
+    }
+
+    /**
+     * Get the histogram of a single opcode
+     * @param opcode the opcode
+     * @param phase which part of the processing
+     * @return the histogram, or null if no such commands were timed
+     */
+    public LatencyHistogram getHistogram(int opcode, Phase phase) {
+        return getHistograms(phase).get(opcode & 0xff);
+    }
+
+    /**
+     * Add all the values recorded by another server to this one
+     * @param other the timings to merge
+     */
+    public void add(CommandTimings other) {
+        for (Phase phase : Phase.values()) {
+            AtomicReferenceArray<LatencyHistogram> mine = getHistograms(phase);
+            AtomicReferenceArray<LatencyHistogram> theirs = other.getHistograms(phase);
+            for (int ii = 0; ii < NUM_OPCODES; ++ii) {
+                LatencyHistogram histogram = theirs.get(ii);
+                if (histogram != null) {
+                    getOrCreate(mine, ii).add(histogram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the name used for the opcode in the stats and JSON output
+     * @param opcode the opcode
+     * @return the lower case name of the command, or its hex value if unknown
+     */
+    public static String getName(int opcode) {
+        CommandCode cc = CommandCode.valueOf(opcode & 0xff);
+        if (cc == CommandCode.ILLEGAL && (opcode & 0xff) != CommandCode.ILLEGAL.cc()) {
+            return String.format("0x%02x", opcode & 0xff);
+        }
+        return cc.name().toLowerCase();
+    }
+
+    /**
+     * Get the timings as stats. There is one entry per opcode and phase
+     * (e.g. <code>get_queue</code>) whose value is a JSON object
+     * @param withBuckets true to include all the histogram buckets, false
+     *                    to only include the summary
+     * @return the stats
+     */
+    public Map<String, String> getStats(boolean withBuckets) {
+        Map<String, String> stats = new HashMap<String, String>();
+        for (Phase phase : Phase.values()) {
+            AtomicReferenceArray<LatencyHistogram> histograms = getHistograms(phase);
+            for (int ii = 0; ii < NUM_OPCODES; ++ii) {
+                LatencyHistogram histogram = histograms.get(ii);
+                if (histogram == null) {
+                    continue;
+                }
+                JsonObject obj = withBuckets ? histogram.toJson() : histogram.getSummary();
+                stats.put(getName(ii) + "_" + phase.name().toLowerCase(), obj.toString());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Get all the timings as JSON, keyed by the name of the opcode
+     * @return an object of the form <code>{ "get": { "queue": {...}, "flush": {...} } }</code>
+     */
+    public JsonObject toJson() {
+        JsonObject obj = new JsonObject();
+        for (int ii = 0; ii < NUM_OPCODES; ++ii) {
+            JsonObject opObj = null;
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = getHistograms(phase).get(ii);
+                if (histogram == null) {
+                    continue;
+                }
+                if (opObj == null) {
+                    opObj = new JsonObject();
+                    obj.add(getName(ii), opObj);
+                }
+                opObj.add(phase.name().toLowerCase(), histogram.toJson());
+            }
+        }
+        return obj;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.BinaryConfigResponse;
+import com.couchbase.mock.memcached.protocol.BinaryDcpCommand;
+import com.couchbase.mock.memcached.protocol.BinaryResponse;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.nio.ByteBuffer;
+import java.security.AccessControlException;
+
+/**
+ * Handles the commands of the producer side of DCP.
+ *
+ * Only the commands needed to stream the changes of the server are
+ * supported: a connection is turned into a producer with DCP_OPEN, after
+ * which streams may be requested for the vBuckets the server is master of.
+ * The failover log of a vBucket only ever holds its current UUID; a stream
+ * request for any other UUID is rolled back to 0.
+ */
+public class DcpCommandExecutor implements CommandExecutor {
+    @Override
+    public void execute(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) {
+        DcpProducer producer = client.getDcpProducer();
+
+        switch (cmd.getComCode()) {
+            case DCP_OPEN:
+                open((BinaryDcpCommand) cmd, client);
+                return;
+            case DCP_NOOP:
+                if (cmd.isResponse()) {
+                    if (producer != null) {
+                        producer.noopAcknowledged();
+                    }
+                } else {
+                    client.sendResponse(new BinaryResponse(cmd, ErrorCode.SUCCESS));
+                }
+                return;
+            default:
+                break;
+        }
+
+        if (producer == null) {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.EINVAL));
+            return;
+        }
+
+        switch (cmd.getComCode()) {
+            case DCP_STREAM_REQ:
+                streamRequest((BinaryDcpCommand) cmd, server, client, producer);
+                break;
+            case DCP_CLOSE_STREAM:
+                if (producer.closeStream(cmd.getVBucketId())) {
+                    client.sendResponse(new BinaryResponse(cmd, ErrorCode.SUCCESS));
+                } else {
+                    client.sendResponse(new BinaryResponse(cmd, ErrorCode.KEY_ENOENT));
+                }
+                break;
+            case DCP_GET_FAILOVER_LOG:
+                VBucketStore store = getCache(cmd, server, client);
+                if (store != null) {
+                    client.sendResponse(BinaryResponse.createWithValue(cmd, failoverLog(store, cmd.getVBucketId()), 0));
+                }
+                break;
+            case DCP_CONTROL:
+                control((BinaryDcpCommand) cmd, client, producer);
+                break;
+            case DCP_BUFFER_ACKNOWLEDGEMENT:
+                // Never responded to
+                producer.acknowledge(((BinaryDcpCommand) cmd).getAckBytes());
+                break;
+            default:
+                client.sendResponse(new BinaryResponse(cmd, ErrorCode.NOT_SUPPORTED));
+                break;
+        }
+    }
+
+    private static void open(BinaryDcpCommand cmd, MemcachedConnection client) {
+        if ((cmd.getFlags() & BinaryDcpCommand.OPEN_PRODUCER) == 0) {
+            // We can't be fed mutations
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.NOT_SUPPORTED));
+            return;
+        }
+        client.openDcp(cmd.getKey());
+        client.sendResponse(new BinaryResponse(cmd, ErrorCode.SUCCESS));
+    }
+
+    private static void streamRequest(BinaryDcpCommand cmd, MemcachedServer server, MemcachedConnection client, DcpProducer producer) {
+        short vbid = cmd.getVBucketId();
+        VBucketStore store = getCache(cmd, server, client);
+        if (store == null) {
+            return;
+        }
+        if (producer.hasStream(vbid)) {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.KEY_EEXISTS));
+            return;
+        }
+
+        long start = cmd.getStartSeqno();
+        long end = cmd.getEndSeqno();
+        if (start > end) {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.ERANGE));
+            return;
+        }
+
+        VBucketCoordinates coords = store.getCurrentCoords(vbid);
+        if (start > 0 && cmd.getVBucketUuid() != coords.getUuid()) {
+            client.sendResponse(rollback(cmd, 0));
+            return;
+        }
+        if (start > coords.getSeqno()) {
+            client.sendResponse(rollback(cmd, coords.getSeqno()));
+            return;
+        }
+
+        client.sendResponse(BinaryResponse.createWithValue(cmd, failoverLog(store, vbid), 0));
+        producer.addStream(new DcpStream(store, vbid, cmd.getOpaque(), start, end));
+    }
+
+    /**
+     * Get the store of the vBucket of a command, replying NOT_MY_VBUCKET if
+     * the server isn't its master
+     * @return the store, or null if the command was replied to
+     */
+    private static VBucketStore getCache(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) {
+        try {
+            return server.getStorage().getCache(server, cmd.getVBucketId());
+        } catch (AccessControlException ex) {
+            client.sendResponse(BinaryConfigResponse.createNotMyVbucket(cmd, server));
+            return null;
+        }
+    }
+
+    private static void control(BinaryDcpCommand cmd, MemcachedConnection client, DcpProducer producer) {
+        String key = cmd.getKey();
+        String value = cmd.getControlValue();
+        try {
+            if (key.equals("connection_buffer_size")) {
+                producer.setBufferSize(Long.parseLong(value));
+            } else if (key.equals("enable_noop")) {
+                producer.setNoopEnabled(Boolean.parseBoolean(value));
+            } else if (key.equals("set_noop_interval")) {
+                producer.setNoopInterval(Long.parseLong(value) * 1000);
+            }
+            // Anything else is a feature we don't have, which the client
+            // may as well think it turned on
+        } catch (NumberFormatException ex) {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.EINVAL));
+            return;
+        }
+        client.sendResponse(new BinaryResponse(cmd, ErrorCode.SUCCESS));
+    }
+
+    private static BinaryResponse rollback(BinaryCommand cmd, long seqno) {
+        byte[] value = new byte[8];
+        ByteBuffer.wrap(value).putLong(seqno);
+        return BinaryResponse.createWithValue(ErrorCode.ROLLBACK, cmd, value, 0);
+    }
+
+    private static byte[] failoverLog(VBucketStore store, short vbid) {
+        byte[] value = new byte[16];
+        ByteBuffer.wrap(value).putLong(store.getCurrentCoords(vbid).getUuid()).putLong(0);
+        return value;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.BinaryDcpMessage;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The producer side of a DCP connection, i.e. a connection which was opened
+ * with DCP_OPEN and streams the changes of one or more vBuckets.
+ *
+ * Messages are generated by the reactor thread of the connection, in
+ * batches: whenever a vBucket with a stream is modified the reactor is
+ * woken up, and every stream with something to send gets to send up to
+ * {@value #MAX_MESSAGES_PER_TURN} items in turn. Sending stops (until the
+ * client caught up) when
+ * <ul>
+ *     <li>the client didn't acknowledge the bytes it received within its
+ *     buffer size (if it asked for flow control with the
+ *     <code>connection_buffer_size</code> control), or</li>
+ *     <li>more than {@value #MAX_PENDING_OUTPUT} bytes are waiting to be
+ *     written to the socket.</li>
+ * </ul>
+ */
+class DcpProducer {
+    /** The number of items a stream sends before the next one gets its turn */
+    private static final int MAX_MESSAGES_PER_TURN = 64;
+    /** Stop generating messages while this much output is pending */
+    private static final long MAX_PENDING_OUTPUT = 256 * 1024;
+    /** How often (in ms) NOOPs are sent, unless the client asked otherwise */
+    private static final long DEFAULT_NOOP_INTERVAL = 180 * 1000;
+
+    private final MemcachedServer server;
+    private final MemcachedConnection client;
+    private final MemcachedReactor reactor;
+    private final String name;
+    /** The streams, by vBucket */
+    private final Map<Short, DcpStream> streams = new HashMap<Short, DcpStream>();
+    /** Whether each vBucket has a stream, for the threads notifying us */
+    private final AtomicIntegerArray hasStream;
+    /** Whether each vBucket was notified since its stream last ran */
+    private final AtomicIntegerArray notified;
+    private final Queue<Short> notifiedQueue = new ConcurrentLinkedQueue<Short>();
+    /** The streams which have something to send, in the order they get their turn */
+    private final ArrayDeque<DcpStream> runQueue = new ArrayDeque<DcpStream>();
+
+    /** The flow control window, or 0 for none */
+    private long bufferSize;
+    private long unackedBytes;
+    private boolean noopEnabled;
+    /** How often to send a NOOP (in ms) */
+    private long noopInterval = DEFAULT_NOOP_INTERVAL;
+    private long lastNoop;
+    private int noopOpaque;
+    private boolean noopPending;
+
+    private final AtomicLong itemsSent = new AtomicLong();
+    private final AtomicLong itemsBackfilled = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param server the server the connection belongs to
+     * @param client the connection
+     * @param reactor the reactor serving the connection, or null if it isn't
+     *                served by one (in which case {@link #produce(long)}
+     *                must be called by hand)
+     * @param name the name the client gave the connection
+     */
+    DcpProducer(MemcachedServer server, MemcachedConnection client, MemcachedReactor reactor, String name) {
+        this.server = server;
+        this.client = client;
+        this.reactor = reactor;
+        this.name = name;
+        int numVBuckets = server.getStorage().getNumVBuckets();
+        hasStream = new AtomicIntegerArray(numVBuckets);
+        notified = new AtomicIntegerArray(numVBuckets);
+        lastNoop = now();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Check if a vBucket has a stream
+     * @param vbid the vBucket
+     * @return true if it has one
+     */
+    boolean hasStream(short vbid) {
+        return streams.containsKey(vbid);
+    }
+
+    void addStream(DcpStream stream) {
+        streams.put(stream.getVBucketId(), stream);
+        hasStream.set(stream.getVBucketId(), 1);
+        schedule(stream);
+    }
+
+    /**
+     * Close a stream at the request of the client
+     * @param vbid the vBucket
+     * @return false if the vBucket had no stream
+     */
+    boolean closeStream(short vbid) {
+        DcpStream stream = streams.remove(vbid);
+        if (stream == null) {
+            return false;
+        }
+        hasStream.set(vbid, 0);
+        stream.close();
+        return true;
+    }
+
+    int getNumStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Tell the producer that a vBucket was modified. This may be called from
+     * any thread.
+     * @param vbid the vBucket
+     */
+    void notify(int vbid) {
+        if (hasStream.get(vbid) != 0 && notified.compareAndSet(vbid, 0, 1)) {
+            notifiedQueue.add((short) vbid);
+            if (reactor != null) {
+                reactor.wakeupStreams();
+            }
+        }
+    }
+
+    private void schedule(DcpStream stream) {
+        if (!stream.scheduled) {
+            stream.scheduled = true;
+            runQueue.add(stream);
+        }
+    }
+
+    /**
+     * Enable flow control
+     * @param size the number of bytes which may be sent without being
+     *             acknowledged, or 0 to disable flow control
+     */
+    void setBufferSize(long size) {
+        bufferSize = size;
+    }
+
+    /**
+     * Handle a DCP_BUFFER_ACKNOWLEDGEMENT
+     * @param bytes the number of bytes processed by the client
+     */
+    void acknowledge(long bytes) {
+        unackedBytes = Math.max(0, unackedBytes - bytes);
+    }
+
+    void setNoopEnabled(boolean enabled) {
+        noopEnabled = enabled;
+    }
+
+    /**
+     * @param interval how often (in ms) to send a NOOP, once enabled
+     */
+    void setNoopInterval(long interval) {
+        noopInterval = interval;
+    }
+
+    /**
+     * Handle the response to a NOOP
+     */
+    void noopAcknowledged() {
+        noopPending = false;
+    }
+
+    /**
+     * @return true if a message may be sent right now
+     */
+    boolean canSend() {
+        return (bufferSize == 0 || unackedBytes < bufferSize) &&
+                client.getOutputContext().getPendingBytes() < MAX_PENDING_OUTPUT;
+    }
+
+    void send(BinaryDcpMessage message) {
+        // The message can't be looked at once it is sent
+        int length = message.getLength();
+        switch (message.getComCode()) {
+            case DCP_MUTATION:
+            case DCP_DELETION:
+                itemsSent.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+        client.sendMessage(message);
+        unackedBytes += length;
+        bytesSent.addAndGet(length);
+    }
+
+    void recordBackfilled() {
+        itemsBackfilled.incrementAndGet();
+    }
+
+    /**
+     * Generate the messages which are due, as far as the limits allow. This
+     * must be called from the reactor thread of the connection.
+     * @param now the current time, as per {@link #now()}
+     */
+    void produce(long now) {
+        if (noopEnabled && now - lastNoop >= noopInterval && !noopPending) {
+            // NOOPs don't count against the flow control window
+            client.sendMessage(BinaryDcpMessage.noop(++noopOpaque));
+            lastNoop = now;
+            noopPending = true;
+        }
+
+        Short vbid;
+        while ((vbid = notifiedQueue.poll()) != null) {
+            notified.set(vbid, 0);
+            DcpStream stream = streams.get(vbid);
+            if (stream != null) {
+                schedule(stream);
+            }
+        }
+
+        while (!runQueue.isEmpty() && canSend()) {
+            DcpStream stream = runQueue.poll();
+            stream.scheduled = false;
+            boolean more = stream.fill(this, MAX_MESSAGES_PER_TURN);
+            if (stream.isEnded()) {
+                if (streams.get(stream.getVBucketId()) == stream) {
+                    streams.remove(stream.getVBucketId());
+                    hasStream.set(stream.getVBucketId(), 0);
+                }
+            } else if (more) {
+                schedule(stream);
+            }
+        }
+    }
+
+    void produce() {
+        produce(now());
+    }
+
+    /**
+     * @return true if there are streams which could send something right now
+     */
+    boolean isRunnable() {
+        return !runQueue.isEmpty() && canSend();
+    }
+
+    long getItemsSent() {
+        return itemsSent.get();
+    }
+
+    long getItemsBackfilled() {
+        return itemsBackfilled.get();
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Stop all streams once the connection is gone
+     */
+    void close() {
+        for (DcpStream stream : streams.values()) {
+            stream.close();
+        }
+        streams.clear();
+        server.removeDcpProducer(this);
+    }
+}
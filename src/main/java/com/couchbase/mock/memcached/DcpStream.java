@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.CachedClock;
+import com.couchbase.mock.memcached.protocol.BinaryDcpMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A DCP stream of a single vBucket.
+ *
+ * If the stream starts before the mutations covered by the
+ * {@link SeqnoIndex} of the vBucket, it begins with a <i>backfill</i>: a
+ * single disk snapshot holding the items of the vBucket which are not in
+ * the index and were stored after the start of the stream, in the order of
+ * (and with) the sequence numbers they were stored with. After that (or
+ * right away) the stream follows the index: every time new mutations are
+ * available, a memory snapshot covering them is sent, followed by the
+ * latest mutation of every key changed within it.
+ *
+ * Items are read without any side effects: expired items are skipped rather
+ * than deleted (their deletion follows once they are removed), and ejected
+ * values are read from disk without being loaded back.
+ *
+ * The backfill is an approximation of a real one in two ways. Deletions
+ * which happened before the index are not known, so they are not sent.
+ * Items whose sequence number isn't known (e.g. those stored through the
+ * control API) are only sent to streams starting from scratch, all of them
+ * with the first sequence number of the snapshot.
+ *
+ * A stream is only ever used by the reactor thread of its connection.
+ */
+class DcpStream {
+    private final short vbid;
+    private final int opaque;
+    private final long endSeqno;
+    private final VBucketStore store;
+    private final SeqnoIndex index;
+    /** The sequence number everything up to which has been sent */
+    private long lastSent;
+    /** The end of the snapshot being sent, or lastSent if there is none */
+    private long snapshotEnd;
+    /** The items left to backfill, or null once the backfill is over */
+    private Iterator<Item> backfill;
+    /** The end of the backfill snapshot */
+    private long backfillEnd;
+    private boolean backfillStarted;
+    private boolean ended;
+    /** Set while the stream is waiting for its turn to send */
+    boolean scheduled;
+
+    /**
+     * Create a new stream
+     * @param store the store holding the vBucket
+     * @param vbid the vBucket
+     * @param opaque the opaque of the stream request, which all the messages
+     *               of the stream carry
+     * @param startSeqno where to start (exclusive)
+     * @param endSeqno where to end (inclusive)
+     */
+    DcpStream(VBucketStore store, short vbid, int opaque, long startSeqno, long endSeqno) {
+        this.store = store;
+        this.vbid = vbid;
+        this.opaque = opaque;
+        this.endSeqno = endSeqno;
+        index = store.getSeqnoIndex(vbid);
+        lastSent = snapshotEnd = startSeqno;
+        if (startSeqno < index.getStartSeqno()) {
+            backfillEnd = Math.min(index.getStartSeqno(), endSeqno);
+            backfill = collectBackfill(startSeqno).iterator();
+        }
+    }
+
+    private static boolean isExpired(Item item, long now) {
+        return item.getExpiryTime() != 0 && now >= item.getExpiryTimeInMillis();
+    }
+
+    /**
+     * Find the items to backfill
+     * @param startSeqno where the stream starts (exclusive)
+     * @return the items, in ascending order of their sequence number
+     */
+    private List<Item> collectBackfill(long startSeqno) {
+        long now = CachedClock.currentTimeMillis();
+        List<Item> items = new ArrayList<Item>();
+        for (KeySpec ks : store.getPartition(vbid).keySet()) {
+            if (index.get(ks) != null) {
+                // Sent along with the rest of the index
+                continue;
+            }
+            Item item = store.peek(ks);
+            if (item == null || isExpired(item, now)) {
+                continue;
+            }
+            long seqno = item.getSeqno();
+            if (seqno == 0 ? startSeqno != 0 : seqno <= startSeqno || seqno > backfillEnd) {
+                // Either the client has it already, or it is a newer version
+                // which is about to be recorded in the index
+                continue;
+            }
+            items.add(item);
+        }
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                return a.getSeqno() < b.getSeqno() ? -1 : (a.getSeqno() == b.getSeqno() ? 0 : 1);
+            }
+        });
+        return items;
+    }
+
+    short getVBucketId() {
+        return vbid;
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Stop the stream without telling the client (it asked for it)
+     */
+    void close() {
+        ended = true;
+    }
+
+    private void end(DcpProducer producer, int flags) {
+        producer.send(BinaryDcpMessage.streamEnd(vbid, opaque, flags));
+        ended = true;
+    }
+
+    /**
+     * Send whatever the stream has to send, within the limits of the
+     * producer
+     * @param producer the producer owning the stream
+     * @param maxMessages the maximum number of items to send
+     * @return true if the stream stopped because of the limits, and has
+     *         more to send right away
+     */
+    boolean fill(DcpProducer producer, int maxMessages) {
+        if (ended) {
+            return false;
+        }
+        if (store.getSeqnoIndex(vbid) != index) {
+            // The vBucket was flushed, or got a new UUID
+            end(producer, BinaryDcpMessage.END_STATE_CHANGED);
+            return false;
+        }
+
+        int sent = 0;
+        if (backfill != null) {
+            while (backfill.hasNext()) {
+                if (sent >= maxMessages || !producer.canSend()) {
+                    return true;
+                }
+                Item item = backfill.next();
+                // If it was replaced (and its off-heap value released) in
+                // the meantime, the new version follows from the index
+                BinaryDcpMessage message = BinaryDcpMessage.mutation(opaque, item, Math.max(item.getSeqno(), lastSent + 1));
+                if (message == null) {
+                    continue;
+                }
+                if (!backfillStarted) {
+                    producer.send(BinaryDcpMessage.snapshotMarker(vbid, opaque, lastSent + 1, backfillEnd, BinaryDcpMessage.SNAPSHOT_DISK));
+                    backfillStarted = true;
+                }
+                producer.send(message);
+                producer.recordBackfilled();
+                ++sent;
+            }
+            backfill = null;
+            lastSent = snapshotEnd = backfillEnd;
+        }
+
+        while (true) {
+            if (lastSent >= endSeqno) {
+                end(producer, BinaryDcpMessage.END_OK);
+                return false;
+            }
+            if (snapshotEnd <= lastSent) {
+                long stable = Math.min(index.getStableSeqno(), endSeqno);
+                if (stable <= lastSent) {
+                    return false;
+                }
+                if (sent >= maxMessages || !producer.canSend()) {
+                    return true;
+                }
+                snapshotEnd = stable;
+                producer.send(BinaryDcpMessage.snapshotMarker(vbid, opaque, lastSent + 1, snapshotEnd, BinaryDcpMessage.SNAPSHOT_MEMORY));
+            }
+
+            for (SeqnoIndex.Entry entry : index.getChangesSince(lastSent)) {
+                if (entry.getSeqno() > snapshotEnd) {
+                    break;
+                }
+                if (sent >= maxMessages || !producer.canSend()) {
+                    return true;
+                }
+                if (entry.isDeleted()) {
+                    producer.send(BinaryDcpMessage.deletion(opaque, entry.getKey(), entry.getSeqno()));
+                    ++sent;
+                } else {
+                    // The item may have changed again since (in which case
+                    // the latest version is sent), or be gone or expired
+                    // already (in which case its deletion follows)
+                    Item item = store.peek(entry.getKey());
+                    BinaryDcpMessage message = null;
+                    if (item != null && !isExpired(item, CachedClock.currentTimeMillis())) {
+                        message = BinaryDcpMessage.mutation(opaque, item, entry.getSeqno());
+                    }
+                    if (message != null) {
+                        producer.send(message);
+                        ++sent;
+                    }
+                }
+                lastSent = entry.getSeqno();
+            }
+            // Whatever is left of the snapshot was deduplicated
+            lastSent = snapshotEnd;
+        }
+    }
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store keeping the items on disk, so that the data set may be
+ * larger than the heap and survives a restart of the mock.
+ *
+ * Every vBucket has an append-only log of its own (<code>vb_N.log</code>),
+ * holding one record per mutation or deletion. Only the location of the
+ * latest record of every key is kept in memory; the records are read back
+ * one at a time with positional reads.
+ *
+ * Mutations aren't written right away. They are queued, and the flusher
+ * (the thread running this store) writes them out in batches, syncing the
+ * logs after every batch. Only then do they show up in {@link #get(KeySpec)}
+ * and the persisted seqno, so OBSERVE and OBSERVE_SEQNO see the items being
+ * persisted with a realistic delay. A key mutated again before it was
+ * written is only written once.
+ *
+ * Once most of a log is made of records which were superseded, the log is
+ * compacted: the latest records are copied into a new log (a snapshot of the
+ * vBucket), which then replaces the old one.
+ */
+class DiskStore implements PersistentStore, Runnable {
+    /** The maximum number of mutations written in one batch */
+    static final int BATCH_SIZE = 1000;
+    /** Logs smaller than this are never compacted */
+    static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+
+    private static final byte TYPE_MUTATION = 1;
+    private static final byte TYPE_DELETION = 2;
+    /** A record which only holds the coordinates of the vBucket */
+    private static final byte TYPE_COORDS = 3;
+    // The layout of a record: the header is followed by the key, the value and the xattrs
+    private static final int OFFSET_CRC = 4;
+    private static final int OFFSET_TYPE = 8;
+    private static final int OFFSET_UUID = 9;
+    private static final int OFFSET_SEQNO = 17;
+    private static final int OFFSET_CAS = 25;
+    private static final int OFFSET_FLAGS = 33;
+    private static final int OFFSET_EXPIRY = 37;
+    private static final int OFFSET_KEY_LENGTH = 41;
+    private static final int OFFSET_VALUE_LENGTH = 43;
+    private static final int OFFSET_XATTR_LENGTH = 47;
+    private static final int RECORD_HEADER_SIZE = 51;
+
+    private static class Pending {
+        final Item item;
+        final VBucketCoordinates coords;
+        final boolean isDelete;
+
+        Pending(Item item, VBucketCoordinates coords, boolean isDelete) {
+            this.item = item;
+            this.coords = coords;
+            this.isDelete = isDelete;
+        }
+    }
+
+    private static class Location {
+        final long offset;
+        final int length;
+        /** The CAS of the item, to tell which version is persisted without reading it */
+        final long cas;
+
+        Location(long offset, int length, long cas) {
+            this.offset = offset;
+            this.length = length;
+            this.cas = cas;
+        }
+    }
+
+    /**
+     * The log of a single vBucket. All of its methods must be called with the
+     * lock of the log held.
+     *
+     * The file is only opened while it is written to or read from, as a node
+     * may have a log for every vBucket of the bucket.
+     */
+    private static class VBucketLog {
+        final File file;
+        long size;
+        long liveBytes;
+        final Map<KeySpec, Location> index = new HashMap<KeySpec, Location>();
+        long uuid;
+        long seqno;
+
+        VBucketLog(File file) {
+            this.file = file;
+            size = file.length();
+        }
+
+        RandomAccessFile open() throws IOException {
+            return new RandomAccessFile(file, "rw");
+        }
+
+        ByteBuffer read(Location loc) throws IOException {
+            RandomAccessFile raf = open();
+            try {
+                return DiskStore.read(raf.getChannel(), loc.offset, loc.length);
+            } finally {
+                raf.close();
+            }
+        }
+
+        void updateCoords(long recordUuid, long recordSeqno) {
+            // Mutations of different keys may be persisted out of order
+            if (recordUuid != 0 && recordSeqno != 0 && (recordUuid != uuid || recordSeqno > seqno)) {
+                uuid = recordUuid;
+                seqno = recordSeqno;
+            }
+        }
+    }
+
+    private final File dir;
+    private final VBucketLog[] logs;
+    /** The mutations which weren't written yet, guarded by the store itself */
+    private final LinkedHashMap<KeySpec, Pending> dirty = new LinkedHashMap<KeySpec, Pending>();
+    /** The number of mutations taken off the queue but not written yet */
+    private int numFlushing;
+    private final AtomicLong numPersisted = new AtomicLong();
+    private final AtomicLong numDeduplicated = new AtomicLong();
+    private final AtomicLong numCommits = new AtomicLong();
+    private final AtomicLong numCompactions = new AtomicLong();
+    private final AtomicLong commitTime = new AtomicLong();
+
+    /**
+     * Open the logs in the given directory, creating them if needed. The
+     * items of existing logs are recovered; a record which was only partially
+     * written (e.g. because the mock was killed) and anything after it is
+     * dropped.
+     *
+     * @param dir the directory holding the logs of the node
+     * @param numVBuckets the number of vBuckets of the bucket
+     * @throws IOException if the logs can't be opened
+     */
+    DiskStore(File dir, int numVBuckets) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        this.dir = dir;
+        logs = new VBucketLog[numVBuckets];
+        for (int vbid = 0; vbid < numVBuckets; vbid++) {
+            VBucketLog log = new VBucketLog(new File(dir, "vb_" + vbid + ".log"));
+            if (log.size > 0) {
+                recover(log, (short) vbid);
+            }
+            logs[vbid] = log;
+        }
+    }
+
+    private static void recover(VBucketLog log, short vbid) throws IOException {
+        RandomAccessFile raf = log.open();
+        try {
+            recover(log, vbid, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void recover(VBucketLog log, short vbid, FileChannel channel) throws IOException {
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= log.size) {
+            ByteBuffer header = read(channel, offset, OFFSET_TYPE);
+            int length = header.getInt(0);
+            int crc = header.getInt(OFFSET_CRC);
+            if (length < RECORD_HEADER_SIZE || offset + length > log.size) {
+                break;
+            }
+            ByteBuffer record = read(channel, offset, length);
+            if (checksum(record) != crc) {
+                break;
+            }
+            byte type = record.get(OFFSET_TYPE);
+            log.updateCoords(record.getLong(OFFSET_UUID), record.getLong(OFFSET_SEQNO));
+            if (type != TYPE_COORDS) {
+                KeySpec ks = new KeySpec(getBytes(record, RECORD_HEADER_SIZE, record.getShort(OFFSET_KEY_LENGTH) & 0xffff), vbid);
+                Location old;
+                if (type == TYPE_MUTATION) {
+                    old = log.index.put(ks, new Location(offset, length, record.getLong(OFFSET_CAS)));
+                    log.liveBytes += length;
+                } else {
+                    old = log.index.remove(ks);
+                }
+                if (old != null) {
+                    log.liveBytes -= old.length;
+                }
+            }
+            offset += length;
+        }
+        if (offset < log.size) {
+            Logger.getLogger(DiskStore.class.getName()).log(Level.WARNING,
+                    "Dropping {0} bytes at the end of {1}", new Object[]{log.size - offset, log.file});
+            channel.truncate(offset);
+            log.size = offset;
+        }
+    }
+
+    /**
+     * Read a part of a log with positional reads, so that offsets aren't
+     * limited to 2 GB and nothing is left mapped
+     * @param channel the log
+     * @param offset where to start reading
+     * @param length how many bytes to read
+     * @return a buffer holding the bytes
+     * @throws IOException if the log is shorter than that
+     */
+    private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, offset + bb.position()) < 0) {
+                throw new EOFException("Unexpected end of log at " + (offset + bb.position()));
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Compute the checksum of a record, which covers everything after the
+     * checksum itself
+     */
+    private static int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[record.limit() - OFFSET_TYPE];
+        ByteBuffer dup = record.duplicate();
+        dup.position(OFFSET_TYPE);
+        dup.get(bytes);
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] getBytes(ByteBuffer record, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = record.duplicate();
+        dup.position(offset);
+        dup.get(bytes);
+        return bytes;
+    }
+
+    private static Item decodeItem(ByteBuffer record, short vbid) {
+        int keyLength = record.getShort(OFFSET_KEY_LENGTH) & 0xffff;
+        int valueLength = record.getInt(OFFSET_VALUE_LENGTH);
+        int xattrLength = record.getInt(OFFSET_XATTR_LENGTH);
+        byte[] key = getBytes(record, RECORD_HEADER_SIZE, keyLength);
+        byte[] value = getBytes(record, RECORD_HEADER_SIZE + keyLength, valueLength);
+        byte[] xattr = xattrLength == 0 ? null : getBytes(record, RECORD_HEADER_SIZE + keyLength + valueLength, xattrLength);
+        // The expiry time is stored as is, rather than relative to the clock
+        return Item.restore(new KeySpec(key, vbid), record.getInt(OFFSET_FLAGS), record.getInt(OFFSET_EXPIRY),
+                value, xattr, record.getLong(OFFSET_CAS), record.getLong(OFFSET_SEQNO));
+    }
+
+    private static ByteBuffer encode(byte type, Item item, long uuid, long seqno) {
+        byte[] key = item == null ? new byte[0] : item.getKeySpec().getBytes();
+        // Copy the segments of the value one by one rather than joining them
+        ByteBuffer[] value = type == TYPE_MUTATION ? item.getValueBuffers() : null;
+        byte[] xattr = type == TYPE_MUTATION ? item.getXattr() : null;
+        int valueLength = 0;
+        if (value != null) {
+            for (ByteBuffer segment : value) {
+                valueLength += segment.remaining();
+            }
+        }
+        int xattrLength = xattr == null ? 0 : xattr.length;
+        int length = RECORD_HEADER_SIZE + key.length + valueLength + xattrLength;
+
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        bb.putInt(length);
+        bb.putInt(0);
+        bb.put(type);
+        bb.putLong(uuid);
+        bb.putLong(seqno);
+        bb.putLong(type == TYPE_MUTATION ? item.getCasReal() : 0);
+        bb.putInt(type == TYPE_MUTATION ? item.getFlags() : 0);
+        bb.putInt(type == TYPE_MUTATION ? item.getExpiryTime() : 0);
+        bb.putShort((short) key.length);
+        bb.putInt(valueLength);
+        bb.putInt(xattrLength);
+        bb.put(key);
+        if (value != null) {
+            for (ByteBuffer segment : value) {
+                bb.put(segment);
+            }
+        }
+        if (xattr != null) {
+            bb.put(xattr);
+        }
+        bb.putInt(OFFSET_CRC, checksum(bb));
+        bb.flip();
+        return bb;
+    }
+
+    private synchronized void enqueue(KeySpec ks, Pending pending) {
+        if (dirty.remove(ks) != null) {
+            numDeduplicated.incrementAndGet();
+        }
+        dirty.put(ks, pending);
+        notifyAll();
+    }
+
+    @Override
+    public void put(Item item, VBucketCoordinates coords) {
+        enqueue(item.getKeySpec(), new Pending(item, coords, false));
+    }
+
+    @Override
+    public void remove(KeySpec ks, VBucketCoordinates coords) {
+        enqueue(ks, new Pending(new Item(ks), coords, true));
+    }
+
+    @Override
+    public Item get(KeySpec ks) {
+        VBucketLog log = logs[ks.vbId];
+        synchronized (log) {
+            Location loc = log.index.get(ks);
+            if (loc == null) {
+                return null;
+            }
+            try {
+                return decodeItem(log.read(loc), ks.vbId);
+            } catch (IOException ex) {
+                Logger.getLogger(DiskStore.class.getName()).log(Level.SEVERE, null, ex);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isPersisted(Item item) {
+        KeySpec ks = item.getKeySpec();
+        synchronized (this) {
+            // The queued version may have the same CAS (e.g. a touch)
+            if (dirty.containsKey(ks)) {
+                return false;
+            }
+        }
+        VBucketLog log = logs[ks.vbId];
+        synchronized (log) {
+            Location loc = log.index.get(ks);
+            return loc != null && loc.cas == item.getCasReal();
+        }
+    }
+
+    @Override
+    public Collection<Item> values(int vbid) {
+        VBucketLog log = logs[vbid];
+        List<Item> items = new ArrayList<Item>();
+        synchronized (log) {
+            if (log.index.isEmpty()) {
+                return items;
+            }
+            try {
+                RandomAccessFile raf = log.open();
+                try {
+                    FileChannel channel = raf.getChannel();
+                    for (Location loc : log.index.values()) {
+                        items.add(decodeItem(read(channel, loc.offset, loc.length), (short) vbid));
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(DiskStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public VBucketCoordinates getCoords(int vbid) {
+        VBucketLog log = logs[vbid];
+        synchronized (log) {
+            return new BasicVBucketCoordinates(log.uuid, log.seqno);
+        }
+    }
+
+    @Override
+    public void updateSingleCoords(int vbid, VBucketCoordinates coords) {
+        VBucketLog log = logs[vbid];
+        synchronized (log) {
+            log.uuid = coords.getUuid();
+            log.seqno = coords.getSeqno();
+        }
+    }
+
+    /**
+     * Drop all the items, both the queued ones and those on disk. The logs
+     * are replaced by empty ones, the same way compaction replaces them.
+     */
+    @Override
+    public void clear() {
+        synchronized (this) {
+            dirty.clear();
+        }
+        for (VBucketLog log : logs) {
+            synchronized (log) {
+                try {
+                    File empty = new File(dir, log.file.getName() + ".tmp");
+                    if (empty.exists() && !empty.delete()) {
+                        throw new IOException("Failed to delete " + empty);
+                    }
+                    replace(log, empty);
+                } catch (IOException ex) {
+                    Logger.getLogger(DiskStore.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                log.index.clear();
+                log.liveBytes = 0;
+                log.uuid = 0;
+                log.seqno = 0;
+            }
+        }
+    }
+
+    /**
+     * Replace a log by another file. Must be called with the lock of the log held.
+     */
+    private static void replace(VBucketLog log, File replacement) throws IOException {
+        if (!replacement.exists() && !replacement.createNewFile()) {
+            throw new IOException("Failed to create " + replacement);
+        }
+        if (!replacement.renameTo(log.file)) {
+            // Not atomic, but at least we get a log
+            if (!log.file.delete() || !replacement.renameTo(log.file)) {
+                throw new IOException("Failed to replace " + log.file);
+            }
+        }
+        log.size = log.file.length();
+    }
+
+    /**
+     * Write the next batch of queued mutations
+     * @return the number of mutations written
+     */
+    int flushBatch() {
+        List<Pending> batch = new ArrayList<Pending>();
+        // The cache may drop the off-heap values of the items while they are
+        // written. They are pinned before they leave the queue, so that an
+        // item is either still queued (see isPersisted) or pinned
+        Item.startPinning();
+        try {
+            synchronized (this) {
+                Iterator<Pending> iter = dirty.values().iterator();
+                while (iter.hasNext() && batch.size() < BATCH_SIZE) {
+                    Pending pending = iter.next();
+                    iter.remove();
+                    // A version which is gone was replaced or deleted in the
+                    // meantime, which queued the newer version after it
+                    if (pending.isDelete || pending.item.pin()) {
+                        batch.add(pending);
+                    }
+                }
+                numFlushing += batch.size();
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+
+            long start = System.nanoTime();
+            Map<Short, List<Pending>> byVBucket = new HashMap<Short, List<Pending>>();
+            for (Pending pending : batch) {
+                short vbid = pending.item.getKeySpec().vbId;
+                List<Pending> list = byVBucket.get(vbid);
+                if (list == null) {
+                    list = new ArrayList<Pending>();
+                    byVBucket.put(vbid, list);
+                }
+                list.add(pending);
+            }
+            for (Map.Entry<Short, List<Pending>> entry : byVBucket.entrySet()) {
+                VBucketLog log = logs[entry.getKey()];
+                synchronized (log) {
+                    try {
+                        write(log, entry.getValue());
+                        if (log.size > COMPACTION_MIN_SIZE && log.liveBytes < log.size / 2) {
+                            compact(log);
+                        }
+                    } catch (IOException ex) {
+                        Logger.getLogger(DiskStore.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+            numCommits.incrementAndGet();
+            commitTime.addAndGet((System.nanoTime() - start) / 1000);
+            numPersisted.addAndGet(batch.size());
+        } finally {
+            Item.releasePinned();
+        }
+
+        synchronized (this) {
+            numFlushing -= batch.size();
+            notifyAll();
+        }
+        return batch.size();
+    }
+
+    /**
+     * Append the mutations of a vBucket to its log and sync it. Must be
+     * called with the lock of the log held.
+     */
+    private static void write(VBucketLog log, List<Pending> mutations) throws IOException {
+        ByteBuffer[] records = new ByteBuffer[mutations.size()];
+        for (int ii = 0; ii < records.length; ii++) {
+            Pending pending = mutations.get(ii);
+            records[ii] = encode(pending.isDelete ? TYPE_DELETION : TYPE_MUTATION, pending.item,
+                    pending.coords.getUuid(), pending.coords.getSeqno());
+        }
+        long total = 0;
+        for (ByteBuffer record : records) {
+            total += record.remaining();
+        }
+        RandomAccessFile raf = log.open();
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.position(log.size);
+            long written = 0;
+            while (written < total) {
+                written += channel.write(records);
+            }
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+
+        long offset = log.size;
+        for (int ii = 0; ii < records.length; ii++) {
+            Pending pending = mutations.get(ii);
+            int length = records[ii].limit();
+            Location old;
+            if (pending.isDelete) {
+                old = log.index.remove(pending.item.getKeySpec());
+            } else {
+                old = log.index.put(pending.item.getKeySpec(), new Location(offset, length, pending.item.getCasReal()));
+                log.liveBytes += length;
+            }
+            if (old != null) {
+                log.liveBytes -= old.length;
+            }
+            log.updateCoords(pending.coords.getUuid(), pending.coords.getSeqno());
+            offset += length;
+        }
+        log.size = offset;
+    }
+
+    /**
+     * Rewrite a log with only the latest record of every key. Must be called
+     * with the lock of the log held.
+     */
+    private void compact(VBucketLog log) throws IOException {
+        File tmp = new File(dir, log.file.getName() + ".compact");
+        Map<KeySpec, Location> compacted = new HashMap<KeySpec, Location>();
+        RandomAccessFile in = log.open();
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel input = in.getChannel();
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            long offset = 0;
+            for (Map.Entry<KeySpec, Location> entry : log.index.entrySet()) {
+                Location loc = entry.getValue();
+                ByteBuffer record = read(input, loc.offset, loc.length);
+                compacted.put(entry.getKey(), new Location(offset, record.remaining(), loc.cas));
+                while (record.hasRemaining()) {
+                    offset += channel.write(record);
+                }
+            }
+            // The seqno of the vBucket may come from a record which was dropped
+            ByteBuffer coords = encode(TYPE_COORDS, null, log.uuid, log.seqno);
+            while (coords.hasRemaining()) {
+                channel.write(coords);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+            in.close();
+        }
+        replace(log, tmp);
+        log.index.clear();
+        log.index.putAll(compacted);
+        numCompactions.incrementAndGet();
+    }
+
+    /**
+     * @return the number of mutations which weren't written yet
+     */
+    synchronized int getQueueSize() {
+        return dirty.size() + numFlushing;
+    }
+
+    /**
+     * Wait until all the mutations queued so far were written
+     * @param timeout the maximum time to wait for, in ms
+     * @return false if there still are mutations pending
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized boolean awaitFlushed(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining;
+        while (getQueueSize() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return getQueueSize() == 0;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            synchronized (this) {
+                try {
+                    while (dirty.isEmpty()) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            flushBatch();
+        }
+    }
+
+    void addStats(Map<String, String> stats) {
+        long diskSize = 0;
+        long liveSize = 0;
+        for (VBucketLog log : logs) {
+            synchronized (log) {
+                diskSize += log.size;
+                liveSize += log.liveBytes;
+            }
+        }
+        stats.put("ep_queue_size", Integer.toString(getQueueSize()));
+        stats.put("ep_total_persisted", Long.toString(numPersisted.get()));
+        stats.put("ep_total_deduplicated", Long.toString(numDeduplicated.get()));
+        stats.put("ep_commit_num", Long.toString(numCommits.get()));
+        stats.put("ep_commit_time_total", Long.toString(commitTime.get()));
+        stats.put("ep_num_compactions", Long.toString(numCompactions.get()));
+        stats.put("ep_db_file_size", Long.toString(diskSize));
+        stats.put("ep_db_data_size", Long.toString(liveSize));
+    }
+}
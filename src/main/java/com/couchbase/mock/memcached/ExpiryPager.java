@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.CachedClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically deletes the items of a node which have expired.
+ *
+ * Expired items are otherwise only deleted once they are accessed, so items
+ * which are written but never read again would stay around (and take up
+ * memory) forever. The pager finds the expired items through the expiry
+ * index of the store, and deletes them in batches with a mutation of their
+ * own, just like a lookup of an expired item does. Time travel is taken
+ * into account as the pager uses the {@link CachedClock}.
+ *
+ * Like the additional {@link MemcachedReactor}s, the pager runs on a daemon
+ * thread of its own, started and stopped by the {@link MemcachedServer}.
+ */
+class ExpiryPager implements Runnable {
+    /** The maximum number of items deleted from a vBucket in one go */
+    static final int BATCH_SIZE = 1000;
+
+    private final MemcachedServer server;
+    private final long interval;
+    private final AtomicLong numRuns = new AtomicLong();
+
+    /**
+     * @param server the node whose items should be expired
+     * @param interval how often (in ms) to look for expired items, or 0 if
+     *                 the pager is only run on demand
+     */
+    ExpiryPager(MemcachedServer server, long interval) {
+        this.server = server;
+        this.interval = interval;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (!server.isActive()) {
+                continue;
+            }
+            try {
+                runOnce();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ExpiryPager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Delete all the items which have expired by now
+     * @return the number of items deleted
+     */
+    long runOnce() {
+        long now = CachedClock.currentTimeSeconds();
+        long deleted = server.getStorage().expireItems(now, BATCH_SIZE);
+        numRuns.incrementAndGet();
+        return deleted;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    long getNumRuns() {
+        return numRuns.get();
+    }
+}
@@ -55,13 +55,13 @@ public class GetCommandExecutor implements CommandExecutor {
         }
 
         if (cc == CommandCode.GETL) {
-            ErrorCode ec = cache.lock(item, cmd.getExpiration());
-            if (ec != ErrorCode.SUCCESS) {
-                client.sendResponse(new BinaryResponse(cmd, ec,
+            Item locked = cache.lock(item, cmd.getExpiration());
+            if (locked == null) {
+                client.sendResponse(new BinaryResponse(cmd, ErrorCode.ETMPFAIL,
                         server.isEnhancedErrorsEnabled() ? "Failed to lock item" : null));
                 return;
             }
-            client.sendResponse(new BinaryGetResponse(cmd, item, item.getCasReal()));
+            client.sendResponse(new BinaryGetResponse(cmd, locked, locked.getCasReal()));
             return;
         } else if (cc == CommandCode.TOUCH || cc == CommandCode.GAT || cc == CommandCode.GATQ) {
             ErrorCode ec = cache.touch(item, cmd.getExpiration(), client.supportsXerror());
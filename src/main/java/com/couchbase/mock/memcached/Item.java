@@ -16,40 +16,130 @@
 
 package com.couchbase.mock.memcached;
 
-import com.couchbase.mock.Info;
+import com.couchbase.mock.CachedClock;
 import com.couchbase.mock.util.Base64;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
+ * An item stored by the mock.
+ *
+ * The value and the extended attributes are normally held in byte arrays.
+ * When the storage of a node keeps its values off-heap, the items in its
+ * stores instead refer to a chunk of a {@link SlabAllocator}, and the item
+ * only keeps that (small) handle on the heap. Such an item is created from
+ * a regular one by {@link #Item(Item, SlabAllocator)}, and the store owning
+ * it calls {@link #releaseValue()} once it drops the item. Another store
+ * keeping the same version (the persisted items kept in memory) takes its
+ * own reference through {@link #retainShared()}. The chunk is
+ * reference counted rather than copied back onto the heap at that point:
+ * a command which looked the item up has it pinned (see {@link #pin()})
+ * until it completes, and a response sending the value straight out of the
+ * chunk holds on to it until it has been sent (see
+ * {@link #retainValueBuffers()}). The chunk is given back to the allocator
+ * once the last of them is done with it.
+ *
+ * Appending to or prepending to the value of an item does not copy the
+ * value: the new version keeps the value as a list of segments, sharing
+ * those of the previous version, and only compacts them once there are more
+ * than {@link #MAX_SEGMENTS}. The segments are joined into a single array
+ * the first time someone asks for it through {@link #getValue()}, whereas
+ * {@link #getValueBuffers()} hands them out as they are.
+ *
+ * Once an item was stored it is never modified: every change (a new value,
+ * a lock, a new expiry time, ejecting the value) stores a new version of the
+ * item instead, created with one of the <code>with</code> methods. This is
+ * what lets the cache, the persisted store and the replicas of a vBucket all
+ * share the same instance of a version. All of the metadata (the CAS, the
+ * expiry time and the lock) is final; the only state which does change is
+ * the bookkeeping around the item: the referenced bit, and how the value is
+ * laid out in memory.
+ *
  * @author Trond Norbye
  */
 public class Item {
     private final KeySpec keySpec;
     private final int flags;
-    private int expiryTime;
-    private byte[] xattr;
-    private byte[] value;
-    private String cached_UTF8 = null;
-    private String cached_B64 = null;
-    private long cas;
-    private long modificationTime;
+    private final int expiryTime;
+    private volatile byte[] xattr;
+    private volatile byte[] value;
+    /** The value, when it is split into segments. The value array is null while this is set */
+    private volatile byte[][] segments;
+    /** The off-heap copy of the value and xattr, if any. The arrays are null when this is set */
+    private final SlabAllocator.Chunk chunk;
+    /** Set once the store owning the item dropped its reference to the chunk */
+    private volatile int chunkReleased;
+    /** Set when the value was ejected from memory, and only lives on "disk" */
+    private final boolean ejected;
+    /** Set whenever the item is looked up; see {@link ItemPager} */
+    private volatile boolean referenced;
+    private final long cas;
+    private final long modificationTime;
+    /** The sequence number of the mutation which stored the version, or 0 if it isn't known */
+    private final long seqno;
     final static private Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    /** A rough estimate of the memory taken by an item besides its key and value */
+    static final int METADATA_SIZE = 64;
+    /** The number of segments a value may be split into before they are compacted */
+    static final int MAX_SEGMENTS = 32;
+    private static final AtomicIntegerFieldUpdater<Item> CHUNK_RELEASED =
+            AtomicIntegerFieldUpdater.newUpdater(Item.class, "chunkReleased");
+
+    /** The chunks pinned by the command the current thread is executing */
+    private static final ThreadLocal<PinnedChunks> pinned = new ThreadLocal<PinnedChunks>() {
+        @Override
+        protected PinnedChunks initialValue() {
+            return new PinnedChunks();
+        }
+    };
+
+    private static class PinnedChunks {
+        final ArrayList<SlabAllocator.Chunk> chunks = new ArrayList<SlabAllocator.Chunk>();
+        boolean active;
+    }
 
     /** When the lock expires, if any */
-    private int lockExpiryTime;
+    private final int lockExpiryTime;
 
     public Item(KeySpec ks, int flags, int expiryTime, byte[] value, byte[] xattr, long cas) {
+        this(ks, flags, value, xattr, cas, VBucketStore.convertExpiryTime(expiryTime), 0);
+    }
+
+    private Item(KeySpec ks, int flags, byte[] value, byte[] xattr, long cas, int absoluteExpiryTime, long seqno) {
         this.keySpec = ks;
         this.flags = flags;
         this.value = value;
         this.xattr = xattr;
         this.cas = cas;
-        this.expiryTime = VBucketStore.convertExpiryTime(expiryTime);
+        this.expiryTime = absoluteExpiryTime;
+        this.modificationTime = 0;
+        this.seqno = seqno;
+        this.lockExpiryTime = 0;
+        this.ejected = false;
+        this.chunk = null;
+    }
+
+    /**
+     * Create an item as it was stored before (e.g. when reading it back from
+     * disk). Unlike the constructor, this does not convert the expiry time,
+     * which would shift it by the clock offset a second time
+     * @param ks the key
+     * @param flags the flags
+     * @param expiryTime the expiry time, as returned by {@link #getExpiryTime()}
+     * @param value the value
+     * @param xattr the extended attributes, or null if there are none
+     * @param cas the CAS
+     * @param seqno the sequence number of the mutation which stored it, or
+     *              0 if it isn't known
+     * @return the item
+     */
+    public static Item restore(KeySpec ks, int flags, int expiryTime, byte[] value, byte[] xattr, long cas, long seqno) {
+        return new Item(ks, flags, value, xattr, cas, expiryTime, seqno);
     }
 
     public Item(KeySpec ks) {
@@ -60,6 +150,10 @@ public class Item {
         this.xattr = null;
         this.cas = -1;
         this.modificationTime = -1;
+        this.seqno = 0;
+        this.lockExpiryTime = 0;
+        this.ejected = false;
+        this.chunk = null;
     }
 
     /**
@@ -67,16 +161,180 @@ public class Item {
      * @param src Item whose contents we should copy
      */
     public Item(Item src) {
+        this(src, src.expiryTime, src.cas, src.modificationTime, src.seqno, src.lockExpiryTime);
+    }
+
+    /**
+     * Create a new version of an item with other metadata, sharing the
+     * value of the current version (unless that one is kept off-heap)
+     * @param src the current version
+     */
+    private Item(Item src, int expiryTime, long cas, long modificationTime, long seqno, int lockExpiryTime) {
+        this.keySpec = src.keySpec;
+        this.flags = src.flags;
+        this.expiryTime = expiryTime;
+        this.cas = cas;
+        this.modificationTime = modificationTime;
+        this.seqno = seqno;
+        this.lockExpiryTime = lockExpiryTime;
+        this.ejected = src.ejected;
+        this.chunk = null;
+        byte[][] srcSegments = src.segments;
+        if (srcSegments == null) {
+            this.value = src.getValue();
+        } else {
+            this.segments = srcSegments;
+        }
+        this.xattr = src.getXattr();
+    }
+
+    /**
+     * Create a new version of an item
+     * @param src the current version, whose metadata is copied
+     * @param value the value of the new version
+     * @param xattr the extended attributes of the new version
+     * @param ejected whether the new version has its value on disk only
+     */
+    private Item(Item src, byte[] value, byte[] xattr, boolean ejected) {
         this.keySpec = src.keySpec;
         this.flags = src.flags;
         this.expiryTime = src.expiryTime;
-        this.value = src.value;
         this.cas = src.cas;
         this.modificationTime = src.modificationTime;
+        this.seqno = src.seqno;
         this.lockExpiryTime = src.lockExpiryTime;
-        this.cached_B64 = src.cached_B64;
-        this.cached_UTF8 = src.cached_UTF8;
-        this.xattr = src.xattr;
+        this.value = value;
+        this.xattr = xattr;
+        this.ejected = ejected;
+        this.chunk = null;
+    }
+
+    /**
+     * Copy an item, keeping its value and xattr off-heap
+     * @param src Item whose contents we should copy
+     * @param allocator where to store the value
+     */
+    Item(Item src, SlabAllocator allocator) {
+        this.keySpec = src.keySpec;
+        this.flags = src.flags;
+        this.expiryTime = src.expiryTime;
+        this.cas = src.cas;
+        this.modificationTime = src.modificationTime;
+        this.seqno = src.seqno;
+        this.lockExpiryTime = src.lockExpiryTime;
+        this.ejected = src.ejected;
+        byte[] srcValue = src.getValue();
+        if (srcValue == null) {
+            this.xattr = src.getXattr();
+            this.chunk = null;
+        } else {
+            this.chunk = allocator.allocate(srcValue, src.getXattr());
+        }
+    }
+
+    /**
+     * Drop the reference the store owning the item holds on its off-heap
+     * value. This is called by the store once it dropped the item, and may
+     * be called more than once. The value is given back to its allocator
+     * once the commands and responses still using it are done with it.
+     */
+    void releaseValue() {
+        if (chunk != null && CHUNK_RELEASED.compareAndSet(this, 0, 1)) {
+            chunk.release();
+        }
+    }
+
+    /**
+     * @return true if the value and xattr of the item are kept off-heap
+     */
+    boolean isOffHeap() {
+        return chunk != null;
+    }
+
+    /**
+     * Take a reference on the off-heap value of the item for a store which
+     * keeps the item along with the store owning it. That reference is
+     * dropped by {@link #releaseShared()}, as many times as it was taken,
+     * rather than by {@link #releaseValue()}
+     * @return false if the value was released already, which means that
+     *         the version is no longer stored
+     */
+    boolean retainShared() {
+        return chunk == null || chunk.retain();
+    }
+
+    /**
+     * Drop a reference taken by {@link #retainShared()}
+     */
+    void releaseShared() {
+        if (chunk != null) {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Keep the off-heap value of the item valid until the command the
+     * current thread is executing completes, even if the item is dropped
+     * by its store in the meantime. This does nothing outside of a command
+     * (see {@link #startPinning()}).
+     * @return false if the value was released already, which means that
+     *         the item is no longer stored
+     */
+    boolean pin() {
+        if (chunk == null) {
+            return true;
+        }
+        PinnedChunks pinnedChunks = pinned.get();
+        if (!pinnedChunks.active) {
+            return true;
+        }
+        if (!chunk.retain()) {
+            return false;
+        }
+        pinnedChunks.chunks.add(chunk);
+        return true;
+    }
+
+    /**
+     * Start pinning the items looked up by the current thread, which is
+     * about to execute a command
+     */
+    static void startPinning() {
+        pinned.get().active = true;
+    }
+
+    /**
+     * Unpin all the items pinned by the current thread, once the command
+     * it executed has completed
+     */
+    static void releasePinned() {
+        PinnedChunks pinnedChunks = pinned.get();
+        for (SlabAllocator.Chunk c : pinnedChunks.chunks) {
+            c.release();
+        }
+        pinnedChunks.chunks.clear();
+        pinnedChunks.active = false;
+    }
+
+    /**
+     * Get a version of the item which keeps its value on the heap, e.g. to
+     * hand it to a thread which doesn't pin the items it uses
+     * @return the item itself if its value isn't kept off-heap, a copy of it
+     *         otherwise, or null if the off-heap value was released already
+     *         (which means that the item is no longer stored)
+     */
+    Item onHeap() {
+        if (chunk == null) {
+            return this;
+        }
+        if (!chunk.retain()) {
+            return null;
+        }
+        try {
+            return new Item(this, expiryTime, cas, modificationTime, seqno, lockExpiryTime);
+        } finally {
+            chunk.release();
+        }
     }
 
     public int getExpiryTime() {
@@ -87,8 +345,12 @@ public class Item {
         return (long) expiryTime * 1000L;
     }
 
-    public void setExpiryTime(int e) {
-        expiryTime = VBucketStore.convertExpiryTime(e);
+    /**
+     * @return the sequence number of the mutation which stored this version,
+     *         or 0 if it isn't known
+     */
+    public long getSeqno() {
+        return seqno;
     }
 
     public long getModificationTime() {
@@ -103,31 +365,321 @@ public class Item {
         return this.keySpec;
     }
 
+    /**
+     * Get the value. If the value is kept off-heap, this returns a copy.
+     * @return the value
+     * @throws IllegalStateException if the value is kept off-heap, and was
+     *         released by its store without the caller pinning the item
+     *         (see {@link #pin()}) or retaining its value
+     */
     public byte[] getValue() {
-        return value;
+        if (chunk != null) {
+            if (!chunk.retain()) {
+                throw new IllegalStateException("The value of " + keySpec + " was released");
+            }
+            try {
+                return chunk.copyValue();
+            } finally {
+                chunk.release();
+            }
+        }
+        byte[][] s = segments;
+        if (s == null) {
+            return value;
+        }
+        // Keep the joined value, so this is only done once. The value is
+        // published before the segments are dropped, so anyone finding the
+        // segments gone also finds the value
+        byte[] joined = join(s, 0, s.length);
+        value = joined;
+        segments = null;
+        return joined;
+    }
+
+    /**
+     * Get the length of the value, without copying it
+     * @return the length, or 0 if the item has no value
+     */
+    public int getValueLength() {
+        if (chunk != null) {
+            return chunk.getValueLength();
+        }
+        byte[][] s = segments;
+        if (s != null) {
+            int length = 0;
+            for (byte[] segment : s) {
+                length += segment.length;
+            }
+            return length;
+        }
+        byte[] v = value;
+        return v == null ? 0 : v.length;
+    }
+
+    /**
+     * Get the value without joining its segments, e.g. to write it out with
+     * a gathering write. If the value is kept off-heap, this returns a copy
+     * @return the buffers holding the value, in order. The buffers must not
+     *         be modified
+     */
+    public ByteBuffer[] getValueBuffers() {
+        byte[][] s = segments;
+        if (s == null) {
+            byte[] v = getValue();
+            return v == null ? new ByteBuffer[0] : new ByteBuffer[]{ByteBuffer.wrap(v)};
+        }
+        ByteBuffer[] buffers = new ByteBuffer[s.length];
+        for (int ii = 0; ii < s.length; ++ii) {
+            buffers[ii] = ByteBuffer.wrap(s[ii]);
+        }
+        return buffers;
+    }
+
+    /**
+     * Get the value without copying it, even if it is kept off-heap. The
+     * value stays valid until {@link #releaseValueBuffers()} is called, even
+     * if the item is dropped by its store in the meantime.
+     * @return the buffers holding the value, or null if the off-heap value
+     *         was released already. The buffers must not be modified
+     */
+    public ByteBuffer[] retainValueBuffers() {
+        if (chunk == null) {
+            return getValueBuffers();
+        }
+        if (!chunk.retain()) {
+            return null;
+        }
+        return new ByteBuffer[]{chunk.valueView()};
     }
 
+    /**
+     * Let go of the value taken by {@link #retainValueBuffers()}
+     */
+    public void releaseValueBuffers() {
+        if (chunk != null) {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Get the extended attributes. If these are kept off-heap, this returns
+     * a copy
+     * @return the attributes, or null if there are none
+     * @throws IllegalStateException if the attributes are kept off-heap, and
+     *         were released (see {@link #getValue()})
+     */
     public byte[] getXattr() {
-        return xattr;
+        if (chunk == null) {
+            return xattr;
+        }
+        if (!chunk.retain()) {
+            throw new IllegalStateException("The value of " + keySpec + " was released");
+        }
+        try {
+            return chunk.copyXattr();
+        } finally {
+            chunk.release();
+        }
     }
 
-    public String getUtf8() throws CharacterCodingException {
-        if (cached_UTF8 != null) {
-            return cached_UTF8;
+    /**
+     * Get the length of the extended attributes, without copying them
+     * @return the length, or 0 if the item has none
+     */
+    public int getXattrLength() {
+        if (chunk != null) {
+            return chunk.getXattrLength();
+        }
+        byte[] x = xattr;
+        return x == null ? 0 : x.length;
+    }
+
+    /**
+     * Get the number of bytes the item accounts for in the memory quota of
+     * its node: the key, the value, the xattr and the metadata
+     * @return the size of the item
+     */
+    long getMemorySize() {
+        return METADATA_SIZE + keySpec.length() + getValueLength() + getXattrLength();
+    }
+
+    boolean isEjected() {
+        return ejected;
+    }
+
+    /**
+     * Create a version of the item without its value (and xattr) in memory,
+     * keeping only the key and the metadata. The value must be read back
+     * from the persisted copy of the item before it is used again
+     * @return the ejected version
+     */
+    Item withoutValue() {
+        return new Item(this, null, null, true);
+    }
+
+    /**
+     * Create a version of an ejected item with its value back in memory
+     * @param newValue the value
+     * @param newXattr the extended attributes, or null if there are none
+     * @return the new version
+     */
+    Item withValue(byte[] newValue, byte[] newXattr) {
+        return new Item(this, newValue, newXattr, false);
+    }
+
+    /**
+     * Create a new version of the item with another expiry time
+     * @param e the expiry time, relative or absolute
+     * @param newSeqno the sequence number of the mutation
+     * @return the new version
+     */
+    Item withExpiryTime(int e, long newSeqno) {
+        return new Item(this, VBucketStore.convertExpiryTime(e), cas, modificationTime, newSeqno, lockExpiryTime);
+    }
+
+    /**
+     * Create a locked version of the item
+     * @param e when the lock expires, relative or absolute
+     * @return the new version
+     */
+    Item withLock(int e) {
+        return new Item(this, expiryTime, cas, modificationTime, seqno, VBucketStore.convertExpiryTime(e));
+    }
+
+    /**
+     * Create an unlocked version of the item
+     * @return the new version
+     */
+    Item withoutLock() {
+        return new Item(this, expiryTime, cas, modificationTime, seqno, 0);
+    }
+
+    /**
+     * Create the version of the item which is stored by a mutation: it gets
+     * a CAS and modification time of its own, and isn't locked
+     * @param newCas the CAS of the mutation
+     * @param newSeqno the sequence number of the mutation
+     * @return the new version
+     */
+    Item withCas(long newCas, long newSeqno) {
+        return new Item(this, expiryTime, newCas, CachedClock.currentTimeMillis(), newSeqno, 0);
+    }
+
+    /**
+     * Create a new version of the item with a value appended to its own
+     * @param i the item holding the value to append
+     * @return the new version, which still needs a CAS of its own (see
+     *         {@link #withCas(long, long)})
+     */
+    Item withAppended(Item i) {
+        return withSegments(getSegments(), i.getSegments());
+    }
+
+    /**
+     * Create a new version of the item with a value prepended to its own
+     * @param i the item holding the value to prepend
+     * @return the new version, which still needs a CAS of its own (see
+     *         {@link #withCas(long, long)})
+     */
+    Item withPrepended(Item i) {
+        return withSegments(i.getSegments(), getSegments());
+    }
+
+    private byte[][] getSegments() {
+        byte[][] s = segments;
+        return s == null ? new byte[][]{getValue()} : s;
+    }
+
+    /**
+     * Create a new version of the item whose value is made up of the given
+     * segments, compacting them if there are too many
+     */
+    private Item withSegments(byte[][] first, byte[][] second) {
+        byte[][] s = new byte[first.length + second.length][];
+        System.arraycopy(first, 0, s, 0, first.length);
+        System.arraycopy(second, 0, s, first.length, second.length);
+        if (s.length > MAX_SEGMENTS) {
+            s = compact(s);
+        }
+        Item item = new Item(this, null, getXattr(), false);
+        item.segments = s;
+        return item;
+    }
+
+    /**
+     * Compact the segments of a value into at most three: the largest one,
+     * which is kept as is, and the ones before and after it joined together.
+     * This way a large document which keeps growing at either end only has
+     * the (small) additions copied, rather than the whole document.
+     */
+    private static byte[][] compact(byte[][] s) {
+        int largest = 0;
+        for (int ii = 1; ii < s.length; ++ii) {
+            if (s[ii].length > s[largest].length) {
+                largest = ii;
+            }
+        }
+        int count = 1;
+        if (largest > 0) {
+            ++count;
+        }
+        if (largest < s.length - 1) {
+            ++count;
+        }
+        byte[][] compacted = new byte[count][];
+        int idx = 0;
+        if (largest > 0) {
+            compacted[idx++] = join(s, 0, largest);
+        }
+        compacted[idx++] = s[largest];
+        if (largest < s.length - 1) {
+            compacted[idx] = join(s, largest + 1, s.length);
+        }
+        return compacted;
+    }
+
+    private static byte[] join(byte[][] s, int from, int to) {
+        if (to - from == 1) {
+            return s[from];
+        }
+        int length = 0;
+        for (int ii = from; ii < to; ++ii) {
+            length += s[ii].length;
+        }
+        byte[] dst = new byte[length];
+        int offset = 0;
+        for (int ii = from; ii < to; ++ii) {
+            System.arraycopy(s[ii], 0, dst, offset, s[ii].length);
+            offset += s[ii].length;
+        }
+        return dst;
+    }
+
+    void setReferenced() {
+        if (!referenced) {
+            referenced = true;
         }
+    }
 
+    /**
+     * Clear the referenced bit
+     * @return whether the item was referenced since the last call
+     */
+    boolean clearReferenced() {
+        if (referenced) {
+            referenced = false;
+            return true;
+        }
+        return false;
+    }
+
+    public String getUtf8() throws CharacterCodingException {
         CharsetDecoder dec = UTF8_CHARSET.newDecoder();
-        cached_UTF8 = dec.decode(ByteBuffer.wrap(value)).toString();
-        return cached_UTF8;
+        return dec.decode(ByteBuffer.wrap(getValue())).toString();
     }
 
     public String getBase64() {
-        if (cached_B64 != null) {
-            return cached_B64;
-        } else {
-            cached_B64 = Base64.encode(value);
-            return cached_B64;
-        }
+        return Base64.encode(getValue());
     }
 
     public long getCas() {
@@ -141,15 +693,6 @@ public class Item {
         return cas;
     }
 
-    void setCas(long l) {
-        modificationTime = new Date().getTime();
-        cas = l;
-    }
-
-    void setLockExpiryTime(int e) {
-        lockExpiryTime = VBucketStore.convertExpiryTime(e);
-    }
-
     int getLockExpiryTime() {
         return lockExpiryTime;
     }
@@ -159,46 +702,19 @@ public class Item {
             return false;
         }
 
-        long now = new Date().getTime() / 1000 + Info.getClockOffset();
+        long now = CachedClock.currentTimeSeconds();
         return now <= lockExpiryTime;
     }
 
     /**
-     * Given a cas, ensure that the item is unlocked.
-     * Will succeed if cas matches the existing cas, or if the item is not
-     * locked
+     * Check if an operation with the given cas may modify the item. The
+     * item itself stays locked; the version stored by the operation isn't
      * @param cas the cas value used to perform the operation
-     * @return true if item is *not* locked.
+     * @return true if the item is not locked, or the cas is the one handed
+     *         out with the lock
      */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-    public boolean ensureUnlocked(long cas)
-    {
-        if (cas == this.cas) {
-            lockExpiryTime = 0;
-            return true;
-        } else {
-            return !isLocked();
-        }
+    public boolean isUnlockedFor(long cas) {
+        return cas == this.cas || !isLocked();
     }
-
-    public void append(Item i) {
-        byte[] s1 = value;
-        byte[] s2 = i.getValue();
-        byte[] dst = new byte[s1.length + s2.length];
-
-        System.arraycopy(s1, 0, dst, 0, s1.length);
-        System.arraycopy(s2, 0, dst, s1.length, s2.length);
-        value = dst;
-    }
-
-    public void prepend(Item i) {
-        byte[] s1 = value;
-        byte[] s2 = i.getValue();
-        byte[] dst = new byte[s1.length + s2.length];
-
-        System.arraycopy(s2, 0, dst, 0, s2.length);
-        System.arraycopy(s1, 0, dst, s2.length, s1.length);
-        value = dst;
-    }
-
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the memory used by the items of a node within its quota.
+ *
+ * Every item accounts for its key, value, xattr and (an estimate of) its
+ * metadata. Once the memory used goes above the high watermark, the pager
+ * frees memory until it is down to the low watermark again:
+ *
+ * <ul>
+ *     <li>Memcached buckets evict whole items, like memcached does.</li>
+ *     <li>Couchbase buckets eject the values of items which have been
+ *     persisted, keeping their keys and metadata in memory. An ejected
+ *     value is fetched back from disk when the item is read again.</li>
+ * </ul>
+ *
+ * Items are picked with a clock (not-recently-used) sweep over the
+ * vBuckets: an item which was looked up since the hand last passed it only
+ * loses its referenced bit, and is paged out the next time around.
+ *
+ * A store which doesn't fit under the quota even after paging fails with
+ * ENOMEM (memcached) or ETMPFAIL (Couchbase), as the real servers do.
+ */
+class ItemPager {
+    static final int HIGH_WATERMARK_PERCENT = 85;
+    static final int LOW_WATERMARK_PERCENT = 75;
+
+    private final Storage storage;
+    private final VBucketStore store;
+    private final long quota;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final boolean evictItems;
+
+    private final AtomicLong memUsed = new AtomicLong();
+    private final AtomicLong numValueEjects = new AtomicLong();
+    private final AtomicLong numEvictions = new AtomicLong();
+    private final AtomicLong numBgFetched = new AtomicLong();
+    /** The vBucket the clock hand points at */
+    private int hand;
+
+    /**
+     * @param storage the storage the items are persisted to
+     * @param store the items to page out
+     * @param quota the maximum number of bytes the items may use, or 0 for no limit
+     * @param evictItems true to evict whole items (memcached buckets),
+     *                   false to eject only the values of persisted items
+     */
+    ItemPager(Storage storage, VBucketStore store, long quota, boolean evictItems) {
+        this.storage = storage;
+        this.store = store;
+        this.quota = quota;
+        this.highWatermark = quota / 100 * HIGH_WATERMARK_PERCENT;
+        this.lowWatermark = quota / 100 * LOW_WATERMARK_PERCENT;
+        this.evictItems = evictItems;
+    }
+
+    void add(long delta) {
+        memUsed.addAndGet(delta);
+    }
+
+    void reset() {
+        memUsed.set(0);
+    }
+
+    long getMemUsed() {
+        return memUsed.get();
+    }
+
+    /**
+     * Make room for a new item, paging out other items if needed
+     * @param size the memory the new item is going to use
+     * @return SUCCESS if the item may be stored, or the error to fail the
+     *         store with if it doesn't fit
+     */
+    ErrorCode reserve(long size) {
+        if (quota == 0) {
+            return ErrorCode.SUCCESS;
+        }
+        if (memUsed.get() + size > highWatermark) {
+            page(size);
+        }
+        if (memUsed.get() + size > quota) {
+            return evictItems ? ErrorCode.ENOMEM : ErrorCode.ETMPFAIL;
+        }
+        return ErrorCode.SUCCESS;
+    }
+
+    /**
+     * Page out items if the memory used went above the high watermark by
+     * a mutation which may not fail (such as one received from the master
+     * of a vBucket)
+     */
+    void check() {
+        if (quota != 0 && memUsed.get() > highWatermark) {
+            page(0);
+        }
+    }
+
+    private synchronized void page(long size) {
+        long target = Math.max(0, lowWatermark - size);
+        int numVBuckets = store.getNumPartitions();
+        // Two rounds: the first one may only clear the referenced bits
+        for (int ii = 0; ii < numVBuckets * 2 && memUsed.get() > target; ++ii) {
+            int vb = hand;
+            hand = (hand + 1) % numVBuckets;
+            for (Item item : store.getPartition(vb).values()) {
+                if (memUsed.get() <= target) {
+                    break;
+                }
+                if (item.clearReferenced()) {
+                    continue;
+                }
+                if (evictItems) {
+                    if (store.removeItem(item)) {
+                        numEvictions.incrementAndGet();
+                    }
+                } else if (!item.isEjected() && item.getValueLength() + item.getXattrLength() > 0
+                        && isClean(item)) {
+                    if (store.ejectValue(item)) {
+                        numValueEjects.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An item is clean (and its value may be ejected) once the very same
+     * version of it has been persisted
+     */
+    private boolean isClean(Item item) {
+        return storage.isPersisted(item);
+    }
+
+    /**
+     * Find the persisted copy of an ejected item, to read its value back from
+     * @param item the item
+     * @return the persisted item, or null if it is gone
+     */
+    Item fetch(Item item) {
+        Item persisted = findPersisted(item);
+        if (persisted != null) {
+            numBgFetched.incrementAndGet();
+        }
+        return persisted;
+    }
+
+    /**
+     * Find the persisted copy of an ejected item, without counting it as a
+     * background fetch
+     * @param item the item
+     * @return the persisted item, or null if it is gone
+     */
+    Item findPersisted(Item item) {
+        Item persisted = storage.getPersisted(item.getKeySpec());
+        return persisted != null && persisted.getCasReal() == item.getCasReal() ? persisted : null;
+    }
+
+    void addStats(Map<String, String> stats) {
+        stats.put("mem_used", Long.toString(memUsed.get()));
+        stats.put("ep_max_size", Long.toString(quota));
+        stats.put("ep_mem_high_wat", Long.toString(highWatermark));
+        stats.put("ep_mem_low_wat", Long.toString(lowWatermark));
+        stats.put("ep_num_value_ejects", Long.toString(numValueEjects.get()));
+        stats.put("ep_bg_fetched", Long.toString(numBgFetched.get()));
+        stats.put("evictions", Long.toString(numEvictions.get()));
+    }
+}
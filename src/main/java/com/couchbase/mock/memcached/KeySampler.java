@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The keys of a vBucket in a dense array, so that a random one can be
+ * picked in constant time. A key is removed by moving the last key of the
+ * array into its slot.
+ *
+ * The sampler is not updated atomically with the partition it follows:
+ * after changing the partition, a writer calls {@link #update(KeySpec, boolean)}
+ * with whatever the partition holds for the key by then. Whichever writer
+ * gets there last sees the final state of the key, so the two converge.
+ */
+class KeySampler {
+    private static final int INITIAL_CAPACITY = 16;
+    private KeySpec[] keys = new KeySpec[INITIAL_CAPACITY];
+    private final Map<KeySpec, Integer> positions = new HashMap<KeySpec, Integer>();
+    private int size;
+
+    /**
+     * Add or remove a key
+     * @param ks the key
+     * @param present whether the partition holds the key
+     */
+    synchronized void update(KeySpec ks, boolean present) {
+        Integer pos = positions.get(ks);
+        if (present && pos == null) {
+            if (size == keys.length) {
+                KeySpec[] grown = new KeySpec[keys.length * 2];
+                System.arraycopy(keys, 0, grown, 0, size);
+                keys = grown;
+            }
+            keys[size] = ks;
+            positions.put(ks, size);
+            ++size;
+        } else if (!present && pos != null) {
+            positions.remove(ks);
+            --size;
+            if (pos != size) {
+                keys[pos] = keys[size];
+                positions.put(keys[pos], pos);
+            }
+            keys[size] = null;
+        }
+    }
+
+    /**
+     * Pick a random key
+     * @param random the generator to use
+     * @return the key, or null if there are none
+     */
+    synchronized KeySpec sample(Random random) {
+        return size == 0 ? null : keys[random.nextInt(size)];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
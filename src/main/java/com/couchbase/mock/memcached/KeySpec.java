@@ -15,16 +15,127 @@
  */
 package com.couchbase.mock.memcached;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * This class is used as a key for our Items.
+ *
+ * The key is kept as the raw bytes received from the client, so that it
+ * doesn't have to be decoded for every request. Its hash code is computed
+ * once when the key is created, and its CRC (which determines the vBucket
+ * of the key) the first time it is needed. The key is only decoded into a
+ * String when asked for.
+ *
  * @author Mark Nunberg
  */
 public class KeySpec {
+    private static final byte[] EMPTY = new byte[0];
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int ii = 0; ii < 256; ii++) {
+            int crc = ii;
+            for (int jj = 0; jj < 8; jj++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xEDB88320 : crc >>> 1;
+            }
+            CRC_TABLE[ii] = crc;
+        }
+    }
+
     public final short vbId;
-    public final String key;
+    private final byte[] bytes;
+    private final int hash;
+    private String key;
+    private volatile boolean haveCrc;
+    private int crc;
+
     public KeySpec(String key, short vbId) {
+        this(key == null ? EMPTY : key.getBytes(), vbId);
         this.key = key;
+    }
+
+    /**
+     * Create a key from its raw bytes
+     * @param bytes the key. The array is used as is, so it must not be
+     *              modified afterwards
+     * @param vbId the vBucket of the key
+     */
+    public KeySpec(byte[] bytes, short vbId) {
+        this.bytes = bytes;
         this.vbId = vbId;
+        this.hash = 19 * (19 * 5 + vbId) + Arrays.hashCode(bytes);
+    }
+
+    protected KeySpec(KeySpec other) {
+        this.bytes = other.bytes;
+        this.vbId = other.vbId;
+        this.hash = other.hash;
+        this.key = other.key;
+    }
+
+    /**
+     * Create a key from a slice of a buffer (such as the receive buffer a
+     * command was read into). The bytes are copied, but not decoded, and
+     * the position of the buffer is left untouched.
+     * @param buffer the buffer holding the key
+     * @param offset the absolute offset of the key within the buffer
+     * @param length the length of the key
+     * @param vbId the vBucket of the key
+     * @return the key
+     */
+    public static KeySpec fromBuffer(ByteBuffer buffer, int offset, int length, short vbId) {
+        if (length == 0) {
+            return new KeySpec(EMPTY, vbId);
+        }
+        byte[] bytes = new byte[length];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, bytes, 0, length);
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + length);
+            view.position(offset);
+            view.get(bytes);
+        }
+        return new KeySpec(bytes, vbId);
+    }
+
+    /**
+     * @return the key, decoded with the platform charset
+     */
+    public String getKey() {
+        if (key == null) {
+            key = new String(bytes);
+        }
+        return key;
+    }
+
+    /**
+     * @return the raw key. The array is shared and must not be modified
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Get the CRC32 checksum of the key, which is what the key is mapped
+     * to a vBucket by
+     * @return the checksum
+     */
+    public int getCrc() {
+        if (!haveCrc) {
+            int value = 0xFFFFFFFF;
+            for (byte b : bytes) {
+                value = (value >>> 8) ^ CRC_TABLE[(value ^ b) & 0xff];
+            }
+            crc = ~value;
+            haveCrc = true;
+        }
+        return crc;
     }
 
     @Override
@@ -39,16 +150,13 @@ public class KeySpec {
 
         if (KeySpec.class.isInstance(other)) {
             KeySpec ksOther = (KeySpec)other;
-            return ksOther.vbId == vbId && ksOther.key.equals(key);
+            return ksOther.vbId == vbId && ksOther.hash == hash && Arrays.equals(ksOther.bytes, bytes);
         }
         return false;
     }
 
     @Override
     public final int hashCode() {
-        int hash = 5;
-        hash = 19 * hash + this.vbId;
-        hash = 19 * hash + ( this.key != null ? this.key.hashCode() : 0 );
         return hash;
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the spirit of
+ * HdrHistogram: every power of two is split into {@value #SUB_BUCKETS}
+ * equally sized buckets, so the relative error of a reported value is at
+ * most 12.5% no matter how large it is. Values are in microseconds.
+ *
+ * Recording a value only takes a couple of atomic increments, so a
+ * histogram may be shared by all the reactor threads of a server.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return bucketLowerBound(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Record a single value
+     * @param micros the latency in microseconds. Negative values are
+     *               recorded as 0
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add all of the values recorded by another histogram to this one
+     * @param other the histogram to merge
+     */
+    public void add(LatencyHistogram other) {
+        for (int ii = 0; ii < NUM_BUCKETS; ++ii) {
+            long n = other.counts.get(ii);
+            if (n != 0) {
+                counts.addAndGet(ii, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get())) {
+            if (max.compareAndSet(current, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values
+     * fall. Since the values are bucketed this is the upper bound of the
+     * bucket holding that value (but never more than the largest value seen)
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value at that percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int ii = 0; ii < NUM_BUCKETS; ++ii) {
+            seen += counts.get(ii);
+            if (seen >= wanted) {
+                return Math.min(bucketUpperBound(ii), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Get a summary of the histogram
+     * @return an object with the count, mean, max and a few percentiles
+     */
+    public JsonObject getSummary() {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("count", getCount());
+        obj.addProperty("mean", getMean());
+        obj.addProperty("p50", getPercentile(50));
+        obj.addProperty("p90", getPercentile(90));
+        obj.addProperty("p99", getPercentile(99));
+        obj.addProperty("p999", getPercentile(99.9));
+        obj.addProperty("max", getMax());
+        return obj;
+    }
+
+    /**
+     * Get the summary along with all of the non-empty buckets. Each bucket
+     * is an array of the lowest value, the highest value and the number of
+     * values recorded in it.
+     * @return the full histogram
+     */
+    public JsonObject toJson() {
+        JsonObject obj = getSummary();
+        JsonArray buckets = new JsonArray();
+        for (int ii = 0; ii < NUM_BUCKETS; ++ii) {
+            long n = counts.get(ii);
+            if (n == 0) {
+                continue;
+            }
+            JsonArray bucket = new JsonArray();
+            bucket.add(new JsonPrimitive(bucketLowerBound(ii)));
+            bucket.add(new JsonPrimitive(bucketUpperBound(ii)));
+            bucket.add(new JsonPrimitive(n));
+            buckets.add(bucket);
+        }
+        obj.add("buckets", buckets);
+        return obj;
+    }
+}
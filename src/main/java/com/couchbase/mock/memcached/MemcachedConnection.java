@@ -23,55 +23,232 @@ import com.couchbase.mock.memcached.protocol.CommandFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
- * Class representing a single <i>client</i> connection to the server
+ * Class representing a single <i>client</i> connection to the server.
+ *
+ * A connection is pinned to a single {@link MemcachedReactor}, and must only
+ * be used from that reactor's thread.
  */
 public class MemcachedConnection {
 
+    /** Size of the per-connection receive buffer */
+    static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    /** Size of the chunks small responses are copied into */
+    static final int OUTPUT_CHUNK_SIZE = 16 * 1024;
+    private static final int HEADER_LENGTH = 24;
+
+    private final MemcachedServer server;
+    /** The reactor serving the connection, if any */
+    private final MemcachedReactor reactor;
     private final BinaryProtocolHandler protocolHandler;
-    private final byte header[];
     private BinaryCommand command;
-    private final ByteBuffer input;
-    private List<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+    private final BufferPool receivePool;
+    private ByteBuffer input;
+    private final OutputContext output;
+    private final CommandTimings timings;
+    private final ServerStats stats;
+    private final CommandLog commandLog;
+    /** The status of the last response sent, or -1 if none was sent for the current command */
+    private int lastStatus = -1;
+    /** When (in ns) the data currently in the receive buffer arrived */
+    private long receiveTime;
+    /**
+     * The commands whose responses are still (partially) pending, as a
+     * ring of the offset in the output just past their response, when they
+     * were executed and their opcode
+     */
+    private long[] flushOffsets = new long[16];
+    private long[] flushStarts = new long[16];
+    private int[] flushOpcodes = new int[16];
+    private int flushHead;
+    private int flushCount;
+    /** The pending output the server has been told about */
+    private long reportedPending;
+    private boolean throttled;
+    /** Set if commands were left in the receive buffer because we got throttled */
+    private boolean inputHeldBack;
+    /** Set while the output is held back to simulate a network hiccup */
+    private boolean writeDelayed;
     private boolean authenticated;
     private boolean closed;
+    private boolean released;
     private final MutationInfoWriter miw = new MutationInfoWriter();
+    /** Set once the connection was turned into a DCP connection */
+    private DcpProducer dcpProducer;
     private boolean[] supportedFeatures = new boolean[BinaryHelloCommand.Feature.MAX.getValue()];
 
     public MemcachedConnection(MemcachedServer server) {
+        this(server, null, new BufferPool(RECEIVE_BUFFER_SIZE, false, 1), new BufferPool(OUTPUT_CHUNK_SIZE, false, 1), null);
+    }
+
+    MemcachedConnection(MemcachedServer server, MemcachedReactor reactor, BufferPool receivePool, BufferPool outputPool, CommandLog commandLog) {
+        this.server = server;
+        this.reactor = reactor;
         closed = false;
         authenticated = server.getBucket().getPassword().length() <= 0;
-        header = new byte[24];
-        input = ByteBuffer.wrap(header);
+        this.receivePool = receivePool;
+        output = new OutputContext(outputPool);
         protocolHandler = server.getProtocolHandler();
+        timings = server.getTimings();
+        this.commandLog = commandLog;
+        stats = server.getTrafficStats();
+        receiveTime = System.nanoTime();
+        stats.increment(ServerStats.Counter.CURR_CONNECTIONS);
+        stats.increment(ServerStats.Counter.TOTAL_CONNECTIONS);
     }
 
     /**
-     * Attempt to process a single command from the input buffer. Note this does
+     * Process all the complete commands which have been received so far. Note this does
      * not actually read from the socket.
      *
+     * Commands are parsed and executed straight out of the receive buffer, without
+     * copying their bodies. A frame which has only partially been received stays in
+     * the buffer until the rest of it arrives, unless it is too large to ever fit; the
+     * rest of such a frame is read directly into the command (see {@link #getInputBuffer()}).
+     * Once all buffered data has been consumed the receive buffer is given back to the pool.
+     *
+     * Processing stops when the connection gets throttled because too much output is
+     * pending (see {@link #updateThrottle()}); the rest of the buffered commands are
+     * processed when step is called again after it has been resumed.
+     *
      * @throws IOException if the client has been closed
      */
     public void step() throws IOException {
         if (closed) {
             throw new ClosedChannelException();
         }
-        if (input.position() == header.length) {
-            if (command == null) {
-                command = CommandFactory.create(input);
+
+        if (command != null) {
+            if (!command.complete()) {
+                return;
+            }
+            BinaryCommand cmd = command;
+            command = null;
+            execute(cmd);
+        }
+
+        inputHeldBack = false;
+        if (input == null) {
+            return;
+        }
+
+        input.flip();
+        try {
+            while (!closed && input.remaining() >= HEADER_LENGTH) {
+                if (throttled) {
+                    inputHeldBack = true;
+                    break;
+                }
+
+                long frameLength = HEADER_LENGTH + (input.getInt(input.position() + 8) & 0xffffffffL);
+                if (frameLength > input.remaining() && frameLength <= input.capacity()) {
+                    // Wait for the rest of the frame to arrive
+                    break;
+                }
+
+                ByteBuffer header = input.slice();
+                header.limit(HEADER_LENGTH);
+                input.position(input.position() + HEADER_LENGTH);
+                BinaryCommand cmd = CommandFactory.create(header, input);
+                if (!cmd.complete()) {
+                    // The remainder of the body is read directly into the command
+                    command = cmd;
+                    break;
+                }
+                execute(cmd);
+                // Only look at our own output here; the server wide total is
+                // updated once the whole batch has been processed
+                if (server.isAboveHighWatermark(output.getPendingBytes(), 0)) {
+                    updateThrottle();
+                }
+            }
+        } finally {
+            input.compact();
+            if (input.position() == 0) {
+                receivePool.release(input);
+                input = null;
+            }
+        }
+    }
+
+    private void execute(BinaryCommand cmd) throws IOException {
+        long start = System.nanoTime();
+        timings.recordQueued(cmd.getOpcode(), start - receiveTime);
+        long offset = output.getWrittenBytes() + output.getPendingBytes();
+        lastStatus = -1;
+        cmd.process();
+        protocolHandler.execute(cmd, this);
+        stats.record(cmd, lastStatus);
+        if (commandLog != null && server.isLoggingCommands()) {
+            commandLog.append(start, cmd.getOpcode() & 0xff, cmd.getVBucketId(), cmd.getKeySpec().hashCode(), lastStatus);
+        }
+        long end = output.getWrittenBytes() + output.getPendingBytes();
+        if (end != offset) {
+            addFlushMarker(end, start, cmd.getOpcode());
+        }
+    }
+
+    private void addFlushMarker(long offset, long start, int opcode) {
+        if (flushCount == flushOffsets.length) {
+            int size = flushOffsets.length * 2;
+            long[] offsets = new long[size];
+            long[] starts = new long[size];
+            int[] opcodes = new int[size];
+            for (int ii = 0; ii < flushCount; ++ii) {
+                int idx = (flushHead + ii) & (flushOffsets.length - 1);
+                offsets[ii] = flushOffsets[idx];
+                starts[ii] = flushStarts[idx];
+                opcodes[ii] = flushOpcodes[idx];
             }
+            flushOffsets = offsets;
+            flushStarts = starts;
+            flushOpcodes = opcodes;
+            flushHead = 0;
+        }
+        int idx = (flushHead + flushCount) & (flushOffsets.length - 1);
+        flushOffsets[idx] = offset;
+        flushStarts[idx] = start;
+        flushOpcodes[idx] = opcode;
+        ++flushCount;
+    }
 
-            if (command.complete()) {
-                command.process();
-                protocolHandler.execute(command, this);
-                command = null;
-                input.rewind();
+    /**
+     * Write the pending output to the socket, and time the commands whose
+     * responses have now been sent completely
+     *
+     * @param channel the channel to write to
+     * @param limit the maximum number of bytes to write
+     * @return the number of bytes written
+     * @throws IOException if an error occurs while writing
+     */
+    long write(GatheringByteChannel channel, long limit) throws IOException {
+        long nw = output.write(channel, limit);
+        if (nw > 0) {
+            stats.add(ServerStats.Counter.BYTES_WRITTEN, nw);
+        }
+        if (flushCount > 0 && nw > 0) {
+            long now = System.nanoTime();
+            long written = output.getWrittenBytes();
+            while (flushCount > 0 && flushOffsets[flushHead] <= written) {
+                timings.recordFlushed(flushOpcodes[flushHead], now - flushStarts[flushHead]);
+                flushHead = (flushHead + 1) & (flushOffsets.length - 1);
+                --flushCount;
             }
         }
+        return nw;
+    }
+
+    /**
+     * Note that new data has been read into the input buffer
+     * @param nanos the time (as per {@link System#nanoTime()}) it was read
+     * @param nr the number of bytes read
+     */
+    void markReceived(long nanos, int nr) {
+        receiveTime = nanos;
+        stats.add(ServerStats.Counter.BYTES_READ, nr);
     }
 
     /**
@@ -79,11 +256,58 @@ public class MemcachedConnection {
      * Note that the actual I/O is not performed in this method
      * @param response the response to enqueue
      */
-    public synchronized void sendResponse(BinaryResponse response) {
-        if (pending == null) {
-            pending = new LinkedList<ByteBuffer>();
+    public void sendResponse(BinaryResponse response) {
+        lastStatus = response.getStatus();
+        enqueue(response);
+    }
+
+    /**
+     * Places a message the server sends of its own accord (such as the
+     * messages of a DCP stream) into the output buffer. Unlike
+     * {@link #sendResponse(BinaryResponse)}, this is not accounted to the
+     * command being executed.
+     * @param message the message to enqueue
+     */
+    void sendMessage(BinaryResponse message) {
+        enqueue(message);
+    }
+
+    private void enqueue(final BinaryResponse response) {
+        output.add(response.getBuffer());
+        response.releaseBuffer();
+        ByteBuffer[] payload = response.getPayload();
+        if (payload != null) {
+            for (ByteBuffer bb : payload) {
+                output.add(bb);
+            }
+            output.whenSent(new Runnable() {
+                @Override
+                public void run() {
+                    response.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Turn this connection into a DCP connection
+     * @param name the name of the connection
+     * @return the producer of the connection
+     */
+    DcpProducer openDcp(String name) {
+        if (dcpProducer == null) {
+            dcpProducer = new DcpProducer(server, this, reactor, name);
+            server.addDcpProducer(dcpProducer);
         }
-        pending.add(response.getBuffer());
+        return dcpProducer;
+    }
+
+    /**
+     * @return the producer of the connection, or null if this isn't a DCP
+     *         connection
+     */
+    DcpProducer getDcpProducer() {
+        return dcpProducer;
     }
 
     /**
@@ -91,62 +315,103 @@ public class MemcachedConnection {
      * @return true  there are pending responses
      */
     boolean hasOutput() {
-        if (pending == null) {
-            return false;
-        }
+        return output.hasRemaining();
+    }
 
-        if (pending.isEmpty()) {
-            return false;
+    /**
+     * Tell the server how much output is pending on this connection, and
+     * decide whether it should stop (or may resume) processing requests.
+     * A connection is throttled once its own pending output or that of the
+     * whole server goes above the high watermark, and stays throttled until
+     * both are down to the low watermark again.
+     *
+     * @return true if the connection is throttled
+     */
+    boolean updateThrottle() {
+        long pending = output.getPendingBytes();
+        long nodePending = server.addOutputPending(pending - reportedPending);
+        reportedPending = pending;
+        if (throttled) {
+            throttled = !server.isBelowLowWatermark(pending, nodePending);
+        } else if (server.isAboveHighWatermark(pending, nodePending)) {
+            throttled = true;
+            server.recordThrottle();
         }
+        return throttled;
+    }
+
+    /**
+     * Check if this connection has stopped processing requests until its
+     * output drains
+     * @return true if the connection is throttled
+     */
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Check if there are commands which have been received, but were not
+     * processed because the connection got throttled
+     * @return true if {@link #step()} should be called once the connection
+     *         is no longer throttled
+     */
+    boolean hasHeldBackInput() {
+        return inputHeldBack;
+    }
+
+    boolean isWriteDelayed() {
+        return writeDelayed;
+    }
+
+    void setWriteDelayed(boolean writeDelayed) {
+        this.writeDelayed = writeDelayed;
+    }
 
-        if (!pending.get(0).hasRemaining()) {
-            return false;
+    /**
+     * Release the resources held by a connection whose socket has been closed
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            stats.add(ServerStats.Counter.CURR_CONNECTIONS, -1);
+        }
+        closed = true;
+        if (dcpProducer != null) {
+            dcpProducer.close();
+        }
+        server.addOutputPending(-reportedPending);
+        reportedPending = 0;
+        output.discard();
+        if (input != null) {
+            receivePool.release(input);
+            input = null;
         }
-        return true;
     }
 
     /**
-     * Gets the raw input buffer. This may be used to add additional request data
+     * Gets the raw input buffer. This may be used to add additional request data.
+     * This is either the connection's receive buffer (which is taken from the pool
+     * if the connection doesn't hold one), or the body of a command which was too
+     * large to be received in one go.
      * @return The input buffer
      */
     public ByteBuffer getInputBuffer() {
-        if (command == null) {
-            return input;
-        } else {
+        if (command != null) {
             return command.getInputBuffer();
         }
+        if (input == null) {
+            input = receivePool.acquire();
+        }
+        return input;
     }
 
     /**
-     * Temporarily borrow the head chunk of the output buffers. This may be used
+     * Get the output which is pending for this connection. This may be used
      * to efficiently send responses or perform socket/buffer manipulation.
-     *
-     * When done with the context, ensure to call {@link #returnOutputContext(OutputContext)}
      * @return The output context
      */
-    public OutputContext borrowOutputContext() {
-        if (!hasOutput()) {
-            return null;
-        }
-
-        OutputContext ctx = new OutputContext(pending);
-        pending = null;
-        return ctx;
-    }
-
-    /**
-     * Re-transfer ownership of a given output buffer to the connection
-     * @param ctx An OutputContext previously returned by {@link #borrowOutputContext()}
-     */
-    public void returnOutputContext(OutputContext ctx) {
-        List<ByteBuffer> remaining = ctx.releaseRemaining();
-        if (pending == null) {
-            pending = remaining;
-        } else {
-            List<ByteBuffer> tmp = pending;
-            pending = remaining;
-            pending.addAll(tmp);
-        }
+    OutputContext getOutputContext() {
+        return output;
     }
 
     /**
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reactor owns a single {@link Selector} and performs all of the I/O for
+ * the connections which have been handed to it.
+ *
+ * Every {@link MemcachedServer} has one or more reactors. The first reactor
+ * also listens for new connections and runs on the server's own thread, while
+ * any additional reactors run on threads of their own. Once accepted, a
+ * connection is assigned to one of the reactors and stays pinned to it for the
+ * rest of its lifetime, so a {@link MemcachedConnection} is only ever touched
+ * by a single thread.
+ */
+class MemcachedReactor implements Runnable {
+    /** Upper bound on the number of reads performed for a single read event */
+    private static final int MAX_READS_PER_EVENT = 16;
+    /** The number of unused receive buffers kept around for reuse */
+    private static final int MAX_IDLE_BUFFERS = 64;
+    /** How often (in ms) throttled connections are checked for whether they may resume */
+    private static final long THROTTLE_RECHECK_INTERVAL = 10;
+    /** The resolution (in ms) of the delays used to simulate network hiccups */
+    private static final long TIMER_TICK = 5;
+    /** How often (in ms) DCP connections are given a chance to send their NOOPs */
+    private static final long DCP_TICK = 100;
+
+    private final MemcachedServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+    private final BufferPool receivePool;
+    private final BufferPool outputPool;
+    /** Connections which have stopped reading because too much output is pending */
+    private final Set<SelectionKey> throttled = new HashSet<SelectionKey>();
+    /** Connections whose output is delayed by a hiccup */
+    private final TimerWheel<SelectionKey> delayedWrites = new TimerWheel<SelectionKey>(TIMER_TICK, 512, now());
+    private final List<SelectionKey> expired = new ArrayList<SelectionKey>();
+    /** The DCP connections */
+    private final Set<SelectionKey> streaming = new HashSet<SelectionKey>();
+    /** Set when one of the DCP connections may have something new to send */
+    private final AtomicBoolean streamsNotified = new AtomicBoolean();
+    /** The commands executed by the connections of this reactor, if logging is enabled */
+    private final CommandLog commandLog;
+
+    MemcachedReactor(MemcachedServer server, boolean directBuffers, int commandLogSize) throws IOException {
+        this.server = server;
+        commandLog = new CommandLog(commandLogSize);
+        selector = Selector.open();
+        receivePool = new BufferPool(MemcachedConnection.RECEIVE_BUFFER_SIZE, directBuffers, MAX_IDLE_BUFFERS);
+        outputPool = new BufferPool(MemcachedConnection.OUTPUT_CHUNK_SIZE, directBuffers, MAX_IDLE_BUFFERS);
+    }
+
+    /**
+     * Make this reactor accept new connections from the given server socket
+     * @param channel the listening socket
+     * @throws ClosedChannelException if the socket was closed
+     */
+    void listen(ServerSocketChannel channel) throws ClosedChannelException {
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hand a newly accepted connection over to this reactor. This may be
+     * called from any thread; the channel is registered with the selector
+     * from within the reactor's own thread.
+     *
+     * @param channel the connected (non-blocking) channel
+     */
+    void addChannel(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, new MemcachedConnection(server, this, receivePool, outputPool, commandLog));
+            } catch (ClosedChannelException ex) {
+                // Client went away before we got to it
+            }
+        }
+    }
+
+    /**
+     * Tell the reactor that a DCP stream of one of its connections has
+     * something new to send. This may be called from any thread; multiple
+     * calls before the reactor gets to it only wake it up once.
+     */
+    void wakeupStreams() {
+        if (streamsNotified.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                registerNewChannels();
+                try {
+                    if (streamsNotified.get()) {
+                        selector.selectNow();
+                    } else if (!delayedWrites.isEmpty()) {
+                        selector.select(TIMER_TICK);
+                    } else if (!throttled.isEmpty()) {
+                        selector.select(THROTTLE_RECHECK_INTERVAL);
+                    } else if (!streaming.isEmpty()) {
+                        selector.select(DCP_TICK);
+                    } else {
+                        selector.select();
+                    }
+                    if (!server.isActive()) {
+                        // server is suspended: ignore all events
+                        selector.selectedKeys().clear();
+                        continue;
+                    }
+                } catch (IOException ex) {
+                    continue;
+                }
+
+                try {
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        handleClient(key);
+                    }
+                    resumeDelayedWrites();
+                    recheckThrottled();
+                    produceStreams();
+                } catch (IOException e) {
+                    Logger.getLogger(MemcachedReactor.class.getName()).log(Level.SEVERE, null, e);
+                }
+            }
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Logger.getLogger(MemcachedReactor.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Write the pending output, applying the hiccup and truncate settings of
+     * the server. A hiccup sends the first part of the output and then stops
+     * writing to the connection until the hiccup time has passed; the rest of
+     * the output is then sent by {@link #resumeDelayedWrites()}. Other
+     * connections are not affected in the meantime.
+     */
+    private void handleClientWrite(SelectionKey key, SocketChannel channel, MemcachedConnection client) throws IOException {
+        if (client.isWriteDelayed()) {
+            return;
+        }
+
+        long limit = Long.MAX_VALUE;
+        int truncateLimit = server.getTruncateLimit();
+        int hiccupOffset = server.getHiccupOffset();
+        int hiccupTime = server.getHiccupTime();
+        if (truncateLimit > 0) {
+            limit = truncateLimit;
+        } else if (hiccupOffset > 0) {
+            limit = hiccupOffset;
+        }
+
+        client.write(channel, limit);
+        if (hiccupOffset > 0) {
+            if (hiccupTime > 0) {
+                client.setWriteDelayed(true);
+                delayedWrites.schedule(now() + hiccupTime, key);
+            } else {
+                client.write(channel, Long.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Send the rest of the output of the connections whose hiccup is over
+     */
+    private void resumeDelayedWrites() throws IOException {
+        if (delayedWrites.isEmpty()) {
+            return;
+        }
+
+        delayedWrites.expire(now(), expired);
+        for (SelectionKey key : expired) {
+            if (!key.isValid()) {
+                continue;
+            }
+            MemcachedConnection client = (MemcachedConnection) key.attachment();
+            client.setWriteDelayed(false);
+            try {
+                client.write((SocketChannel) key.channel(), Long.MAX_VALUE);
+                flush(key, client);
+            } catch (IOException ex) {
+                closeClient(key, client, ex);
+                continue;
+            }
+            updateInterestOps(key, client);
+        }
+        expired.clear();
+    }
+
+    private void handleClientRead(SocketChannel channel, MemcachedConnection client) throws IOException {
+        // Keep going for as long as the socket fills our buffers; every
+        // complete command received is executed before reading again
+        for (int ii = 0; ii < MAX_READS_PER_EVENT && !client.isThrottled(); ++ii) {
+            ByteBuffer buffer = client.getInputBuffer();
+            int space = buffer.remaining();
+            if (space == 0) {
+                // The input received is held back; nothing more can be read
+                // until it is processed
+                break;
+            }
+            int nr = channel.read(buffer);
+            if (nr == -1) {
+                channel.close();
+                throw new ClosedChannelException();
+            }
+            if (nr > 0) {
+                client.markReceived(System.nanoTime(), nr);
+            }
+            client.step();
+            if (nr < space) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Send as much of the pending output as the socket accepts. If that
+     * lifts the throttling of the connection, process the commands which
+     * were received in the meantime.
+     */
+    private void flush(SelectionKey key, MemcachedConnection client) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (client.hasOutput()) {
+            handleClientWrite(key, channel, client);
+        }
+        while (!client.updateThrottle() && client.hasHeldBackInput()) {
+            client.step();
+            if (client.hasOutput()) {
+                handleClientWrite(key, channel, client);
+            }
+        }
+    }
+
+    private void handleClient(SelectionKey key) throws IOException {
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
+        if (client == null) {
+            server.acceptNewClient();
+            return;
+        }
+
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isReadable()) {
+                handleClientRead(channel, client);
+            }
+
+            // Send the responses right away rather than waiting for the
+            // selector to tell us the socket is writable (it usually is)
+            flush(key, client);
+        } catch (IOException ex) {
+            closeClient(key, client, ex);
+            return;
+        }
+
+        updateInterestOps(key, client);
+    }
+
+    /**
+     * Give throttled connections without any pending output of their own (and
+     * which therefore won't get any write events) a chance to resume once the
+     * output of the other connections has drained
+     */
+    private void recheckThrottled() throws IOException {
+        if (throttled.isEmpty()) {
+            return;
+        }
+
+        SelectionKey[] keys = throttled.toArray(new SelectionKey[throttled.size()]);
+        for (SelectionKey key : keys) {
+            MemcachedConnection client = (MemcachedConnection) key.attachment();
+            if (!key.isValid()) {
+                throttled.remove(key);
+                continue;
+            }
+            try {
+                flush(key, client);
+            } catch (IOException ex) {
+                closeClient(key, client, ex);
+                continue;
+            }
+            updateInterestOps(key, client);
+        }
+    }
+
+    /**
+     * Let the DCP connections send what their streams have for them. The
+     * messages are generated in batches, for as long as the connection's
+     * flow control and pending output allow, and sent right away.
+     */
+    private void produceStreams() throws IOException {
+        if (streaming.isEmpty()) {
+            return;
+        }
+
+        streamsNotified.set(false);
+        long now = now();
+        boolean more = false;
+        SelectionKey[] keys = streaming.toArray(new SelectionKey[streaming.size()]);
+        for (SelectionKey key : keys) {
+            if (!key.isValid()) {
+                streaming.remove(key);
+                continue;
+            }
+            MemcachedConnection client = (MemcachedConnection) key.attachment();
+            if (client.isWriteDelayed()) {
+                continue;
+            }
+            DcpProducer producer = client.getDcpProducer();
+            try {
+                producer.produce(now);
+                flush(key, client);
+            } catch (IOException ex) {
+                closeClient(key, client, ex);
+                continue;
+            }
+            updateInterestOps(key, client);
+            // If everything was written, there's nothing to wake us up
+            // for the rest of it
+            more |= producer.isRunnable() && !client.hasOutput();
+        }
+        if (more) {
+            streamsNotified.set(true);
+        }
+    }
+
+    private void closeClient(SelectionKey key, MemcachedConnection client, IOException ex) throws IOException {
+        throttled.remove(key);
+        streaming.remove(key);
+        client.release();
+        try {
+            key.channel().close();
+        } finally {
+            key.cancel();
+        }
+
+        try {
+            // Windows doesnt' seem to want to propagate a proper
+            // ConnectionResetException..
+            String message = ex.getMessage();
+            if (message == null) {
+                throw ex;
+            } else if (!(message.contains("reset") || message.contains("forcibly"))) {
+                throw ex;
+            }
+        } catch (ClosedChannelException exClosed) {
+        }
+    }
+
+    /**
+     * Only ask for OP_WRITE while there is output the socket didn't accept
+     * (and which isn't held back by a hiccup), and stop reading while the
+     * connection is throttled. This is also where DCP connections are
+     * picked up, once they were opened.
+     */
+    private void updateInterestOps(SelectionKey key, MemcachedConnection client) {
+        if (client.getDcpProducer() != null) {
+            streaming.add(key);
+        }
+        int ioEvents = 0;
+        if (client.isThrottled()) {
+            throttled.add(key);
+        } else {
+            throttled.remove(key);
+            ioEvents |= SelectionKey.OP_READ;
+        }
+        if (client.hasOutput() && !client.isWriteDelayed()) {
+            ioEvents |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ioEvents) {
+            key.interestOps(ioEvents);
+        }
+    }
+
+    CommandLog getCommandLog() {
+        return commandLog;
+    }
+
+    /**
+     * Find the connection (if any) belonging to this reactor whose remote
+     * end is bound to the given address
+     * @param address the remote address of the client
+     * @return the connection, or null if the client is not handled by this reactor
+     */
+    MemcachedConnection findConnection(SocketAddress address) {
+        for (SelectionKey key : selector.keys()) {
+            Object o = key.attachment();
+            if (o == null || !(o instanceof MemcachedConnection)) {
+                continue;
+            }
+            SocketChannel ch = (SocketChannel) key.channel();
+            if (address.equals(ch.socket().getRemoteSocketAddress())) {
+                return (MemcachedConnection) o;
+            }
+        }
+        return null;
+    }
+}
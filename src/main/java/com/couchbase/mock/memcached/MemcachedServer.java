@@ -16,6 +16,7 @@
 package com.couchbase.mock.memcached;
 
 import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
 import com.couchbase.mock.Bucket.BucketType;
 import com.couchbase.mock.CouchbaseMock;
 import com.couchbase.mock.Info;
@@ -25,24 +26,23 @@ import com.couchbase.mock.memcached.protocol.BinaryResponse;
 import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.AccessControlException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +50,10 @@ import java.util.logging.Logger;
  * This is a small implementation of a Memcached server. It listens
  * to exactly one port and implements the binary protocol.
  *
+ * The connections to the server are served by one or more
+ * {@link MemcachedReactor}s; by default a single reactor running on the
+ * server's own thread handles everything.
+ *
  * @author Trond Norbye
  */
 public class MemcachedServer extends Thread implements BinaryProtocolHandler {
@@ -57,19 +61,31 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     private final long bootTime;
     private final String hostname;
     private final ServerSocketChannel server;
-    private Selector selector;
+    private final MemcachedReactor[] reactors;
+    /** Deletes the expired items in the background */
+    private final ExpiryPager expiryPager;
+    private int nextReactor = 0;
     private final int port;
+    private final long connectionOutputHighWatermark;
+    private final long connectionOutputLowWatermark;
+    private final long nodeOutputHighWatermark;
+    private final long nodeOutputLowWatermark;
+    private final AtomicLong outputPending = new AtomicLong();
+    private final AtomicLong throttleEvents = new AtomicLong();
+    private final CommandTimings timings = new CommandTimings();
+    private final ServerStats trafficStats = new ServerStats();
     private final CommandExecutor[] executors = new CommandExecutor[0xff];
+    /** The DCP connections of this server */
+    private final List<DcpProducer> dcpProducers = new CopyOnWriteArrayList<DcpProducer>();
     private static final CommandExecutor unknownHandler = new UnknownCommandExecutor();
     private final Bucket bucket;
-    private boolean active = true;
-    private int hiccupTime = 0;
-    private int hiccupOffset = 0;
-    private int truncateLimit = 0;
+    private volatile boolean active = true;
+    private volatile int hiccupTime = 0;
+    private volatile int hiccupOffset = 0;
+    private volatile int truncateLimit = 0;
     private boolean cccpEnabled = false;
-    private final List<CommandLogEntry> commandLog = new ArrayList<CommandLogEntry>();
-    private boolean shouldLogCommands = false;
-    private boolean enhancedErrorsEnabled = false;
+    private volatile boolean shouldLogCommands = false;
+    private volatile boolean enhancedErrorsEnabled = false;
 
     public void setEnhancedErrorsEnabled(boolean enhancedErrorsEnabled) {
         this.enhancedErrorsEnabled = enhancedErrorsEnabled;
@@ -79,35 +95,72 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return enhancedErrorsEnabled;
     }
 
+    /**
+     * An entry of the command log. The timestamp is taken from {@link System#nanoTime()},
+     * which is only good for measuring the time between entries
+     */
     public static class CommandLogEntry {
+        /** The difference between {@link System#nanoTime()} and the wall clock, in ns */
+        private static final long WALL_CLOCK_OFFSET = System.currentTimeMillis() * 1000000 - System.nanoTime();
         private final int opcode;
-        private final long timestamp;
-        CommandLogEntry(int opcode) {
+        private final long nanoTimestamp;
+        private final short vbucket;
+        private final int keyHash;
+        private final int status;
+
+        public CommandLogEntry(int opcode, long nanoTimestamp, short vbucket, int keyHash, int status) {
             this.opcode = opcode;
-            this.timestamp = System.currentTimeMillis();
+            this.nanoTimestamp = nanoTimestamp;
+            this.vbucket = vbucket;
+            this.keyHash = keyHash;
+            this.status = status;
         }
+
         public CommandLogEntry(int opcode, long timestamp) {
-            this.opcode = opcode;
-            this.timestamp = timestamp;
+            this(opcode, timestamp * 1000000 - WALL_CLOCK_OFFSET, (short) 0, 0, -1);
         }
+
+        /**
+         * @return the (approximate) wall clock time the command was executed at, in ms
+         */
         public long getMsTimestamp() {
-            return timestamp;
+            return (nanoTimestamp + WALL_CLOCK_OFFSET) / 1000000;
         }
+
+        public long getNanoTimestamp() {
+            return nanoTimestamp;
+        }
+
         public int getOpcode() {
             return opcode;
         }
+
+        public short getVBucket() {
+            return vbucket;
+        }
+
+        public int getKeyHash() {
+            return keyHash;
+        }
+
+        /**
+         * @return the status of the response to the command, or -1 if it had no response
+         */
+        public int getStatus() {
+            return status;
+        }
     }
 
     public class FailMaker {
         private ErrorCode code = ErrorCode.SUCCESS;
         private int remaining = 0;
 
-        public void update(ErrorCode code, int count) {
+        public synchronized void update(ErrorCode code, int count) {
             this.code = code;
             this.remaining = count;
         }
 
-        public ErrorCode getFailCode() {
+        public synchronized ErrorCode getFailCode() {
             if (this.remaining == 0) {
                 return ErrorCode.SUCCESS;
             }
@@ -131,8 +184,47 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
      * @throws IOException If we fail to create the server socket
      */
     public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, new BucketConfiguration());
+    }
+
+    /**
+     * Create a new new memcached server.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param hostname  The hostname to connect to (null == any)
+     * @param port      The port this server should listen to (0 to choose an
+     *                  ephemeral port)
+     * @param vbi       Vbucket Info
+     * @param config    The configuration of the bucket. This provides the
+     *                  node settings (such as the number of reactor threads)
+     * @throws IOException If we fail to create the server socket
+     */
+    public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled, BucketConfiguration config) throws IOException {
+        this(bucket, hostname, port, vbi, cccpEnabled, config, null);
+    }
+
+    /**
+     * Create a new new memcached server.
+     *
+     * @param bucket    The bucket owning all of the stores
+     * @param hostname  The hostname to connect to (null == any)
+     * @param port      The port this server should listen to (0 to choose an
+     *                  ephemeral port)
+     * @param vbi       Vbucket Info
+     * @param config    The configuration of the bucket. This provides the
+     *                  node settings (such as the number of reactor threads)
+     * @param dataDir   Where the node keeps its persisted items, or null to
+     *                  keep them in memory
+     * @throws IOException If we fail to create the server socket or to open
+     *                     the persisted items
+     */
+    public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi, boolean cccpEnabled, BucketConfiguration config, File dataDir) throws IOException {
+        if (config.numReactors < 1) {
+            throw new IllegalArgumentException("Need at least one reactor");
+        }
         this.bucket = bucket;
-        this.storage = new Storage(vbi, this);
+        this.storage = new Storage(vbi, this, config, dataDir);
+        this.expiryPager = new ExpiryPager(this, config.expiryPagerInterval);
         this.cccpEnabled = cccpEnabled;
 
         for (int ii = 0; ii < executors.length; ++ii) {
@@ -203,10 +295,25 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             executors[CommandCode.OBSERVE.cc()] = new ObserveCommandExecutor();
             executors[CommandCode.OBSERVE_SEQNO.cc()] = new ObserveSeqnoCommandExecutor();
             executors[CommandCode.GET_RANDOM.cc()] = new GetRandomCommandExecutor();
+            executors[CommandCode.DCP_OPEN.cc()] = new DcpCommandExecutor();
+            executors[CommandCode.DCP_STREAM_REQ.cc()] = executors[CommandCode.DCP_OPEN.cc()];
+            executors[CommandCode.DCP_CLOSE_STREAM.cc()] = executors[CommandCode.DCP_OPEN.cc()];
+            executors[CommandCode.DCP_GET_FAILOVER_LOG.cc()] = executors[CommandCode.DCP_OPEN.cc()];
+            executors[CommandCode.DCP_BUFFER_ACKNOWLEDGEMENT.cc()] = executors[CommandCode.DCP_OPEN.cc()];
+            executors[CommandCode.DCP_CONTROL.cc()] = executors[CommandCode.DCP_OPEN.cc()];
+            executors[CommandCode.DCP_NOOP.cc()] = executors[CommandCode.DCP_OPEN.cc()];
         }
 
+        connectionOutputHighWatermark = config.connectionOutputHighWatermark;
+        connectionOutputLowWatermark = config.connectionOutputLowWatermark;
+        nodeOutputHighWatermark = config.nodeOutputHighWatermark;
+        nodeOutputLowWatermark = config.nodeOutputLowWatermark;
+
         bootTime = System.currentTimeMillis() / 1000;
-        selector = Selector.open();
+        reactors = new MemcachedReactor[config.numReactors];
+        for (int ii = 0; ii < reactors.length; ++ii) {
+            reactors[ii] = new MemcachedReactor(this, config.directBuffers, config.commandLogSize);
+        }
         server = ServerSocketChannel.open();
         server.configureBlocking(false);
         if (hostname != null && !hostname.equals("*")) {
@@ -228,7 +335,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             }
         }
         this.port = server.socket().getLocalPort();
-        server.register(selector, SelectionKey.OP_ACCEPT);
+        reactors[0].listen(server);
     }
 
     public Storage getStorage() {
@@ -267,22 +374,25 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     @SuppressWarnings("SpellCheckingInspection")
     private Map<String,String> getDefaultStats() {
         HashMap<String, String> stats = new HashMap<String, String>();
+        long now = System.currentTimeMillis() / 1000;
         stats.put("pid", Long.toString(Thread.currentThread().getId()));
-        stats.put("time", Long.toString(new Date().getTime()));
+        stats.put("time", Long.toString(now));
         stats.put("version", "9.9.9");
-        stats.put("uptime", "15554");
+        stats.put("uptime", Long.toString(now - bootTime));
         stats.put("accepting_conns", "1");
-        stats.put("auth_cmds", "0");
-        stats.put("auth_errors", "0");
-        stats.put("bucket_active_conns", "1");
-        stats.put("bucket_conns", "3");
-        stats.put("bytes_read", "1108621");
-        stats.put("bytes_written", "205374436");
-        stats.put("cas_badval", "0");
-        stats.put("cas_hits", "0");
-        stats.put("cas_misses", "0");
-        stats.put("mem_used", "100000000000000000000");
-        stats.put("curr_connections", "-1");
+        for (Map.Entry<ServerStats.Counter, Long> entry : trafficStats.getAll().entrySet()) {
+            stats.put(entry.getKey().getStatName(), Long.toString(entry.getValue()));
+        }
+        String connections = stats.get("curr_connections");
+        stats.put("bucket_active_conns", connections);
+        stats.put("bucket_conns", connections);
+        stats.putAll(storage.getMemoryStats());
+        stats.putAll(storage.getExpiryStats());
+        stats.put("ep_num_expiry_pager_runs", Long.toString(expiryPager.getNumRuns()));
+        stats.putAll(storage.getReplicationStats());
+        stats.putAll(storage.getPersistenceStats());
+        stats.put("output_pending_bytes", Long.toString(outputPending.get()));
+        stats.put("output_throttle_events", Long.toString(throttleEvents.get()));
         return stats;
     }
 
@@ -291,9 +401,9 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         if (about == null || about.isEmpty()) {
             return getDefaultStats();
         } else if (about.equals("memory")) {
-            Map<String, String> memStats = new HashMap<String, String>();
+            Map<String, String> memStats = storage.getMemoryStats();
             Runtime rt = Runtime.getRuntime();
-            memStats.put("mem_used", Long.toString(rt.totalMemory()));
+            memStats.put("mem_total", Long.toString(rt.totalMemory()));
             memStats.put("mem_free", Long.toString(rt.freeMemory()));
             memStats.put("mem_max", Long.toString(rt.maxMemory()));
             return memStats;
@@ -301,6 +411,17 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             Map<String, String> tapStats = new HashMap<String, String>();
             tapStats.put("ep_tap_count", "0");
             return tapStats;
+        } else if (about.equals("slabs")) {
+            SlabAllocator allocator = storage.getAllocator();
+            return allocator == null ? new HashMap<String, String>() : allocator.getStats();
+        } else if (about.equals("vbucket-details")) {
+            return storage.getVBucketStats();
+        } else if (about.equals("dcp")) {
+            return getDcpStats();
+        } else if (about.equals("timings")) {
+            return timings.getStats(false);
+        } else if (about.equals("kvtimings")) {
+            return timings.getStats(true);
         } else if (about.equals("__MOCK__")) {
             Map<String,String> mockInfo = new HashMap<String, String>();
             mockInfo.put("implementation", "java");
@@ -311,6 +432,47 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
     }
 
+    private Map<String, String> getDcpStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        long items = 0;
+        long backfilled = 0;
+        long bytes = 0;
+        int numStreams = 0;
+        for (DcpProducer producer : dcpProducers) {
+            String prefix = "eq_dcpq:" + producer.getName() + ":";
+            stats.put(prefix + "items_sent", Long.toString(producer.getItemsSent()));
+            stats.put(prefix + "total_bytes", Long.toString(producer.getBytesSent()));
+            items += producer.getItemsSent();
+            backfilled += producer.getItemsBackfilled();
+            bytes += producer.getBytesSent();
+            numStreams += producer.getNumStreams();
+        }
+        stats.put("ep_dcp_count", Integer.toString(dcpProducers.size()));
+        stats.put("ep_dcp_stream_count", Integer.toString(numStreams));
+        stats.put("ep_dcp_items_sent", Long.toString(items));
+        stats.put("ep_dcp_items_backfilled", Long.toString(backfilled));
+        stats.put("ep_dcp_total_bytes", Long.toString(bytes));
+        return stats;
+    }
+
+    void addDcpProducer(DcpProducer producer) {
+        dcpProducers.add(producer);
+    }
+
+    void removeDcpProducer(DcpProducer producer) {
+        dcpProducers.remove(producer);
+    }
+
+    /**
+     * Wake up the DCP streams of a vBucket, if it has any
+     * @param vbId the vBucket which was modified
+     */
+    void notifyDcpProducers(int vbId) {
+        for (DcpProducer producer : dcpProducers) {
+            producer.notify(vbId);
+        }
+    }
+
     public String getSocketName() {
         return hostname + ":" + port;
     }
@@ -323,150 +485,147 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return hostname;
     }
 
-    private void writeResponse(SocketChannel channel, OutputContext ctx) throws IOException {
-        while (ctx.hasRemaining()) {
-            ByteBuffer[] bufs = ctx.getIov();
-            long nw = channel.write(bufs);
-            if (nw < 0) {
-                channel.close();
-                throw new ClosedChannelException();
-            } else if (nw == 0) {
-                return;
-            }
-            ctx.updateBytesSent(nw);
-        }
-    }
-
     @Override
     public void run() {
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    selector.select();
-                    if (!active) {
-                        // server is suspended: ignore all events
-                        selector.selectedKeys().clear();
-                        continue;
-                    }
-                } catch (IOException ex) {
-                    continue;
-                }
+        Thread[] threads = new Thread[reactors.length];
+        for (int ii = 1; ii < reactors.length; ++ii) {
+            threads[ii] = new Thread(reactors[ii], String.format("%s:R[%d]", getName(), ii));
+            threads[ii].setDaemon(true);
+            threads[ii].start();
+        }
+
+        Thread pagerThread = null;
+        if (expiryPager.getInterval() > 0) {
+            pagerThread = new Thread(expiryPager, String.format("%s:ExpiryPager", getName()));
+            pagerThread.setDaemon(true);
+            pagerThread.start();
+        }
+
+        Thread flusherThread = null;
+        if (storage.getDiskStore() != null) {
+            flusherThread = new Thread(storage.getDiskStore(), String.format("%s:Flusher", getName()));
+            flusherThread.setDaemon(true);
+            flusherThread.start();
+        }
+
+        Thread replicatorThread = null;
+        if (storage.getReplicator() != null) {
+            replicatorThread = new Thread(storage.getReplicator(), String.format("%s:Replicator", getName()));
+            replicatorThread.setDaemon(true);
+            replicatorThread.start();
+        }
 
+        try {
+            // The first reactor also owns the listening socket
+            reactors[0].run();
+        } finally {
+            if (pagerThread != null) {
+                pagerThread.interrupt();
+            }
+            if (replicatorThread != null) {
+                replicatorThread.interrupt();
+            }
+            if (flusherThread != null) {
+                flusherThread.interrupt();
+            }
+            for (int ii = 1; ii < threads.length; ++ii) {
+                threads[ii].interrupt();
                 try {
-                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
-                    // @todo we should probably drive the state machine until it
-                    // step doesn't do any progress to avoid jumping back to the
-                    // core
-                    while (iterator.hasNext()) {
-                        SelectionKey key = iterator.next();
-                        iterator.remove();
-                        handleClient(key);
-                    }
-                } catch (IOException e) {
-
-                    Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
+                    threads[ii].join();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-        } finally {
             try {
                 server.close();
-                selector.close();
             } catch (IOException e) {
                 Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
             }
         }
     }
 
-    private void handleClientWrite(SocketChannel channel, OutputContext ctx) throws IOException {
-        OutputContext effectiveCtx = ctx;
-        if (truncateLimit > 0) {
-            effectiveCtx = ctx.getSlice(truncateLimit);
-        } else if (hiccupOffset > 0) {
-            effectiveCtx = ctx.getSlice(hiccupOffset);
-        }
-
-        writeResponse(channel, effectiveCtx);
-        if (hiccupOffset > 0) {
-            try {
-                Thread.sleep(hiccupTime);
-            } catch (InterruptedException ex) {
-            }
-            writeResponse(channel, ctx);
-        }
-    }
-
-
-    private void handleClientRead(SocketChannel channel, MemcachedConnection client) throws IOException {
-        if (channel.read(client.getInputBuffer()) == -1) {
-            channel.close();
-            throw new ClosedChannelException();
-        } else {
-            client.step();
-        }
-    }
-
-    private void handleNewClient() throws IOException {
+    /**
+     * Accept a pending connection and hand it over to the next reactor. This
+     * is called from the reactor owning the listening socket.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void acceptNewClient() throws IOException {
         SocketChannel cc = server.accept();
+        if (cc == null) {
+            return;
+        }
         cc.configureBlocking(false);
         cc.socket().setTcpNoDelay(false);
         cc.socket().setSendBufferSize(1<<20);
         cc.socket().setReceiveBufferSize(1<<20);
-        cc.register(selector, SelectionKey.OP_READ, new MemcachedConnection(this));
+        MemcachedReactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        reactor.addChannel(cc);
     }
 
-    private void handleClient(SelectionKey key) throws IOException {
-        MemcachedConnection client = (MemcachedConnection) key.attachment();
-        if (client == null) {
-            handleNewClient();
-            return;
+    /**
+     * Account for a change in the amount of output pending on one of the
+     * connections
+     * @param delta the number of bytes added (or removed, if negative)
+     * @return the number of bytes now pending on all connections
+     */
+    long addOutputPending(long delta) {
+        if (delta == 0) {
+            return outputPending.get();
         }
+        return outputPending.addAndGet(delta);
+    }
 
-        SocketChannel channel = (SocketChannel) key.channel();
-        try {
-            if (key.isReadable()) {
-                handleClientRead(channel, client);
-            }
-
-            if (key.isWritable()) {
-                OutputContext ctx = client.borrowOutputContext();
+    /**
+     * Record that a connection stopped processing requests because of its
+     * pending output
+     */
+    void recordThrottle() {
+        throttleEvents.incrementAndGet();
+    }
 
-                if (ctx != null) {
-                    try {
-                        handleClientWrite(channel, ctx);
-                    } finally {
-                        client.returnOutputContext(ctx);
-                    }
-                }
-            }
+    /**
+     * Check whether a connection should stop processing requests
+     * @param connectionPending the bytes pending on the connection
+     * @param nodePending the bytes pending on all connections of the server
+     * @return true if either is above its high watermark
+     */
+    boolean isAboveHighWatermark(long connectionPending, long nodePending) {
+        return (connectionOutputHighWatermark > 0 && connectionPending > connectionOutputHighWatermark) ||
+                (nodeOutputHighWatermark > 0 && nodePending > nodeOutputHighWatermark);
+    }
 
+    /**
+     * Check whether a throttled connection may resume processing requests
+     * @param connectionPending the bytes pending on the connection
+     * @param nodePending the bytes pending on all connections of the server
+     * @return true if both are down to their low watermarks
+     */
+    boolean isBelowLowWatermark(long connectionPending, long nodePending) {
+        return (connectionOutputHighWatermark == 0 || connectionPending <= connectionOutputLowWatermark) &&
+                (nodeOutputHighWatermark == 0 || nodePending <= nodeOutputLowWatermark);
+    }
 
-        } catch (IOException ex) {
-            try {
-                channel.close();
-            } finally {
-                key.cancel();
-            }
+    /**
+     * @return the latencies of the commands processed by this server
+     */
+    public CommandTimings getTimings() {
+        return timings;
+    }
 
-            try {
-                // Windows doesnt' seem to want to propagate a proper
-                // ConnectionResetException..
-                String message = ex.getMessage();
-                if (message == null) {
-                    throw ex;
-                } else if (!(message.contains("reset") || message.contains("forcibly"))) {
-                    throw ex;
-                }
-            } catch (ClosedChannelException exClosed) {
-            }
-            return;
-        }
+    /**
+     * @return the traffic counters of this server
+     */
+    public ServerStats getTrafficStats() {
+        return trafficStats;
+    }
 
-        int ioEvents = SelectionKey.OP_READ;
-        if (client.hasOutput()) {
-            ioEvents |= SelectionKey.OP_WRITE;
-        }
-        channel.register(selector, ioEvents, client);
+    /**
+     * @return the number of reactor threads serving this server
+     */
+    public int getNumReactors() {
+        return reactors.length;
     }
 
     public Bucket getBucket() {
@@ -501,15 +660,14 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     @Override
     public void execute(BinaryCommand cmd, MemcachedConnection client)
             throws IOException {
+        // The off-heap values of the items the command looks up stay valid
+        // until it completes, even if the items are replaced meanwhile
+        Item.startPinning();
         try {
             if (enhancedErrorsEnabled) {
                 cmd.generateEventId();
             }
 
-            if (shouldLogCommands) {
-                commandLog.add(new CommandLogEntry(cmd.getOpcode()));
-            }
-
             ErrorCode failcode = failmaker.getFailCode();
             if (failcode != ErrorCode.SUCCESS) {
                 client.sendResponse(new BinaryResponse(cmd, failcode));
@@ -520,6 +678,8 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             }
         } catch (AccessControlException ex) {
             client.sendResponse(BinaryConfigResponse.createNotMyVbucket(cmd, this));
+        } finally {
+            Item.releasePinned();
         }
     }
 
@@ -552,6 +712,18 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         truncateLimit = limit;
     }
 
+    int getHiccupTime() {
+        return hiccupTime;
+    }
+
+    int getHiccupOffset() {
+        return hiccupOffset;
+    }
+
+    int getTruncateLimit() {
+        return truncateLimit;
+    }
+
     public void flushNode() {
         storage.flush();
     }
@@ -593,6 +765,39 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
     }
 
+    /**
+     * Delete all the items which have expired right away, rather than waiting
+     * for the next run of the expiry pager
+     * @return the number of items deleted
+     */
+    public long runExpiryPager() {
+        return expiryPager.runOnce();
+    }
+
+    /**
+     * Wait until the mutations made on this node so far have reached their
+     * replicas. This returns right away unless the replication is asynchronous.
+     * @param timeout the maximum time to wait for, in ms
+     * @return false if there still are mutations pending
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReplication(long timeout) throws InterruptedException {
+        Replicator replicator = storage.getReplicator();
+        return replicator == null || replicator.awaitDrained(timeout);
+    }
+
+    /**
+     * Wait until the mutations made on this node so far were written to
+     * disk. This returns right away unless the items are kept on disk.
+     * @param timeout the maximum time to wait for, in ms
+     * @return false if there still are mutations pending
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitPersistence(long timeout) throws InterruptedException {
+        DiskStore diskStore = storage.getDiskStore();
+        return diskStore == null || diskStore.awaitFlushed(timeout);
+    }
+
     /**
      * @return the active
      */
@@ -616,14 +821,10 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     }
 
     public MemcachedConnection findConnection(SocketAddress address) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            Object o = key.attachment();
-            if (o == null || !(o instanceof MemcachedConnection)) {
-                continue;
-            }
-            SocketChannel ch = (SocketChannel) key.channel();
-            if (ch.socket().getRemoteSocketAddress().equals(address)) {
-                return (MemcachedConnection) o;
+        for (MemcachedReactor reactor : reactors) {
+            MemcachedConnection conn = reactor.findConnection(address);
+            if (conn != null) {
+                return conn;
             }
         }
         return null;
@@ -635,10 +836,34 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
     public void stopLog() {
         shouldLogCommands = false;
-        commandLog.clear();
+        for (MemcachedReactor reactor : reactors) {
+            reactor.getCommandLog().clear();
+        }
     }
 
+    boolean isLoggingCommands() {
+        return shouldLogCommands;
+    }
+
+    /**
+     * Get the commands logged since logging was started. Only the most recent
+     * commands are kept, see {@link BucketConfiguration#commandLogSize}
+     * @return a snapshot of the log, ordered by the time the commands were executed
+     */
     public List<CommandLogEntry> getLogs() {
-        return commandLog;
+        List<CommandLogEntry> entries = new ArrayList<CommandLogEntry>();
+        for (MemcachedReactor reactor : reactors) {
+            reactor.getCommandLog().snapshot(entries);
+        }
+        if (reactors.length > 1) {
+            Collections.sort(entries, new Comparator<CommandLogEntry>() {
+                @Override
+                public int compare(CommandLogEntry a, CommandLogEntry b) {
+                    long diff = a.getNanoTimestamp() - b.getNanoTimestamp();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+        }
+        return entries;
     }
 }
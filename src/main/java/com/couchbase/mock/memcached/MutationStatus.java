@@ -27,14 +27,26 @@ import com.couchbase.mock.memcached.protocol.ErrorCode;
 public class MutationStatus {
     private final ErrorCode ec;
     private final VBucketCoordinates vbCoords;
+    private final long cas;
 
     /**
      * Create a successful status object.
      * @param coords The coordinates reflecting the mutation
      */
     public MutationStatus(VBucketCoordinates coords) {
+        this(coords, 0);
+    }
+
+    /**
+     * Create a successful status object for a mutation which stored a new
+     * version of the item.
+     * @param coords The coordinates reflecting the mutation
+     * @param cas The CAS of the stored version
+     */
+    public MutationStatus(VBucketCoordinates coords, long cas) {
         ec = ErrorCode.SUCCESS;
         vbCoords = coords;
+        this.cas = cas;
     }
 
     /**
@@ -44,6 +56,7 @@ public class MutationStatus {
     public MutationStatus(ErrorCode code) {
         ec = code;
         vbCoords = new BasicVBucketCoordinates(0, 0);
+        cas = 0;
     }
 
     public ErrorCode getStatus() {
@@ -52,4 +65,7 @@ public class MutationStatus {
     public VBucketCoordinates getCoords() {
         return vbCoords;
     }
+    public long getCas() {
+        return cas;
+    }
 }
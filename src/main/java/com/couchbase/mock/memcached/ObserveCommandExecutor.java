@@ -68,7 +68,7 @@ public class ObserveCommandExecutor implements CommandExecutor {
 
                 } else {
                     /** Check versions */
-                    if (persisted.getCas() != cached.getCas()) {
+                    if (persisted.getCasReal() != cached.getCasReal()) {
                         code = ObserveCode.NOT_PERSISTED;
 
                     } else {
@@ -15,106 +15,280 @@
  */
 package com.couchbase.mock.memcached;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
- * This class is used for fine-grained output manipulation. It implements
- * a system of smaller chunks into which responses are buffered. This is used by
- * the {@link MemcachedServer} class to simulate network
- * slowness.
+ * This class holds the output which is pending for a connection. It is
+ * used for fine-grained output manipulation, such as when the
+ * {@link MemcachedServer} simulates network slowness.
+ *
+ * The output is kept as a ring of segments which are sent with gathering
+ * writes. Small buffers (such as response headers) are copied into chunks
+ * taken from a {@link BufferPool}, so that a series of small responses goes
+ * out as a single segment. Larger buffers (such as item values) are
+ * referenced as they are, and are never copied. A chunk is returned to the
+ * pool once the last segment referring to it has been sent.
+ *
+ * Like the connection owning it, an OutputContext is only ever used by a
+ * single thread.
  */
 public class OutputContext {
-    private List<ByteBuffer> buffers;
-    private final ByteBuffer[] singleArray = new ByteBuffer[1];
+    /** Buffers up to this size are copied into the output chunks */
+    static final int COPY_THRESHOLD = 1024;
+    /** The maximum number of segments passed to a single write */
+    private static final int MAX_IOV = 64;
+
+    private final BufferPool chunkPool;
+    private ByteBuffer[] segments = new ByteBuffer[16];
+    private int head;
+    private int count;
+    private long pendingBytes;
+    private long writtenBytes;
+    private final ByteBuffer[] iov = new ByteBuffer[MAX_IOV];
+
+    /** The chunk small buffers are currently copied into */
+    private ByteBuffer chunk;
+    /** The last segment referring to the current chunk, if not yet sent */
+    private ByteBuffer chunkTail;
+    /** Chunks which are full, but still referred to by unsent segments */
+    private final ArrayDeque<ByteBuffer> retiredChunks = new ArrayDeque<ByteBuffer>();
+    /** The last segment referring to each of the retired chunks */
+    private final ArrayDeque<ByteBuffer> retiredTails = new ArrayDeque<ByteBuffer>();
+    /** The callbacks waiting for the output to be sent, in order */
+    private final ArrayDeque<SentCallback> callbacks = new ArrayDeque<SentCallback>();
+
+    private static class SentCallback {
+        /** The callback runs once this many bytes have been written */
+        final long offset;
+        final Runnable callback;
+
+        SentCallback(long offset, Runnable callback) {
+            this.offset = offset;
+            this.callback = callback;
+        }
+    }
 
     /**
-     * Get an array of buffers representing all the active chunks
-     * @return An array of buffers
+     * Create a new OutputContext
+     * @param chunkPool the pool to take chunks from. The buffers in the
+     *                  pool must be at least {@link #COPY_THRESHOLD} bytes
      */
-    public ByteBuffer[] getIov() {
-        if (buffers.size() == 1) {
-            singleArray[0] = buffers.get(0);
-            return singleArray;
-        }
-        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    OutputContext(BufferPool chunkPool) {
+        this.chunkPool = chunkPool;
     }
 
     /**
-     * Check if there are unsent chunks
+     * Append data to the output. The remaining bytes of the buffer are
+     * either consumed right away, or the buffer itself is kept until it has
+     * been sent. In the latter case it must not be modified by the caller.
      *
-     * @return true if not empty
+     * @param data the data to send
      */
-    public boolean hasRemaining() {
-        return !buffers.isEmpty();
+    void add(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            return;
+        }
+        if (data.remaining() <= COPY_THRESHOLD) {
+            copy(data);
+        } else {
+            push(data);
+        }
     }
 
     /**
-     * Get an OutputBuffer containing a subset of the current one
-     *
-     * @param limit How many bytes should be available
-     * @return a new OutputContext
+     * Run a callback once all of the output added so far has been sent (or
+     * dropped, see {@link #discard()}), e.g. to let go of the buffers which
+     * were added without being copied
+     * @param callback the callback
      */
-    public OutputContext getSlice(int limit) {
-        List<ByteBuffer> newBufs = new LinkedList<ByteBuffer>();
-        ByteBuffer buf = ByteBuffer.allocate(limit);
-        Iterator<ByteBuffer> iter = buffers.iterator();
-
-        while (iter.hasNext() && buf.position() < buf.limit()) {
-            ByteBuffer cur = iter.next();
-            int diff = buf.limit() - buf.position();
-            if (diff > cur.limit()) {
-                buf.put(cur);
-                iter.remove();
+    void whenSent(Runnable callback) {
+        if (count == 0) {
+            callback.run();
+        } else {
+            callbacks.add(new SentCallback(writtenBytes + pendingBytes, callback));
+        }
+    }
+
+    /**
+     * Drop the output which has not been sent yet (once the connection is
+     * closed), running all of the callbacks waiting for it
+     */
+    void discard() {
+        Arrays.fill(segments, null);
+        head = 0;
+        count = 0;
+        pendingBytes = 0;
+        retiredTails.clear();
+        while (!retiredChunks.isEmpty()) {
+            chunkPool.release(retiredChunks.poll());
+        }
+        if (chunk != null) {
+            chunkPool.release(chunk);
+            chunk = null;
+            chunkTail = null;
+        }
+        while (!callbacks.isEmpty()) {
+            callbacks.poll().callback.run();
+        }
+    }
+
+    private void copy(ByteBuffer data) {
+        if (chunk == null) {
+            chunk = chunkPool.acquire();
+        } else if (chunk.remaining() < data.remaining()) {
+            if (chunkTail == null) {
+                chunk.clear();
             } else {
-                ByteBuffer slice = cur.duplicate();
-                slice.limit(diff);
-                buf.put(slice);
+                retiredChunks.add(chunk);
+                retiredTails.add(chunkTail);
+                chunk = chunkPool.acquire();
+                chunkTail = null;
             }
         }
-        return new OutputContext(newBufs);
+
+        int start = chunk.position();
+        chunk.put(data);
+        if (chunkTail != null && chunkTail == segments[(head + count - 1) & (segments.length - 1)]
+                && chunkTail.limit() == start) {
+            // Still contiguous with the last segment, so just extend it
+            chunkTail.limit(chunk.position());
+            pendingBytes += chunk.position() - start;
+        } else {
+            ByteBuffer segment = chunk.duplicate();
+            segment.limit(chunk.position());
+            segment.position(start);
+            push(segment);
+            chunkTail = segment;
+        }
+    }
+
+    private void push(ByteBuffer segment) {
+        if (count == segments.length) {
+            ByteBuffer[] grown = new ByteBuffer[segments.length * 2];
+            for (int ii = 0; ii < count; ++ii) {
+                grown[ii] = segments[(head + ii) & (segments.length - 1)];
+            }
+            segments = grown;
+            head = 0;
+        }
+        segments[(head + count) & (segments.length - 1)] = segment;
+        ++count;
+        pendingBytes += segment.remaining();
     }
 
     /**
-     * Indicate that some data has been flushed to the network
-     * @param num ignored for now. This is because each individual {@link java.nio.ByteBuffer} keeps track
-     *            of how many of its bytes were sent
+     * Write as much of the pending output to the channel as it accepts
+     *
+     * @param channel the channel to write to
+     * @param limit the maximum number of bytes to write
+     * @return the number of bytes written
+     * @throws IOException if an error occurs while writing
      */
-    public void updateBytesSent(long num) {
-        Iterator<ByteBuffer> iter = buffers.iterator();
+    long write(GatheringByteChannel channel, long limit) throws IOException {
+        long total = 0;
+        while (count > 0 && total < limit) {
+            long wanted = 0;
+            int niov = 0;
+            while (niov < count && niov < MAX_IOV && wanted < limit - total) {
+                ByteBuffer segment = segments[(head + niov) & (segments.length - 1)];
+                iov[niov++] = segment;
+                wanted += segment.remaining();
+            }
+
+            // Don't send more than we've been asked to, but don't copy anything
+            // either: just pretend the last segment is shorter than it is
+            ByteBuffer last = iov[niov - 1];
+            int lastLimit = last.limit();
+            if (wanted > limit - total) {
+                last.limit((int) (lastLimit - (wanted - (limit - total))));
+                wanted = limit - total;
+            }
+
+            long nw;
+            try {
+                nw = channel.write(iov, 0, niov);
+            } finally {
+                last.limit(lastLimit);
+                Arrays.fill(iov, 0, niov, null);
+            }
 
-        while (iter.hasNext()) {
-            ByteBuffer cur = iter.next();
-            if (cur.hasRemaining()) {
+            total += nw;
+            pendingBytes -= nw;
+            writtenBytes += nw;
+            consume();
+            while (!callbacks.isEmpty() && callbacks.peek().offset <= writtenBytes) {
+                callbacks.poll().callback.run();
+            }
+            if (nw < wanted) {
+                // The socket buffer is full
                 break;
             }
-            iter.remove();
         }
+        return total;
+    }
+
+    /**
+     * Drop the segments which have been sent, and release the chunks which
+     * are no longer referred to
+     */
+    private void consume() {
+        while (count > 0) {
+            ByteBuffer segment = segments[head];
+            if (segment.hasRemaining()) {
+                break;
+            }
+            segments[head] = null;
+            head = (head + 1) & (segments.length - 1);
+            --count;
+
+            if (segment == retiredTails.peekFirst()) {
+                retiredTails.pollFirst();
+                chunkPool.release(retiredChunks.pollFirst());
+            } else if (segment == chunkTail) {
+                chunkTail = null;
+            }
+        }
+
+        if (count == 0 && chunk != null) {
+            chunkPool.release(chunk);
+            chunk = null;
+            chunkTail = null;
+        }
+    }
+
+    /**
+     * Check if there are unsent segments
+     *
+     * @return true if not empty
+     */
+    public boolean hasRemaining() {
+        return count > 0;
     }
 
     /**
-     * Create a new OuputContext
-     * @param origBufs A list of buffers which should be set as the initial buffers. If empty, additional buffers
-     *                 will be created as needed
+     * Get the number of bytes which have not been sent yet
+     * @return the number of bytes pending
      */
-    public OutputContext(List<ByteBuffer> origBufs) {
-        buffers = origBufs;
+    public long getPendingBytes() {
+        return pendingBytes;
     }
 
     /**
-     * Truncate the output. This will empty the list of chunks
-     * @return The list of remaining chunks.
+     * Get the number of bytes which have been sent since the context was
+     * created. Together with {@link #getPendingBytes()} this gives the
+     * offset of every byte added to the output.
+     * @return the number of bytes written
      */
-    public List<ByteBuffer> releaseRemaining() {
-        List<ByteBuffer> ret = buffers;
-        buffers = null;
-        return ret;
+    public long getWrittenBytes() {
+        return writtenBytes;
     }
 
     @Override
     public String toString() {
-        return "IOV: " + buffers.size();
+        return "IOV: " + count;
     }
 }
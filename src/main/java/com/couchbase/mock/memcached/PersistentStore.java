@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.Collection;
+
+/**
+ * Where a node keeps the items it has "persisted"
+ */
+interface PersistentStore {
+    /**
+     * Persist a mutation
+     * @param item the item, which may be the version stored in the cache
+     * @param coords the coordinates of the mutation
+     */
+    void put(Item item, VBucketCoordinates coords);
+
+    /**
+     * Persist a deletion
+     * @param ks the key which was deleted
+     * @param coords the coordinates of the deletion
+     */
+    void remove(KeySpec ks, VBucketCoordinates coords);
+
+    /**
+     * @param ks the key to look up
+     * @return the persisted copy of the item, or null if there is none
+     */
+    Item get(KeySpec ks);
+
+    /**
+     * Check whether a version of an item is the persisted one, without
+     * reading the persisted copy
+     * @param item the version
+     * @return true if the persisted copy has the CAS of the version, and no
+     *         other version is waiting to be persisted
+     */
+    boolean isPersisted(Item item);
+
+    /**
+     * @param vbid the vBucket
+     * @return all the persisted items of the vBucket
+     */
+    Collection<Item> values(int vbid);
+
+    /**
+     * @param vbid the vBucket
+     * @return the coordinates of the last mutation persisted in the vBucket
+     */
+    VBucketCoordinates getCoords(int vbid);
+
+    void updateSingleCoords(int vbid, VBucketCoordinates coords);
+
+    /**
+     * Drop all the persisted items
+     */
+    void clear();
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replicates the mutations of the vBuckets a node is the master of to their
+ * replicas in the background, rather than on the thread of the client which
+ * made the mutation.
+ *
+ * Every replica has a queue of its own, to which the mutations are added in
+ * the order they are made. The replicator thread drains the queues in
+ * batches. Within a batch, only the last mutation of a key is sent (the way
+ * DCP deduplicates a snapshot). The replica's seqno still moves up to that of
+ * the last mutation of the batch.
+ *
+ * To simulate a slow network or a busy replica, the mutations may be held
+ * back for a fixed lag, and the number of mutations sent to a replica per
+ * second may be limited. The replicas then fall behind the master like real
+ * ones do, which shows in their seqnos (OBSERVE_SEQNO) and in replica reads.
+ */
+class Replicator implements Runnable {
+    /** The maximum number of mutations sent to a replica in one batch */
+    static final int BATCH_SIZE = 256;
+    /** How long (in ms) to wait before looking at the mutations which are held back again */
+    private static final long TICK_MILLIS = 5;
+
+    private static class Mutation {
+        final Item item;
+        final VBucketCoordinates coords;
+        final boolean isDelete;
+        final long queuedAt;
+
+        Mutation(Item item, VBucketCoordinates coords, boolean isDelete, long queuedAt) {
+            this.item = item;
+            this.coords = coords;
+            this.isDelete = isDelete;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static class ReplicaQueue {
+        final MemcachedServer replica;
+        final ArrayDeque<Mutation> pending = new ArrayDeque<Mutation>();
+        /** How many mutations may be sent right now, if the rate is limited */
+        double credit;
+
+        ReplicaQueue(MemcachedServer replica) {
+            this.replica = replica;
+        }
+    }
+
+    private final VBucketInfo[] vbInfo;
+    private final MemcachedServer master;
+    private final long lagNanos;
+    private final int rate;
+    /** The queues of all the replicas, guarded by the replicator itself */
+    private final Map<MemcachedServer, ReplicaQueue> queues = new HashMap<MemcachedServer, ReplicaQueue>();
+    /** The number of mutations queued or being sent */
+    private int numPending;
+    private long lastRefill = System.nanoTime();
+    private final AtomicLong numSent = new AtomicLong();
+    private final AtomicLong numDeduplicated = new AtomicLong();
+
+    /**
+     * @param vbInfo the vBuckets of the bucket
+     * @param master the node whose mutations are replicated
+     * @param lag how long (in ms) to hold back every mutation
+     * @param rate the maximum number of mutations sent to a single replica
+     *             per second, or 0 for no limit
+     */
+    Replicator(VBucketInfo[] vbInfo, MemcachedServer master, long lag, int rate) {
+        this.vbInfo = vbInfo;
+        this.master = master;
+        this.lagNanos = lag * 1000000L;
+        this.rate = rate;
+    }
+
+    /**
+     * Queue a mutation for a replica
+     * @param replica the node to send the mutation to
+     * @param item a copy of the item, or just its key for a deletion
+     * @param coords the coordinates of the mutation
+     * @param isDelete whether the item was deleted
+     */
+    synchronized void enqueue(MemcachedServer replica, Item item, VBucketCoordinates coords, boolean isDelete) {
+        ReplicaQueue queue = queues.get(replica);
+        if (queue == null) {
+            queue = new ReplicaQueue(replica);
+            queue.credit = rate;
+            queues.put(replica, queue);
+        }
+        queue.pending.add(new Mutation(item, coords, isDelete, System.nanoTime()));
+        if (numPending++ == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Drop all the mutations which weren't sent yet (e.g. on a flush)
+     */
+    synchronized void clear() {
+        for (ReplicaQueue queue : queues.values()) {
+            // The batch being sent (if any) is still accounted for
+            numPending -= queue.pending.size();
+            queue.pending.clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of mutations which weren't sent to their replica yet
+     */
+    synchronized int getNumPending() {
+        return numPending;
+    }
+
+    /**
+     * Wait until all the mutations queued so far were sent
+     * @param timeout the maximum time to wait for, in ms
+     * @return false if there still are mutations pending
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized boolean awaitDrained(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining;
+        while (numPending > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return numPending == 0;
+    }
+
+    @Override
+    public void run() {
+        Map<ReplicaQueue, List<Mutation>> batches = new HashMap<ReplicaQueue, List<Mutation>>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (this) {
+                    while (numPending == 0) {
+                        wait();
+                    }
+                    takeBatches(batches);
+                    if (batches.isEmpty()) {
+                        // Everything is held back for now
+                        wait(TICK_MILLIS);
+                        continue;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            for (Map.Entry<ReplicaQueue, List<Mutation>> entry : batches.entrySet()) {
+                try {
+                    send(entry.getKey().replica, entry.getValue());
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(Replicator.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            int sent = 0;
+            for (List<Mutation> batch : batches.values()) {
+                sent += batch.size();
+            }
+            batches.clear();
+            synchronized (this) {
+                numPending -= sent;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Take the mutations which may be sent now off the queues. Must be called
+     * with the lock of the replicator held.
+     */
+    private void takeBatches(Map<ReplicaQueue, List<Mutation>> batches) {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            double refill = (now - lastRefill) / 1e9 * rate;
+            lastRefill = now;
+            for (ReplicaQueue queue : queues.values()) {
+                // Allow bursts of up to a second worth of mutations
+                queue.credit = Math.min(rate, queue.credit + refill);
+            }
+        }
+        for (ReplicaQueue queue : queues.values()) {
+            List<Mutation> batch = null;
+            while (!queue.pending.isEmpty() && (batch == null || batch.size() < BATCH_SIZE)) {
+                Mutation mutation = queue.pending.peek();
+                if (now - mutation.queuedAt < lagNanos || (rate > 0 && queue.credit < 1)) {
+                    break;
+                }
+                queue.pending.poll();
+                queue.credit--;
+                if (batch == null) {
+                    batch = new ArrayList<Mutation>();
+                    batches.put(queue, batch);
+                }
+                batch.add(mutation);
+            }
+        }
+    }
+
+    /**
+     * Apply a batch of mutations to a replica, skipping all but the last
+     * mutation of every key
+     */
+    private void send(MemcachedServer replica, List<Mutation> batch) {
+        Map<KeySpec, Mutation> latest = new LinkedHashMap<KeySpec, Mutation>();
+        for (Mutation mutation : batch) {
+            if (latest.remove(mutation.item.getKeySpec()) != null) {
+                numDeduplicated.incrementAndGet();
+            }
+            latest.put(mutation.item.getKeySpec(), mutation);
+        }
+
+        Storage replicaStorage = replica.getStorage();
+        // The master may drop the off-heap values of the items while they
+        // are copied to the replica
+        Item.startPinning();
+        try {
+            for (Mutation mutation : latest.values()) {
+                VBucketInfo vbi = vbInfo[mutation.item.getKeySpec().vbId];
+                // The vBucket may have moved while the mutation was queued
+                if (vbi.getOwner() != master || !vbi.getReplicas().contains(replica)) {
+                    continue;
+                }
+                if (mutation.isDelete) {
+                    replicaStorage.applyReplicatedDeletion(mutation.item, mutation.coords);
+                } else if (mutation.item.pin()) {
+                    replicaStorage.applyReplicatedMutation(mutation.item, mutation.coords);
+                } else {
+                    // Replaced or deleted on the master already, which
+                    // queued the newer version after this one
+                    continue;
+                }
+                numSent.incrementAndGet();
+            }
+        } finally {
+            Item.releasePinned();
+        }
+    }
+
+    void addStats(Map<String, String> stats) {
+        stats.put("ep_dcp_replica_items_remaining", Integer.toString(getNumPending()));
+        stats.put("ep_dcp_replica_items_sent", Long.toString(numSent.get()));
+        stats.put("ep_dcp_replica_items_deduplicated", Long.toString(numDeduplicated.get()));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The mutations of a single vBucket, ordered by their sequence number.
+ *
+ * Only the latest mutation of every key is kept: when a key is modified
+ * again, the entry of its previous mutation is dropped. Deletions are kept
+ * as well (as tombstones), so that the index tells which keys were changed
+ * or removed after any given sequence number, without having to go through
+ * all the items of the vBucket.
+ *
+ * The index only covers the mutations made after its start sequence number
+ * (see {@link #getStartSeqno()}), under a single vBucket UUID. Items which
+ * were stored in bulk (when warming up or loading a snapshot), or before the
+ * vBucket got its current UUID, are not part of it.
+ *
+ * The mutations of a key are recorded one at a time (with the lock of the
+ * key held), while those of different keys may be recorded concurrently
+ * with each other and with readers.
+ */
+public class SeqnoIndex {
+    /**
+     * The latest mutation of a key
+     */
+    public static class Entry {
+        private final KeySpec key;
+        private final long seqno;
+        private final boolean deleted;
+
+        Entry(KeySpec key, long seqno, boolean deleted) {
+            this.key = key;
+            this.seqno = seqno;
+            this.deleted = deleted;
+        }
+
+        public KeySpec getKey() {
+            return key;
+        }
+
+        public long getSeqno() {
+            return seqno;
+        }
+
+        /**
+         * @return true if the key was deleted (or expired) by this mutation
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    private final long uuid;
+    private final long startSeqno;
+    private final ConcurrentSkipListMap<Long, Entry> bySeqno = new ConcurrentSkipListMap<Long, Entry>();
+    private final ConcurrentHashMap<KeySpec, Entry> byKey = new ConcurrentHashMap<KeySpec, Entry>();
+    /**
+     * The sequence numbers which were handed out to mutations that are not
+     * recorded yet
+     * @see #reserve(StorageVBucketCoordinates)
+     */
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<Long>();
+    private final AtomicLong numDeduplicated = new AtomicLong();
+
+    /**
+     * Create an empty index
+     * @param uuid the UUID of the vBucket
+     * @param startSeqno the sequence number after which all mutations are
+     *                   recorded
+     */
+    SeqnoIndex(long uuid, long startSeqno) {
+        this.uuid = uuid;
+        this.startSeqno = startSeqno;
+    }
+
+    /**
+     * Hand out the sequence number of a new mutation. Mutations of different
+     * keys run concurrently, so they may be recorded in another order than
+     * the one of their sequence numbers. Until it is recorded, a mutation
+     * holds back the stable sequence number (see {@link #getStableSeqno()}).
+     *
+     * @param coords the coordinates of the vBucket
+     * @return the sequence number of the mutation
+     */
+    synchronized long reserve(StorageVBucketCoordinates coords) {
+        long seqno = coords.incrSeqno();
+        inFlight.add(seqno);
+        return seqno;
+    }
+
+    /**
+     * Record a mutation, replacing the previous one of the same key
+     * @param key the key
+     * @param seqno the sequence number of the mutation
+     * @param deleted whether the key was deleted
+     */
+    void record(KeySpec key, long seqno, boolean deleted) {
+        try {
+            add(key, seqno, deleted);
+        } finally {
+            inFlight.remove(seqno);
+        }
+    }
+
+    private void add(KeySpec key, long seqno, boolean deleted) {
+        if (seqno <= startSeqno) {
+            return;
+        }
+        Entry entry = new Entry(key, seqno, deleted);
+        Entry old = byKey.put(key, entry);
+        if (old != null) {
+            if (old.seqno > seqno) {
+                // A newer mutation of the key is already there
+                byKey.put(key, old);
+                return;
+            }
+            bySeqno.remove(old.seqno, old);
+            numDeduplicated.incrementAndGet();
+        }
+        bySeqno.put(seqno, entry);
+    }
+
+    /**
+     * Get the keys changed after the given sequence number. The entries are
+     * in ascending order of their sequence number. The collection is a live
+     * view: iterating over it while mutations are being made may or may not
+     * return the new ones, and a key modified in the meantime may be skipped
+     * where it was, but is then found again further on.
+     *
+     * @param seqno the sequence number (exclusive)
+     * @return the latest mutation of every key changed after it
+     */
+    public Collection<Entry> getChangesSince(long seqno) {
+        return bySeqno.tailMap(seqno, false).values();
+    }
+
+    /**
+     * Get the latest mutation of a key
+     * @param key the key
+     * @return the entry, or null if the key wasn't changed since the start
+     *         of the index
+     */
+    public Entry get(KeySpec key) {
+        return byKey.get(key);
+    }
+
+    public long getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return the sequence number after which all mutations are in the index
+     */
+    public long getStartSeqno() {
+        return startSeqno;
+    }
+
+    /**
+     * @return the sequence number of the last mutation recorded, or the start
+     *         sequence number if there is none
+     */
+    public long getHighSeqno() {
+        Map.Entry<Long, Entry> last = bySeqno.lastEntry();
+        return last == null ? startSeqno : last.getKey();
+    }
+
+    /**
+     * Get the sequence number up to which all the mutations are in the
+     * index. This is where the changes can be read up to without missing a
+     * mutation which is still being made.
+     * @return the sequence number
+     */
+    public long getStableSeqno() {
+        long high = getHighSeqno();
+        Long first;
+        synchronized (this) {
+            // No sequence number is handed out while we look
+            first = inFlight.ceiling(Long.MIN_VALUE);
+        }
+        return first == null ? high : Math.min(high, first - 1);
+    }
+
+    /**
+     * @return the number of entries (i.e. of distinct keys) in the index
+     */
+    public int size() {
+        return byKey.size();
+    }
+
+    /**
+     * @return the number of entries dropped because their key was modified
+     *         again
+     */
+    public long getNumDeduplicated() {
+        return numDeduplicated.get();
+    }
+}
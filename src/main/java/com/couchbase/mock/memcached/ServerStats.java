@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.memcached.protocol.BinaryCommand;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The traffic counters of a server.
+ *
+ * The counters are updated by all the reactor threads of the server, so
+ * rather than having a single shared cell per counter (which every thread
+ * would be fighting over), each counter is striped: a thread only updates
+ * the cells of its own stripe, and reading a counter sums up all of the
+ * stripes. The cells of a stripe are laid out next to each other, and every
+ * stripe starts on a cache line of its own.
+ */
+public class ServerStats {
+    public enum Counter {
+        BYTES_READ, BYTES_WRITTEN,
+        CURR_CONNECTIONS, TOTAL_CONNECTIONS,
+        CMD_TOTAL_OPS,
+        CMD_GET, CMD_SET, CMD_DELETE, CMD_ARITH, CMD_TOUCH, CMD_LOOKUP, CMD_MUTATION, CMD_OTHER,
+        GET_HITS, GET_MISSES,
+        DELETE_HITS, DELETE_MISSES,
+        INCR_HITS, INCR_MISSES,
+        DECR_HITS, DECR_MISSES,
+        TOUCH_HITS, TOUCH_MISSES,
+        CAS_HITS, CAS_MISSES, CAS_BADVAL,
+        AUTH_CMDS, AUTH_ERRORS;
+
+        /**
+         * @return the name of the stat, e.g. <code>bytes_read</code>
+         */
+        public String getStatName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final int NUM_COUNTERS = Counter.values().length;
+    /** The number of cells per stripe, rounded up to a multiple of a 64 byte cache line */
+    private static final int STRIDE = (NUM_COUNTERS + 7) & ~7;
+    private static final int NUM_STRIPES;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        NUM_STRIPES = Math.min(stripes, 64);
+    }
+
+    // The first stripe is offset by a cache line to keep it off the array header
+    private final AtomicLongArray cells = new AtomicLongArray((NUM_STRIPES + 1) * STRIDE);
+
+    private static int stripeOffset() {
+        long id = Thread.currentThread().getId();
+        return (((int) (id ^ (id >>> 16)) & (NUM_STRIPES - 1)) + 1) * STRIDE;
+    }
+
+    /**
+     * Add to a counter
+     * @param counter the counter to update
+     * @param delta the value to add (may be negative)
+     */
+    public void add(Counter counter, long delta) {
+        cells.addAndGet(stripeOffset() + counter.ordinal(), delta);
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * Get the current value of a counter
+     * @param counter the counter to read
+     * @return the sum over all stripes
+     */
+    public long get(Counter counter) {
+        long sum = 0;
+        for (int ii = 1; ii <= NUM_STRIPES; ++ii) {
+            sum += cells.get(ii * STRIDE + counter.ordinal());
+        }
+        return sum;
+    }
+
+    /**
+     * Get the current value of all the counters
+     * @return a map with the value of every counter
+     */
+    public Map<Counter, Long> getAll() {
+        Map<Counter, Long> values = new EnumMap<Counter, Long>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            values.put(counter, get(counter));
+        }
+        return values;
+    }
+
+    private void hitOrMiss(int status, Counter hit, Counter miss) {
+        if (status == ErrorCode.SUCCESS.value()) {
+            increment(hit);
+        } else if (status == ErrorCode.KEY_ENOENT.value()) {
+            increment(miss);
+        }
+    }
+
+    /**
+     * Account for a command which has been executed
+     *
+     * @param cmd the command
+     * @param status the status of the last response sent for the command.
+     *               -1 if none was sent, which for a quiet command means
+     *               that it either succeeded or (for the quiet gets) that
+     *               the item was not found
+     */
+    void record(BinaryCommand cmd, int status) {
+        CommandCode cc = cmd.getComCode();
+        if (status < 0) {
+            if (cc == CommandCode.GETQ || cc == CommandCode.GETKQ || cc == CommandCode.GATQ) {
+                status = ErrorCode.KEY_ENOENT.value();
+            } else {
+                status = ErrorCode.SUCCESS.value();
+            }
+        }
+
+        increment(Counter.CMD_TOTAL_OPS);
+        boolean mutation = true;
+        switch (cc) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+            case GET_REPLICA:
+            case GETL:
+            case GET_RANDOM:
+                increment(Counter.CMD_GET);
+                hitOrMiss(status, Counter.GET_HITS, Counter.GET_MISSES);
+                mutation = false;
+                break;
+            case GAT:
+            case GATQ:
+                increment(Counter.CMD_GET);
+                increment(Counter.CMD_TOUCH);
+                hitOrMiss(status, Counter.GET_HITS, Counter.GET_MISSES);
+                hitOrMiss(status, Counter.TOUCH_HITS, Counter.TOUCH_MISSES);
+                mutation = false;
+                break;
+            case TOUCH:
+                increment(Counter.CMD_TOUCH);
+                hitOrMiss(status, Counter.TOUCH_HITS, Counter.TOUCH_MISSES);
+                mutation = false;
+                break;
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ:
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ:
+                increment(Counter.CMD_SET);
+                break;
+            case DELETE:
+            case DELETEQ:
+                increment(Counter.CMD_DELETE);
+                hitOrMiss(status, Counter.DELETE_HITS, Counter.DELETE_MISSES);
+                break;
+            case INCREMENT:
+            case INCREMENTQ:
+                increment(Counter.CMD_ARITH);
+                hitOrMiss(status, Counter.INCR_HITS, Counter.INCR_MISSES);
+                break;
+            case DECREMENT:
+            case DECREMENTQ:
+                increment(Counter.CMD_ARITH);
+                hitOrMiss(status, Counter.DECR_HITS, Counter.DECR_MISSES);
+                break;
+            case SUBDOC_GET:
+            case SUBDOC_EXISTS:
+            case SUBDOC_GET_COUNT:
+            case SUBDOC_MULTI_LOOKUP:
+                increment(Counter.CMD_LOOKUP);
+                mutation = false;
+                break;
+            case SUBDOC_DICT_ADD:
+            case SUBDOC_DICT_UPSERT:
+            case SUBDOC_DELETE:
+            case SUBDOC_REPLACE:
+            case SUBDOC_ARRAY_PUSH_LAST:
+            case SUBDOC_ARRAY_PUSH_FIRST:
+            case SUBDOC_ARRAY_INSERT:
+            case SUBDOC_ARRAY_ADD_UNIQUE:
+            case SUBDOC_COUNTER:
+            case SUBDOC_MULTI_MUTATION:
+                increment(Counter.CMD_MUTATION);
+                break;
+            case SASL_AUTH:
+            case SASL_STEP:
+                increment(Counter.CMD_OTHER);
+                increment(Counter.AUTH_CMDS);
+                if (status == ErrorCode.AUTH_ERROR.value()) {
+                    increment(Counter.AUTH_ERRORS);
+                }
+                mutation = false;
+                break;
+            default:
+                increment(Counter.CMD_OTHER);
+                mutation = false;
+                break;
+        }
+
+        if (mutation && cmd.getCas() != 0) {
+            if (status == ErrorCode.SUCCESS.value()) {
+                increment(Counter.CAS_HITS);
+            } else if (status == ErrorCode.KEY_ENOENT.value()) {
+                increment(Counter.CAS_MISSES);
+            } else if (status == ErrorCode.KEY_EEXISTS.value()) {
+                increment(Counter.CAS_BADVAL);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps item values off the Java heap.
+ *
+ * The memory is split into slab classes with chunk sizes growing by a
+ * factor of {@value #GROWTH_FACTOR}, and each value is stored in the
+ * smallest chunk it fits in (just like memcached does). A slab class takes
+ * its chunks from pages of {@value #PAGE_SIZE} bytes which are allocated as
+ * direct buffers when the class runs out of free chunks. Freed chunks are
+ * kept on a free list of their class for reuse; pages are never given back.
+ * Values larger than a page get a direct buffer of their own.
+ *
+ * All methods may be called from any thread.
+ */
+public class SlabAllocator {
+    static final int PAGE_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final SlabClass[] classes;
+    private final AtomicLong largeBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public SlabAllocator() {
+        List<SlabClass> list = new ArrayList<SlabClass>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < PAGE_SIZE / 2) {
+            list.add(new SlabClass(this, list.size() + 1, size));
+            size = ((int) (size * GROWTH_FACTOR) + 7) & ~7;
+        }
+        list.add(new SlabClass(this, list.size() + 1, PAGE_SIZE));
+        classes = list.toArray(new SlabClass[list.size()]);
+    }
+
+    private SlabClass findClass(int size) {
+        int lo = 0;
+        int hi = classes.length - 1;
+        if (size > classes[hi].chunkSize) {
+            return null;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (classes[mid].chunkSize < size) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return classes[lo];
+    }
+
+    /**
+     * Store a value (and its extended attributes) in a chunk
+     * @param value the value
+     * @param xattr the extended attributes, or null if there are none
+     * @return the chunk holding the data. It is referenced once, and must
+     *         be released when no longer used
+     */
+    Chunk allocate(byte[] value, byte[] xattr) {
+        int size = value.length + (xattr == null ? 0 : xattr.length);
+        SlabClass cls = findClass(size);
+        Chunk chunk;
+        if (cls == null) {
+            largeBytes.addAndGet(size);
+            chunk = new Chunk(this, null, ByteBuffer.allocateDirect(size), 0, -1, value.length, xattr == null ? -1 : xattr.length);
+        } else {
+            chunk = cls.allocate(value.length, xattr == null ? -1 : xattr.length);
+        }
+        usedBytes.addAndGet(size);
+
+        ByteBuffer view = chunk.view();
+        view.put(value);
+        if (xattr != null) {
+            view.put(xattr);
+        }
+        return chunk;
+    }
+
+    private void free(Chunk chunk) {
+        usedBytes.addAndGet(-chunk.size());
+        if (chunk.slabClass == null) {
+            largeBytes.addAndGet(-chunk.size());
+        } else {
+            chunk.slabClass.free(chunk.offsetInClass);
+        }
+    }
+
+    /**
+     * @return the number of bytes taken from the system, i.e. all the
+     *         pages of the slab classes and the buffers of the large values
+     */
+    public long getAllocatedBytes() {
+        long total = largeBytes.get();
+        for (SlabClass cls : classes) {
+            total += cls.getPageCount() * (long) PAGE_SIZE;
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of bytes taken up by the values currently stored
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Get the stats of the allocator in the form of the memcached
+     * <code>slabs</code> stats, e.g. <code>3:chunk_size</code>
+     * @return the stats of every slab class in use
+     */
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        int active = 0;
+        for (SlabClass cls : classes) {
+            if (cls.getPageCount() == 0) {
+                continue;
+            }
+            cls.addStats(stats);
+            ++active;
+        }
+        stats.put("active_slabs", Integer.toString(active));
+        stats.put("total_malloced", Long.toString(getAllocatedBytes()));
+        stats.put("bytes_used", Long.toString(getUsedBytes()));
+        return stats;
+    }
+
+    private static class SlabClass {
+        private final SlabAllocator allocator;
+        private final int id;
+        private final int chunkSize;
+        private final int chunksPerPage;
+        private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+        /** The chunks which may be reused, by their offset within the class */
+        private int[] free = new int[16];
+        private int numFree;
+
+        SlabClass(SlabAllocator allocator, int id, int chunkSize) {
+            this.allocator = allocator;
+            this.id = id;
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = PAGE_SIZE / chunkSize;
+        }
+
+        synchronized Chunk allocate(int valueLength, int xattrLength) {
+            if (numFree == 0) {
+                ByteBuffer page = ByteBuffer.allocateDirect(PAGE_SIZE);
+                int first = pages.size() * chunksPerPage;
+                pages.add(page);
+                if (free.length < chunksPerPage) {
+                    int[] grown = new int[Math.max(free.length * 2, chunksPerPage)];
+                    System.arraycopy(free, 0, grown, 0, numFree);
+                    free = grown;
+                }
+                // Hand out the chunks of the new page from its start
+                for (int ii = chunksPerPage - 1; ii >= 0; --ii) {
+                    free[numFree++] = first + ii;
+                }
+            }
+            int offset = free[--numFree];
+            ByteBuffer page = pages.get(offset / chunksPerPage);
+            return new Chunk(allocator, this, page, (offset % chunksPerPage) * chunkSize, offset, valueLength, xattrLength);
+        }
+
+        synchronized void free(int offset) {
+            if (numFree == free.length) {
+                int[] grown = new int[free.length * 2];
+                System.arraycopy(free, 0, grown, 0, numFree);
+                free = grown;
+            }
+            free[numFree++] = offset;
+        }
+
+        synchronized int getPageCount() {
+            return pages.size();
+        }
+
+        synchronized void addStats(Map<String, String> stats) {
+            int total = pages.size() * chunksPerPage;
+            stats.put(id + ":chunk_size", Integer.toString(chunkSize));
+            stats.put(id + ":chunks_per_page", Integer.toString(chunksPerPage));
+            stats.put(id + ":total_pages", Integer.toString(pages.size()));
+            stats.put(id + ":total_chunks", Integer.toString(total));
+            stats.put(id + ":used_chunks", Integer.toString(total - numFree));
+            stats.put(id + ":free_chunks", Integer.toString(numFree));
+        }
+    }
+
+    /**
+     * A value stored by the allocator. The chunk is reference counted, and
+     * given back to its slab class once the last reference is released.
+     * Readers which may race with the owner releasing the chunk must
+     * {@link #retain()} it for as long as they read from it.
+     */
+    static class Chunk {
+        private static final AtomicIntegerFieldUpdater<Chunk> REFS =
+                AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "refs");
+
+        private final SlabAllocator allocator;
+        private final SlabClass slabClass;
+        private final ByteBuffer page;
+        private final int offset;
+        private final int offsetInClass;
+        private final int valueLength;
+        private final int xattrLength;
+        private volatile int refs = 1;
+
+        private Chunk(SlabAllocator allocator, SlabClass slabClass, ByteBuffer page, int offset, int offsetInClass,
+                      int valueLength, int xattrLength) {
+            this.allocator = allocator;
+            this.slabClass = slabClass;
+            this.page = page;
+            this.offset = offset;
+            this.valueLength = valueLength;
+            this.xattrLength = xattrLength;
+            this.offsetInClass = offsetInClass;
+        }
+
+        private ByteBuffer view() {
+            ByteBuffer view = page.duplicate();
+            view.limit(offset + size());
+            view.position(offset);
+            return view;
+        }
+
+        int size() {
+            return valueLength + (xattrLength < 0 ? 0 : xattrLength);
+        }
+
+        int getValueLength() {
+            return valueLength;
+        }
+
+        int getXattrLength() {
+            return xattrLength < 0 ? 0 : xattrLength;
+        }
+
+        SlabAllocator getAllocator() {
+            return allocator;
+        }
+
+        byte[] copyValue() {
+            byte[] ret = new byte[valueLength];
+            view().get(ret);
+            return ret;
+        }
+
+        /**
+         * Get a view of the value, which is only valid for as long as the
+         * caller holds a reference to the chunk
+         * @return the view
+         */
+        ByteBuffer valueView() {
+            ByteBuffer view = view();
+            view.limit(offset + valueLength);
+            return view.slice();
+        }
+
+        byte[] copyXattr() {
+            if (xattrLength < 0) {
+                return null;
+            }
+            byte[] ret = new byte[xattrLength];
+            ByteBuffer view = view();
+            view.position(offset + valueLength);
+            view.get(ret);
+            return ret;
+        }
+
+        /**
+         * Take a reference to the chunk
+         * @return false if the chunk has already been freed
+         */
+        boolean retain() {
+            int current;
+            do {
+                current = refs;
+                if (current == 0) {
+                    return false;
+                }
+            } while (!REFS.compareAndSet(this, current, current + 1));
+            return true;
+        }
+
+        void release() {
+            if (REFS.decrementAndGet(this) == 0) {
+                allocator.free(this);
+            }
+        }
+    }
+}
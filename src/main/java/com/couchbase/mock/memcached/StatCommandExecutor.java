@@ -61,7 +61,7 @@ public class StatCommandExecutor implements CommandExecutor {
         client.sendResponse(new BinaryStatResponse(cmd, "key_cas", ""+item.getCas()));
         client.sendResponse(new BinaryStatResponse(cmd, "key_exptime", ""+item.getExpiryTime()));
         boolean isDirty = false;
-        if (diskItem == null || diskItem.getCas() != item.getCas()) {
+        if (diskItem == null || diskItem.getCasReal() != item.getCasReal()) {
             isDirty = true;
         }
         client.sendResponse(new BinaryStatResponse(cmd, "key_is_dirty", isDirty ? "1" : "0"));
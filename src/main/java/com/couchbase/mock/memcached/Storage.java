@@ -16,13 +16,18 @@
 package com.couchbase.mock.memcached;
 
 import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.AccessControlException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class representing a node's storage.
@@ -44,40 +49,66 @@ public class Storage {
     public enum StorageType { CACHE, DISK }
     private final VBucketInfo vbInfo[];
     private final VBucketStore cacheStore;
-    private final PersistentStorage persistStore;
+    private final PersistentStore persistStore;
+    private final DiskStore diskStore;
     private final MemcachedServer server;
+    private final SlabAllocator allocator;
+    private final ItemPager pager;
+    private final Replicator replicator;
     private boolean persistEnabled = true;
     private boolean replicationEnabled = true;
 
     private final static VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
-    private class PersistentStorage {
+    /**
+     * Keeps the persisted items in memory
+     */
+    private class MemoryStore implements PersistentStore {
         class Slot {
             long uuid = 0;
             long seqno = 0;
-            Map<KeySpec, Item> mm = new HashMap<KeySpec, Item>();
+            final Map<KeySpec, Item> mm = new ConcurrentHashMap<KeySpec, Item>();
         }
         final Slot[] slots;
 
-        PersistentStorage(int nvb) {
+        MemoryStore(int nvb) {
             slots = new Slot[nvb];
         }
 
-        private Slot updateCommon(KeySpec ks, VBucketCoordinates coords) {
+        private synchronized Slot updateCommon(KeySpec ks, VBucketCoordinates coords) {
             Slot slot = slots[ks.vbId];
             if (slot == null) {
                 slot = slots[ks.vbId] = new Slot();
             }
-            if (coords.getUuid() != 0 && coords.getSeqno() != 0) {
+            // Mutations of different keys may be persisted out of order
+            if (coords.getUuid() != 0 && coords.getSeqno() != 0 &&
+                    (coords.getUuid() != slot.uuid || coords.getSeqno() > slot.seqno)) {
                 slot.uuid = coords.getUuid();
                 slot.seqno = coords.getSeqno();
             }
             return slot;
         }
 
+        @Override
         public void put(Item item, VBucketCoordinates coords) {
-            updateCommon(item.getKeySpec(), coords).mm.put(item.getKeySpec(), item);
+            if (allocator != null && !item.isOffHeap()) {
+                // Keep the copy through a shared reference, like the
+                // versions of the cache
+                Item copy = new Item(item, allocator);
+                copy.retainShared();
+                copy.releaseValue();
+                item = copy;
+            } else if (!item.retainShared()) {
+                // Replaced in the cache already, which persists the newer
+                // version as well
+                return;
+            }
+            Item old = updateCommon(item.getKeySpec(), coords).mm.put(item.getKeySpec(), item);
+            if (old != null) {
+                old.releaseShared();
+            }
         }
 
+        @Override
         public Item get(KeySpec ks) {
             Slot ss = slots[ks.vbId];
             if (ss != null) {
@@ -87,29 +118,43 @@ public class Storage {
             }
         }
 
-        public Collection<Item> values() {
-            ArrayList<Item> ret = new ArrayList<Item>();
-            for (Slot s : slots) {
-                if (s != null) {
-                    ret.addAll(s.mm.values());
-                }
+        @Override
+        public boolean isPersisted(Item item) {
+            Item persisted = get(item.getKeySpec());
+            return persisted != null && persisted.getCasReal() == item.getCasReal();
+        }
+
+        @Override
+        public Collection<Item> values(int vbid) {
+            Slot s = slots[vbid];
+            if (s == null) {
+                return Collections.emptyList();
             }
-            return ret;
+            return s.mm.values();
         }
 
+        @Override
         public void clear() {
             for (Slot s : slots) {
                 if (s != null) {
+                    for (Item item : s.mm.values()) {
+                        item.releaseShared();
+                    }
                     s.mm.clear();
                 }
             }
         }
 
+        @Override
         public void remove(KeySpec ks, VBucketCoordinates coords) {
-            updateCommon(ks, coords).mm.remove(ks);
+            Item old = updateCommon(ks, coords).mm.remove(ks);
+            if (old != null) {
+                old.releaseShared();
+            }
         }
 
-        VBucketCoordinates getCoords(int vbid) {
+        @Override
+        public synchronized VBucketCoordinates getCoords(int vbid) {
             Slot ss = slots[vbid];
             long seqno = 0;
             long uuid = 0;
@@ -121,7 +166,8 @@ public class Storage {
             return new BasicVBucketCoordinates(uuid, seqno);
         }
 
-        public void updateSingleCoords(int vbid, VBucketCoordinates coords) {
+        @Override
+        public synchronized void updateSingleCoords(int vbid, VBucketCoordinates coords) {
             Slot s = slots[vbid];
             if (s != null) {
                 s.uuid = coords.getUuid();
@@ -144,6 +190,7 @@ public class Storage {
             if (storage.replicationEnabled) {
                 storage.replicateDeletedItem(itm.getKeySpec(), coords);
             }
+            storage.notifyStreams(itm.getKeySpec().vbId);
         }
     }
 
@@ -161,18 +208,88 @@ public class Storage {
             if (storage.replicationEnabled) {
                 storage.replicateMutatedItem(itm, coords);
             }
+            storage.notifyStreams(itm.getKeySpec().vbId);
         }
     }
 
     public Storage(VBucketInfo vbi[], MemcachedServer server) {
+        this(vbi, server, new BucketConfiguration());
+    }
+
+    /**
+     * @param vbi the vBuckets of the bucket
+     * @param server the node owning the storage
+     * @param config the configuration of the bucket. This provides the
+     *               memory quota of the node, where to keep the values and
+     *               how the mutations are replicated
+     */
+    public Storage(VBucketInfo vbi[], MemcachedServer server, BucketConfiguration config) {
+        this(vbi, server, config, (DiskStore) null);
+    }
+
+    /**
+     * @param vbi the vBuckets of the bucket
+     * @param server the node owning the storage
+     * @param config the configuration of the bucket
+     * @param dataDir where to keep the persisted items, or null to keep them
+     *                in memory. Any items found there are loaded into the
+     *                cache
+     * @throws IOException if the persisted items can't be opened
+     */
+    public Storage(VBucketInfo vbi[], MemcachedServer server, BucketConfiguration config, File dataDir) throws IOException {
+        this(vbi, server, config, dataDir == null ? null : new DiskStore(dataDir, vbi.length));
+    }
+
+    private Storage(VBucketInfo vbi[], MemcachedServer server, BucketConfiguration config, DiskStore diskStore) {
         vbInfo = vbi;
+        this.allocator = config.offHeapValues ? new SlabAllocator() : null;
         VBucketStore.ItemAction deleteCallback = new DeleteActionCallback(this);
         VBucketStore.ItemAction mutateCallback = new MutateActionCallback(this);
-        cacheStore = new VBucketStore(vbi);
-        persistStore = new PersistentStorage(vbi.length);
+        cacheStore = new VBucketStore(vbi, allocator);
+        this.diskStore = diskStore;
+        persistStore = diskStore == null ? new MemoryStore(vbi.length) : diskStore;
+        pager = new ItemPager(this, cacheStore, config.ramQuota, config.type == Bucket.BucketType.MEMCACHED);
         cacheStore.onItemDelete = deleteCallback;
         cacheStore.onItemMutated = mutateCallback;
+        cacheStore.pager = pager;
         this.server = server;
+        if (config.asyncReplication) {
+            replicator = new Replicator(vbi, server, config.replicationLag, config.replicationRate);
+        } else {
+            replicator = null;
+        }
+        if (diskStore != null) {
+            warmup();
+        }
+    }
+
+    /**
+     * Load the items which were persisted by a previous run into the cache
+     */
+    private void warmup() {
+        for (int vbId = 0; vbId < vbInfo.length; vbId++) {
+            for (Item item : persistStore.values(vbId)) {
+                cacheStore.putItem(item);
+            }
+            cacheStore.seekSeqno(vbId, persistStore.getCoords(vbId).getSeqno());
+            pager.check();
+        }
+    }
+
+    /**
+     * Wake up the DCP streams of a vBucket (if any) after it was modified
+     * @param vbId the vBucket
+     */
+    private void notifyStreams(int vbId) {
+        if (server != null) {
+            server.notifyDcpProducers(vbId);
+        }
+    }
+
+    private void notifyAllStreams() {
+        for (int vbId = 0; vbId < vbInfo.length; vbId++) {
+            notifyStreams(vbId);
+        }
     }
 
     public void persistDeletedItem(KeySpec ks, VBucketCoordinates coords) {
@@ -180,7 +297,7 @@ public class Storage {
     }
 
     public void persistMutatedItem(Item itm, VBucketCoordinates coords) {
-        persistStore.put(new Item(itm), coords);
+        persistStore.put(itm, coords);
     }
 
     private void replicateMutatedItem(Item itm, VBucketCoordinates coords) {
@@ -188,10 +305,14 @@ public class Storage {
         if (vbi.getOwner() != server) {
             return;
         }
+        // Items are never modified once stored, so every replica gets the
+        // very same instance
         for (MemcachedServer replica : vbi.getReplicas()) {
-            Item newItem = new Item(itm);
-            VBucketStore rStore = replica.getStorage().cacheStore;
-            rStore.forceStorageMutation(newItem, coords);
+            if (replicator != null) {
+                replicator.enqueue(replica, itm, coords, false);
+            } else {
+                replica.getStorage().applyReplicatedMutation(itm, coords);
+            }
         }
     }
 
@@ -202,31 +323,82 @@ public class Storage {
         }
         Item itm = new Item(ks);
         for (MemcachedServer replica : vbi.getReplicas()) {
-            VBucketStore rStore = replica.getStorage().cacheStore;
-            PersistentStorage pStore = replica.getStorage().persistStore;
-            rStore.forceDeleteMutation(itm, coords);
+            if (replicator != null) {
+                replicator.enqueue(replica, itm, coords, true);
+            } else {
+                replica.getStorage().applyReplicatedDeletion(itm, coords);
+            }
+        }
+    }
 
+    /**
+     * Apply a mutation received from the master of a vBucket this node is a
+     * replica of
+     * @param itm the item, which is stored as is
+     * @param coords the coordinates of the mutation on the master
+     */
+    void applyReplicatedMutation(Item itm, VBucketCoordinates coords) {
+        cacheStore.forceStorageMutation(itm, coords);
+    }
+
+    /**
+     * Apply a deletion received from the master of a vBucket this node is a
+     * replica of
+     * @param itm an item holding the key which was deleted
+     * @param coords the coordinates of the deletion on the master
+     */
+    void applyReplicatedDeletion(Item itm, VBucketCoordinates coords) {
+        cacheStore.forceDeleteMutation(itm, coords);
+
+        if (diskStore != null) {
+            persistStore.remove(itm.getKeySpec(), coords);
+        } else {
             // Nasty hack needed to retain compat with existing tests which assume that
             // deletion operations on the mock will silently 'persist' this mutation
             // on disk.
-            pStore.put(itm, coords);
+            persistStore.put(itm, coords);
         }
     }
 
+    /**
+     * @return the replicator sending the mutations of this node to the
+     *         replicas in the background, or null if they are replicated
+     *         right away
+     */
+    Replicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * @return the store writing the persisted items to disk in the
+     *         background, or null if they are kept in memory
+     */
+    DiskStore getDiskStore() {
+        return diskStore;
+    }
+
     public Item getCached(KeySpec ks) {
         return cacheStore.get(ks);
     }
     public Item getPersisted(KeySpec ks) {
         return persistStore.get(ks);
     }
+
+    /**
+     * @param item a version of an item
+     * @return true if that version was persisted
+     */
+    boolean isPersisted(Item item) {
+        return persistStore.isPersisted(item);
+    }
     public void putCached(Item itm) {
-        cacheStore.getMap().put(itm.getKeySpec(), itm);
+        cacheStore.putItem(itm);
     }
     public void putPersisted(Item itm) {
         persistStore.put(itm, EMPTY_COORDS);
     }
     public void removeCached(KeySpec ks) {
-        cacheStore.getMap().remove(ks);
+        cacheStore.removeItem(ks);
     }
     public void removePersisted(KeySpec ks) {
         persistStore.remove(ks, EMPTY_COORDS);
@@ -239,6 +411,13 @@ public class Storage {
         return vbInfo[vb];
     }
 
+    /**
+     * @return the number of vBuckets of the bucket
+     */
+    int getNumVBuckets() {
+        return vbInfo.length;
+    }
+
     private void verifyOwnership(MemcachedServer server, short vBucketId) {
         if (server != null && server.getBucket().getType() == Bucket.BucketType.MEMCACHED) {
             return;
@@ -271,30 +450,185 @@ public class Storage {
     }
 
     public Iterable<Item> getMasterStore(final StorageType type) {
-        // Create the list now:
+        // Create the list now. Items are stored per vBucket, so only the
+        // vBuckets this server is the master of need to be looked at
         List<Item> validItems = new ArrayList<Item>();
-        Collection<Item> inputs;
+        for (int vbId = 0; vbId < vbInfo.length; vbId++) {
+            if (vbInfo[vbId].getOwner() != server) {
+                continue;
+            }
+            if (type == StorageType.CACHE) {
+                addCachedItems(vbId, validItems);
+            } else {
+                validItems.addAll(persistStore.values(vbId));
+            }
+        }
+        return validItems;
+    }
 
-        if (type == StorageType.CACHE) {
-            inputs = cacheStore.getMap().values();
-        } else {
-            inputs = persistStore.values();
+    private void addCachedItems(int vbId, List<Item> items) {
+        for (Item item : cacheStore.getPartition(vbId).values()) {
+            if (item.isEjected()) {
+                // Its value is only on disk
+                item = persistStore.get(item.getKeySpec());
+            }
+            // The caller doesn't pin the items, so their values are copied
+            // back onto the heap. An item whose value was released was
+            // dropped in the meantime
+            item = item == null ? null : item.onHeap();
+            if (item != null) {
+                items.add(item);
+            }
         }
+    }
 
-        for (Item itm : inputs) {
-            int vbId = itm.getKeySpec().vbId;
-            MemcachedServer owner = vbInfo[vbId].getOwner();
-            if (owner == server) {
-                validItems.add(itm);
+    /**
+     * Get the items of a vBucket held by this node, whether it is the
+     * master or a replica of the vBucket
+     * @param vbId the vBucket
+     * @return the items, including the ones whose value was ejected
+     */
+    public List<Item> getCachedItems(short vbId) {
+        List<Item> items = new ArrayList<Item>();
+        addCachedItems(vbId, items);
+        return items;
+    }
+
+    /**
+     * Load the items of a vBucket in bulk (e.g. from a snapshot). The items
+     * are stored and persisted as they are, without going through the
+     * replication; the caller loads the vBucket into every node holding a
+     * copy of it.
+     * @param vbId the vBucket
+     * @param items the items, which are shared with the other nodes
+     * @param coords the coordinates of the vBucket after the items were made
+     */
+    public void loadVBucket(short vbId, Collection<Item> items, VBucketCoordinates coords) {
+        for (Item item : items) {
+            Item stored = cacheStore.putItem(item);
+            if (persistEnabled) {
+                persistStore.put(stored, coords);
             }
         }
+        cacheStore.restoreCoords(vbId, coords);
+        persistStore.updateSingleCoords(vbId, coords);
+        pager.check();
+    }
 
-        return validItems;
+    /**
+     * Get the state and the number of items of every vBucket this server
+     * holds a copy of, in the form of the <code>vbucket-details</code> stats
+     * @return the stats, e.g. <code>vb_0</code> and <code>vb_0:num_items</code>
+     */
+    public Map<String, String> getVBucketStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        for (int vbId = 0; vbId < vbInfo.length; vbId++) {
+            String state;
+            if (vbInfo[vbId].getOwner() == server) {
+                state = "active";
+            } else if (vbInfo[vbId].getReplicas().contains(server)) {
+                state = "replica";
+            } else {
+                continue;
+            }
+            stats.put("vb_" + vbId, state);
+            stats.put("vb_" + vbId + ":num_items", Integer.toString(cacheStore.getItemCount(vbId)));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the allocator holding the values of the items, or null if
+     *         they are kept on the heap
+     */
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Delete the items which have expired from the vBuckets this server is
+     * the master of. The deletions are persisted and replicated like any
+     * other, so the replicas don't expire items by themselves.
+     * @param now the current time (in seconds, including the clock offset)
+     * @param batchSize how many items to look at in one go
+     * @return the number of items deleted
+     */
+    long expireItems(long now, int batchSize) {
+        boolean ownsAll = server != null && server.getBucket().getType() == Bucket.BucketType.MEMCACHED;
+        long before = cacheStore.getNumExpiredByPager();
+        for (int vbId = 0; vbId < vbInfo.length; vbId++) {
+            if (!ownsAll && vbInfo[vbId].getOwner() != server) {
+                continue;
+            }
+            while (cacheStore.expireItems(vbId, now, batchSize) == batchSize) {
+                // There may be more
+            }
+        }
+        return cacheStore.getNumExpiredByPager() - before;
+    }
+
+    /**
+     * Get the number of items which have expired, in the form of stats
+     * @return the <code>ep_expired_access</code> and <code>ep_expired_pager</code> stats
+     */
+    public Map<String, String> getExpiryStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        stats.put("ep_expired_access", Long.toString(cacheStore.getNumExpiredOnAccess()));
+        stats.put("ep_expired_pager", Long.toString(cacheStore.getNumExpiredByPager()));
+        return stats;
+    }
+
+    /**
+     * Get the memory usage of the items and the paging counters, in the form
+     * of the <code>memory</code> stats
+     * @return the stats, e.g. <code>mem_used</code> and <code>ep_num_value_ejects</code>
+     */
+    public Map<String, String> getMemoryStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        pager.addStats(stats);
+        return stats;
+    }
+
+    /**
+     * Get the progress of the flusher, in the form of stats
+     * @return the <code>ep_queue_size</code> and related stats, or an empty
+     *         map if the persisted items are kept in memory
+     */
+    public Map<String, String> getPersistenceStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        if (diskStore != null) {
+            diskStore.addStats(stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Get the progress of the replication, in the form of stats
+     * @return the <code>ep_dcp_replica_items_remaining</code> and related
+     *         stats, or an empty map if the mutations are replicated right away
+     */
+    public Map<String, String> getReplicationStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        if (replicator != null) {
+            replicator.addStats(stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the number of bytes accounted for by the items of this node
+     */
+    public long getMemUsed() {
+        return pager.getMemUsed();
     }
 
     public void flush() {
-        cacheStore.getMap().clear();
+        if (replicator != null) {
+            replicator.clear();
+        }
+        cacheStore.clear();
         persistStore.clear();
+        notifyAllStreams();
     }
 
     public void updateCoordinateInfo(VBucketInfo[] vbi) {
@@ -302,5 +636,7 @@ public class Storage {
         for (int i = 0; i < vbi.length; i++) {
             persistStore.updateSingleCoords(i, cacheStore.getCurrentCoords(i));
         }
+        // The streams of the vBuckets end, as they now have a new UUID
+        notifyAllStreams();
     }
 }
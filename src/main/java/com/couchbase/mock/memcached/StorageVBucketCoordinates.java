@@ -36,8 +36,19 @@ public class StorageVBucketCoordinates implements VBucketCoordinates {
         return uuid;
     }
 
+    /**
+     * Move the sequence number forward to the given one. Mutations may be
+     * replicated out of order (when they were made concurrently), so this
+     * never moves it back.
+     * @param at the sequence number of a mutation
+     */
     void seekSeqno(long at) {
-        seqno.set(at);
+        long current;
+        while (at > (current = seqno.get())) {
+            if (seqno.compareAndSet(current, at)) {
+                break;
+            }
+        }
     }
 
     public StorageVBucketCoordinates(long id) {
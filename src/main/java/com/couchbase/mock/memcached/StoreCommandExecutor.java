@@ -35,11 +35,11 @@ public class StoreCommandExecutor implements CommandExecutor {
 
         MutationStatus ms;
         MutationInfoWriter miw = client.getMutinfoWriter();
-        Item item = command.getItem();
-        if (item.getValue().length > Info.itemSizeMax()) {
+        if (command.getValueLength() > Info.itemSizeMax()) {
             client.sendResponse(new BinaryResponse(cmd, ErrorCode.E2BIG));
             return;
         }
+        Item item = command.getItem();
 
         CommandCode cc = cmd.getComCode();
 
@@ -65,6 +65,6 @@ public class StoreCommandExecutor implements CommandExecutor {
         if (ms.getStatus() == ErrorCode.SUCCESS && (cc == CommandCode.ADDQ || cc == CommandCode.SETQ || cc == CommandCode.REPLACEQ)) {
             return;
         }
-        client.sendResponse(new BinaryStoreResponse(command, ms, miw, item.getCas()));
+        client.sendResponse(new BinaryStoreResponse(command, ms, miw, ms.getCas()));
     }
 }
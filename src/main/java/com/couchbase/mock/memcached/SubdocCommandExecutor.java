@@ -144,10 +144,11 @@ public class SubdocCommandExecutor implements CommandExecutor {
             }
         }
 
+        long cas;
         if (command.getCas() != 0) {
-            subdocInput.setCas(command.getCas());
+            cas = command.getCas();
         } else {
-            subdocInput.setCas(existing.getCas());
+            cas = existing.getCas();
         }
 
         byte[] curValue;
@@ -197,7 +198,7 @@ public class SubdocCommandExecutor implements CommandExecutor {
             }
             Item newItm = new Item(
                     existing.getKeySpec(), existing.getFlags(), subdocInput.getExpiryTime(),
-                    body, xattr, subdocInput.getCas());
+                    body, xattr, cas);
             if (needsCreate) {
                 ms = cache.add(newItm, client.supportsXerror());
                 if (ms.getStatus() == ErrorCode.KEY_EEXISTS) {
@@ -209,7 +210,7 @@ public class SubdocCommandExecutor implements CommandExecutor {
             }
 
             if (ms.getStatus() == ErrorCode.SUCCESS) {
-                client.sendResponse(new BinaryResponse(cmd, ms, miw, newItm.getCas(), value));
+                client.sendResponse(new BinaryResponse(cmd, ms, miw, ms.getCas(), value));
             } else {
                 client.sendResponse(new BinaryResponse(cmd, ms.getStatus()));
             }
@@ -250,7 +250,7 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
                         throw new RuntimeException(ex);
                     }
                 }
-                client.sendResponse(new BinaryResponse(command, ms, miw, newItem.getCas(), bao.toByteArray()));
+                client.sendResponse(new BinaryResponse(command, ms, miw, ms.getCas(), bao.toByteArray()));
             } else {
                 ByteArrayOutputStream bao = new ByteArrayOutputStream();
                 boolean hasError = false;
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timer wheel.
+ *
+ * Time is divided into ticks, and each deadline is put into the bucket of
+ * the tick it falls into (modulo the number of buckets). Scheduling a
+ * deadline is O(1), and expiring them only needs to look at the buckets of
+ * the ticks which have passed. The wheel doesn't keep time by itself: the
+ * owner is expected to call {@link #expire(long, Collection)} at least once
+ * per tick while the wheel isn't empty.
+ *
+ * Like the {@link MemcachedReactor} owning it, a wheel is only ever used by
+ * a single thread.
+ *
+ * @param <T> the type of the values scheduled
+ */
+class TimerWheel<T> {
+    private static class Timeout<T> {
+        final long deadline;
+        final T value;
+
+        Timeout(long deadline, T value) {
+            this.deadline = deadline;
+            this.value = value;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Timeout<T>>> buckets;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create a new wheel
+     * @param tickMillis the length of a tick in milliseconds
+     * @param numBuckets the number of buckets
+     * @param now the current time in milliseconds
+     */
+    TimerWheel(long tickMillis, int numBuckets, long now) {
+        this.tickMillis = tickMillis;
+        buckets = new ArrayList<List<Timeout<T>>>(numBuckets);
+        for (int ii = 0; ii < numBuckets; ++ii) {
+            buckets.add(new ArrayList<Timeout<T>>());
+        }
+        currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedule a value to expire at the given time
+     * @param deadline the time (in milliseconds) at which it expires
+     * @param value the value
+     */
+    void schedule(long deadline, T value) {
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        buckets.get((int) (tick % buckets.size())).add(new Timeout<T>(deadline, value));
+        ++size;
+    }
+
+    /**
+     * Remove all the values whose deadline has passed
+     * @param now the current time in milliseconds
+     * @param expired where to put the expired values
+     */
+    void expire(long now, Collection<T> expired) {
+        long nowTick = now / tickMillis;
+        long lastTick = Math.min(nowTick, currentTick + buckets.size());
+        for (long tick = currentTick + 1; tick <= lastTick && size > 0; ++tick) {
+            Iterator<Timeout<T>> iterator = buckets.get((int) (tick % buckets.size())).iterator();
+            while (iterator.hasNext()) {
+                Timeout<T> timeout = iterator.next();
+                // The bucket also holds deadlines a number of rotations ahead
+                if (timeout.deadline <= now) {
+                    iterator.remove();
+                    --size;
+                    expired.add(timeout.value);
+                }
+            }
+        }
+        if (nowTick > currentTick) {
+            currentTick = nowTick;
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+}
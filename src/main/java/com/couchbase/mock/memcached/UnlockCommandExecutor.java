@@ -28,12 +28,8 @@ public class UnlockCommandExecutor implements CommandExecutor {
 
         if (item == null) {
             ec = ErrorCode.KEY_ENOENT;
-        } else if (!item.isLocked()) {
-            ec = ErrorCode.ETMPFAIL;
-        } else if (!item.ensureUnlocked(cmd.getCas())) {
-            ec = ErrorCode.ETMPFAIL;
         } else {
-            ec = ErrorCode.SUCCESS;
+            ec = cache.unlock(item, cmd.getCas());
         }
 
         client.sendResponse(new BinaryResponse(cmd, ec));
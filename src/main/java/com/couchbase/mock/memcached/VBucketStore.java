@@ -15,16 +15,22 @@
  */
 package com.couchbase.mock.memcached;
 
+import com.couchbase.mock.CachedClock;
 import com.couchbase.mock.Info;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 
-import java.util.Collection;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Storage operations representing a single vBucket. This is a replacement for
@@ -38,23 +44,371 @@ public class VBucketStore {
         public void onAction(VBucketStore store, Item itm, VBucketCoordinates ms);
     }
 
-    private volatile long casCounter;
+    /** The number of stripes the keys are spread over for locking (a power of two) */
+    private static final int NUM_KEY_LOCKS = 1024;
+    /** How many keys of a vBucket GET_RANDOM tries before moving on to the next one */
+    private static final int MAX_RANDOM_ATTEMPTS = 8;
+
+    /**
+     * The last CAS handed out
+     * @see #nextCas()
+     */
+    private final AtomicLong casCounter = new AtomicLong();
+    /**
+     * The locks serializing the mutations of a key. Reads don't need a lock;
+     * the mutations of a key are done with the lock of its stripe held, so
+     * that checking the current version of an item (its CAS, whether it is
+     * locked and so on) and storing the new one is atomic.
+     */
+    private final Object[] keyLocks = new Object[NUM_KEY_LOCKS];
     private static final long THIRTY_DAYS = 30 * 24 * 60 * 60;
     static final int DEFAULT_EXPIRY_TIME = 15;
     static final int MAXIMUM_EXPIRY_TIME = 29;
 
-    private final Map<KeySpec, Item> kv = new ConcurrentHashMap<KeySpec, Item>();
+    /**
+     * The items, with a hash table of their own for each vBucket. The table of
+     * a vBucket is only created once the first item is stored in it, and
+     * grows with the number of items in that vBucket alone.
+     */
+    private final AtomicReferenceArray<ConcurrentHashMap<KeySpec, Item>> partitions;
+    /**
+     * The items which have an expiry time, for each vBucket, ordered by when
+     * they expire. An entry is not removed when its item is deleted, replaced
+     * or touched; it is simply skipped once it comes up. Entries refer to the
+     * version of an item by its CAS, so that they stay valid while the
+     * value of the item is ejected and read back.
+     */
+    private final AtomicReferenceArray<PriorityQueue<ExpiryEntry>> expiryIndex;
+    /**
+     * The latest mutation of every key, for each vBucket, ordered by sequence
+     * number. Like the partitions, the index of a vBucket is created on
+     * demand.
+     */
+    private final AtomicReferenceArray<SeqnoIndex> seqnoIndex;
+    /** The keys of every vBucket, to pick random items from */
+    private final AtomicReferenceArray<KeySampler> samplers;
+    private final Random random = new Random();
+    private final AtomicLong numExpiredOnAccess = new AtomicLong();
+    private final AtomicLong numExpiredByPager = new AtomicLong();
     private final StorageVBucketCoordinates[] vbCoords;
     private final Map<CoordKey, VBucketCoordinates>allCoords = new HashMap<CoordKey, VBucketCoordinates>();
 
+    private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+        final int expiryTime;
+        final KeySpec keySpec;
+        final long cas;
+
+        ExpiryEntry(Item item) {
+            this.expiryTime = item.getExpiryTime();
+            this.keySpec = item.getKeySpec();
+            this.cas = item.getCasReal();
+        }
+
+        boolean isStale(Item current) {
+            return current == null || current.getCasReal() != cas || current.getExpiryTime() != expiryTime;
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry other) {
+            return expiryTime < other.expiryTime ? -1 : (expiryTime == other.expiryTime ? 0 : 1);
+        }
+    }
+
     public ItemAction onItemDelete;
     public ItemAction onItemMutated;
+    /** Where the values of the items are kept, or null to keep them on the heap */
+    private final SlabAllocator allocator;
+    /** Keeps the items within the memory quota, if any */
+    ItemPager pager;
 
     public VBucketStore(VBucketInfo[] vbi) {
+        this(vbi, null);
+    }
+
+    VBucketStore(VBucketInfo[] vbi, SlabAllocator allocator) {
+        this.allocator = allocator;
         vbCoords = new StorageVBucketCoordinates[vbi.length];
+        partitions = new AtomicReferenceArray<ConcurrentHashMap<KeySpec, Item>>(vbi.length);
+        expiryIndex = new AtomicReferenceArray<PriorityQueue<ExpiryEntry>>(vbi.length);
+        seqnoIndex = new AtomicReferenceArray<SeqnoIndex>(vbi.length);
+        samplers = new AtomicReferenceArray<KeySampler>(vbi.length);
+        for (int ii = 0; ii < keyLocks.length; ++ii) {
+            keyLocks[ii] = new Object();
+        }
         setCurrentCoords(vbi);
     }
 
+    private ConcurrentHashMap<KeySpec, Item> getOrCreatePartition(int vbid) {
+        ConcurrentHashMap<KeySpec, Item> partition = partitions.get(vbid);
+        if (partition == null) {
+            partitions.compareAndSet(vbid, null, new ConcurrentHashMap<KeySpec, Item>());
+            partition = partitions.get(vbid);
+        }
+        return partition;
+    }
+
+    /**
+     * Bring the sampler of a vBucket in line with its partition, after a key
+     * was stored or removed
+     */
+    private void updateSampler(KeySpec ks) {
+        KeySampler sampler = samplers.get(ks.vbId);
+        if (sampler == null) {
+            samplers.compareAndSet(ks.vbId, null, new KeySampler());
+            sampler = samplers.get(ks.vbId);
+        }
+        sampler.update(ks, getItem(ks) != null);
+    }
+
+    private Item getItem(KeySpec ks) {
+        ConcurrentMap<KeySpec, Item> partition = partitions.get(ks.vbId);
+        return partition == null ? null : partition.get(ks);
+    }
+
+    /**
+     * Store an item without updating the vBucket coordinates or invoking any
+     * of the callbacks. If values are kept off-heap, the store keeps a copy
+     * of the item rather than the item itself.
+     * @param item the item to store
+     * @return the item as it is stored, which is what the callbacks are
+     *         handed
+     */
+    Item putItem(Item item) {
+        if (allocator != null) {
+            item = new Item(item, allocator);
+        }
+        Item old = getOrCreatePartition(item.getKeySpec().vbId).put(item.getKeySpec(), item);
+        long delta = item.getMemorySize();
+        if (old != null) {
+            delta -= old.getMemorySize();
+            old.releaseValue();
+        } else {
+            updateSampler(item.getKeySpec());
+        }
+        if (pager != null) {
+            pager.add(delta);
+        }
+        if (item.getExpiryTime() > 0) {
+            addExpiry(item);
+        }
+        return item;
+    }
+
+    private void addExpiry(Item item) {
+        int vbid = item.getKeySpec().vbId;
+        PriorityQueue<ExpiryEntry> queue = expiryIndex.get(vbid);
+        if (queue == null) {
+            expiryIndex.compareAndSet(vbid, null, new PriorityQueue<ExpiryEntry>());
+            queue = expiryIndex.get(vbid);
+        }
+        synchronized (queue) {
+            queue.add(new ExpiryEntry(item));
+            // Don't let the entries of items which were overwritten over and
+            // over again pile up until they expire
+            if (queue.size() > 2 * getItemCount(vbid) + 1024) {
+                Iterator<ExpiryEntry> iter = queue.iterator();
+                while (iter.hasNext()) {
+                    ExpiryEntry entry = iter.next();
+                    if (entry.isStale(getItem(entry.keySpec))) {
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the items of a vBucket which have expired. Just like when an
+     * expired item is found on access, each of them is deleted with a new
+     * mutation of its own.
+     * @param vbid the vBucket
+     * @param now the current time (in seconds, including the clock offset)
+     * @param limit the maximum number of items to delete
+     * @return the number of entries of the index which were processed. If
+     *         this is less than the limit, no more items have expired
+     */
+    int expireItems(int vbid, long now, int limit) {
+        PriorityQueue<ExpiryEntry> queue = expiryIndex.get(vbid);
+        if (queue == null) {
+            return 0;
+        }
+        List<ExpiryEntry> expired = new ArrayList<ExpiryEntry>();
+        synchronized (queue) {
+            while (expired.size() < limit && !queue.isEmpty() && queue.peek().expiryTime <= now) {
+                expired.add(queue.poll());
+            }
+        }
+        for (ExpiryEntry entry : expired) {
+            synchronized (lockFor(entry.keySpec)) {
+                Item item = getItem(entry.keySpec);
+                if (entry.isStale(item) || !removeItem(item)) {
+                    continue;
+                }
+                MutationStatus ms = incrCoords(item.getKeySpec());
+                deleted(item, ms.getCoords());
+                numExpiredByPager.incrementAndGet();
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Remove an item without updating the vBucket coordinates or invoking any
+     * of the callbacks
+     * @param ks the key of the item
+     */
+    void removeItem(KeySpec ks) {
+        ConcurrentMap<KeySpec, Item> partition = partitions.get(ks.vbId);
+        if (partition != null) {
+            Item old = partition.remove(ks);
+            if (old != null) {
+                updateSampler(ks);
+                if (pager != null) {
+                    pager.add(-old.getMemorySize());
+                }
+                old.releaseValue();
+            }
+        }
+    }
+
+    /**
+     * Remove an item, if it is still the one stored under its key, without
+     * updating the vBucket coordinates or invoking any of the callbacks
+     * @param item the item to remove
+     * @return false if the item was already replaced or removed
+     */
+    boolean removeItem(Item item) {
+        ConcurrentMap<KeySpec, Item> partition = partitions.get(item.getKeySpec().vbId);
+        if (partition == null || !partition.remove(item.getKeySpec(), item)) {
+            return false;
+        }
+        updateSampler(item.getKeySpec());
+        if (pager != null) {
+            pager.add(-item.getMemorySize());
+        }
+        item.releaseValue();
+        return true;
+    }
+
+    /**
+     * Drop the value of an item from memory, keeping its key and metadata:
+     * the item is replaced by a version of it without its value
+     * @param item the item, whose value must have been persisted
+     * @return false if the item was already ejected, replaced or removed
+     */
+    boolean ejectValue(Item item) {
+        ConcurrentMap<KeySpec, Item> partition = partitions.get(item.getKeySpec().vbId);
+        if (item.isEjected() || partition == null ||
+                !partition.replace(item.getKeySpec(), item, item.withoutValue())) {
+            return false;
+        }
+        if (pager != null) {
+            pager.add(-(item.getValueLength() + item.getXattrLength()));
+        }
+        item.releaseValue();
+        return true;
+    }
+
+    /**
+     * Make sure the value of an item is in memory, reading it back from disk
+     * if it was ejected
+     * @param item the item
+     * @return the item, or null if its value could no longer be found (in
+     *         which case the item is dropped)
+     */
+    private Item fetchValue(Item item) {
+        if (item == null || !item.isEjected()) {
+            return item;
+        }
+        KeySpec ks = item.getKeySpec();
+        synchronized (lockFor(ks)) {
+            // Someone else may have read it back (or replaced it) already
+            Item current = getItem(ks);
+            if (current == null || !current.isEjected()) {
+                return fetchValue(pin(ks, current));
+            }
+            Item persisted = pager == null ? null : pager.fetch(current);
+            if (persisted == null) {
+                removeItem(current);
+                return null;
+            }
+            Item restored = current.withValue(persisted.getValue(), persisted.getXattr());
+            if (allocator != null) {
+                restored = new Item(restored, allocator);
+            }
+            ConcurrentMap<KeySpec, Item> partition = partitions.get(ks.vbId);
+            if (partition == null || !partition.replace(ks, current, restored)) {
+                // Dropped by the pager in the meantime
+                restored.releaseValue();
+                return fetchValue(getItem(ks));
+            }
+            pager.add(restored.getValueLength() + restored.getXattrLength());
+            // It may be ejected again right away
+            return fetchValue(pin(ks, restored));
+        }
+    }
+
+    /**
+     * Read an item without any of the side effects of {@link #get(KeySpec)}:
+     * an expired item is returned rather than deleted, the value of an
+     * ejected item is read from its persisted copy without loading it back,
+     * and the item isn't marked as referenced.
+     * @param ks the key
+     * @return the item (or its persisted copy, if it was ejected), or null
+     *         if there is none
+     */
+    Item peek(KeySpec ks) {
+        Item item = getItem(ks);
+        if (item == null || !item.isEjected()) {
+            return item;
+        }
+        return pager == null ? null : pager.findPersisted(item);
+    }
+
+    /**
+     * Get the index of the mutations of a vBucket
+     * @param vbid the vBucket
+     * @return the index. This is replaced by a new one when the vBucket gets
+     *         a new UUID, is flushed or is loaded in bulk
+     */
+    public SeqnoIndex getSeqnoIndex(int vbid) {
+        VBucketCoordinates coords = getCurrentCoords(vbid);
+        return indexFor(vbid, coords.getUuid(), coords.getSeqno());
+    }
+
+    /**
+     * Get the index of a vBucket for the given UUID, replacing the one of a
+     * previous UUID (if any)
+     * @param vbid the vBucket
+     * @param uuid the UUID
+     * @param startSeqno where a new index starts
+     * @return the index
+     */
+    private SeqnoIndex indexFor(int vbid, long uuid, long startSeqno) {
+        SeqnoIndex index = seqnoIndex.get(vbid);
+        while (index == null || index.getUuid() != uuid) {
+            seqnoIndex.compareAndSet(vbid, index, new SeqnoIndex(uuid, startSeqno));
+            index = seqnoIndex.get(vbid);
+        }
+        return index;
+    }
+
+    private void indexMutation(KeySpec ks, VBucketCoordinates coords, boolean isDelete) {
+        // A replicated mutation may be the first one of a new UUID; the index
+        // then starts right before it
+        indexFor(ks.vbId, coords.getUuid(), coords.getSeqno() - 1).record(ks, coords.getSeqno(), isDelete);
+    }
+
+    private void mutated(Item item, VBucketCoordinates coords) {
+        indexMutation(item.getKeySpec(), coords, false);
+        onItemMutated.onAction(this, item, coords);
+    }
+
+    private void deleted(Item item, VBucketCoordinates coords) {
+        indexMutation(item.getKeySpec(), coords, true);
+        onItemDelete.onAction(this, item, coords);
+    }
+
     private void logCoords(int vbid, VBucketCoordinates coords) {
         CoordKey key = new CoordKey(vbid, coords.getUuid());
         allCoords.put(key, coords);
@@ -79,12 +433,41 @@ public class VBucketStore {
         synchronized (vbCoords) {
             setCurrentCoords(vbi);
         }
+        for (int i = 0; i < vbCoords.length; i++) {
+            seqnoIndex.set(i, null);
+        }
     }
 
     public VBucketCoordinates getCurrentCoords(int vbid) {
         return vbCoords[vbid];
     }
 
+    /**
+     * Replace the coordinates of a vBucket, e.g. with the ones of a snapshot
+     * @param vbid the vBucket
+     * @param coords the new coordinates
+     */
+    void restoreCoords(int vbid, VBucketCoordinates coords) {
+        synchronized (vbCoords) {
+            vbCoords[vbid] = new StorageVBucketCoordinates(coords);
+        }
+        seqnoIndex.set(vbid, new SeqnoIndex(coords.getUuid(), coords.getSeqno()));
+    }
+
+    /**
+     * Move the sequence number of a vBucket forward, e.g. to the one of the
+     * last mutation found on disk
+     * @param vbid the vBucket
+     * @param seqno the sequence number
+     */
+    void seekSeqno(int vbid, long seqno) {
+        synchronized (vbCoords) {
+            vbCoords[vbid].seekSeqno(seqno);
+        }
+        VBucketCoordinates coords = getCurrentCoords(vbid);
+        seqnoIndex.set(vbid, new SeqnoIndex(coords.getUuid(), coords.getSeqno()));
+    }
+
     /**
      * Increments the current coordinates for a new mutation.
      * @param ks The key spec containing the vBucket ID whose coordinates should be increases
@@ -96,148 +479,257 @@ public class VBucketStore {
             curCoord = vbCoords[ks.vbId];
         }
 
-        long seq = curCoord.incrSeqno();
+        long seq = indexFor(ks.vbId, curCoord.getUuid(), curCoord.getSeqno()).reserve(curCoord);
         long uuid = curCoord.getUuid();
         VBucketCoordinates coord = new BasicVBucketCoordinates(uuid, seq);
         return new MutationStatus(coord);
     }
 
+    /**
+     * Get the lock guarding all the mutations of a key
+     * @param ks the key
+     * @return the lock of the stripe the key belongs to
+     */
+    private Object lockFor(KeySpec ks) {
+        int hash = ks.hashCode();
+        return keyLocks[(hash ^ (hash >>> 16)) & (NUM_KEY_LOCKS - 1)];
+    }
+
+    /**
+     * Generate the CAS for a new mutation. Like the hybrid logical clock of
+     * the server, this is the current time in nanoseconds whose lower 16
+     * bits are used as a counter. The CAS keeps increasing even if the clock
+     * stalls or travels back in time.
+     * @return the CAS
+     */
+    private long nextCas() {
+        long now = (CachedClock.currentTimeMillis() * 1000000L) & ~0xffffL;
+        while (true) {
+            long last = casCounter.get();
+            long next = Math.max(last + 1, now);
+            if (casCounter.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Pin an item for the command being executed (see {@link Item#pin()})
+     * @param ks the key of the item
+     * @param item the item, as found in the store
+     * @return the item, or the version which replaced it if it was dropped
+     *         in the meantime
+     */
+    private Item pin(KeySpec ks, Item item) {
+        while (item != null && !item.pin()) {
+            item = getItem(ks);
+        }
+        return item;
+    }
+
     private Item lookup(KeySpec ks) {
-        Item ii = kv.get(ks);
+        Item ii = pin(ks, getItem(ks));
         if (ii == null) {
             return null;
         }
+        ii.setReferenced();
 
-        long now = new Date().getTime() + Info.getClockOffset() * 1000L;
+        long now = CachedClock.currentTimeMillis();
         if (ii.getExpiryTime() == 0 || now < ii.getExpiryTimeInMillis()) {
             return ii;
         }
-        MutationStatus ms = incrCoords(ii.getKeySpec());
-        onItemDelete.onAction(this, ii, ms.getCoords());
-        kv.remove(ks);
+        synchronized (lockFor(ks)) {
+            // Someone else may have beaten us to it
+            if (getItem(ks) == ii) {
+                MutationStatus ms = incrCoords(ii.getKeySpec());
+                removeItem(ks);
+                deleted(ii, ms.getCoords());
+                numExpiredOnAccess.incrementAndGet();
+            }
+        }
         return null;
     }
 
-    public ErrorCode lock(Item item, int expiry) {
-        if (item.isLocked()) {
-            return ErrorCode.ETMPFAIL;
-
-        } else {
+    /**
+     * Lock an item
+     * @param item the item, as returned by {@link #get(KeySpec)}
+     * @param expiry for how long (in seconds) to lock the item
+     * @return the locked version of the item, or null if the item is already
+     *         locked or was modified in the meantime
+     */
+    public Item lock(Item item, int expiry) {
+        synchronized (lockFor(item.getKeySpec())) {
+            if (item.isLocked() || item.isEjected() || getItem(item.getKeySpec()) != item) {
+                return null;
+            }
             if (expiry == 0 || expiry > MAXIMUM_EXPIRY_TIME) {
                 expiry = DEFAULT_EXPIRY_TIME;
             }
             MutationStatus ms = incrCoords(item.getKeySpec());
-            item.setLockExpiryTime(expiry);
-            item.setCas(++casCounter);
-            onItemMutated.onAction(this, item, ms.getCoords());
-            return ErrorCode.SUCCESS;
+            Item locked = putItem(item.withCas(nextCas(), ms.getCoords().getSeqno()).withLock(expiry));
+            // The command sends the value of the locked version
+            locked.pin();
+            mutated(locked, ms.getCoords());
+            return locked;
         }
     }
 
+    /**
+     * Change the expiry time of an item
+     * @param item the item, as returned by {@link #get(KeySpec)}
+     * @param expiry the new expiry time
+     * @param xerrorEnabled whether the client understands the extended error codes
+     * @return SUCCESS, the locked error if the item is locked, or ETMPFAIL if
+     *         the item was modified in the meantime
+     */
     public ErrorCode touch(Item item, int expiry, boolean xerrorEnabled) {
-        if (item.isLocked()) {
-            return lockedError(xerrorEnabled);
+        synchronized (lockFor(item.getKeySpec())) {
+            if (item.isLocked()) {
+                return lockedError(xerrorEnabled);
+            }
+            if (item.isEjected() || getItem(item.getKeySpec()) != item) {
+                return ErrorCode.ETMPFAIL;
+            }
+            MutationStatus ms = incrCoords(item.getKeySpec());
+            Item touched = putItem(item.withExpiryTime(expiry, ms.getCoords().getSeqno()));
+            mutated(touched, ms.getCoords());
+            return ErrorCode.SUCCESS;
         }
-        item.setExpiryTime(expiry);
-        MutationStatus ms = incrCoords(item.getKeySpec());
-        onItemMutated.onAction(this, item, ms.getCoords());
-        return ErrorCode.SUCCESS;
     }
 
-    public MutationStatus add(Item item, boolean xerrorEnabled) {
-        // I don't give a shit about atomicity right now..
-        Item old = lookup(item.getKeySpec());
-        if (old != null && old.isLocked()) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        } else if (old != null || item.getCas() != 0) {
-            return new MutationStatus(ErrorCode.KEY_EEXISTS);
+    /**
+     * Unlock an item
+     * @param item the item, as returned by {@link #get(KeySpec)}
+     * @param cas the CAS handed out with the lock
+     * @return SUCCESS, or ETMPFAIL if the item isn't locked with this CAS
+     *         or was modified in the meantime
+     */
+    public ErrorCode unlock(Item item, long cas) {
+        synchronized (lockFor(item.getKeySpec())) {
+            if (!item.isLocked() || cas != item.getCasReal()
+                    || item.isEjected() || getItem(item.getKeySpec()) != item) {
+                return ErrorCode.ETMPFAIL;
+            }
+            // Releasing the lock isn't a mutation: the item keeps its CAS
+            // and sequence number
+            putItem(item.withoutLock());
+            return ErrorCode.SUCCESS;
         }
+    }
 
-        item.setCas(++casCounter);
-        kv.put(item.getKeySpec(), item);
+    /**
+     * Store a new version of an item. Must be called with the lock of the key
+     * held.
+     * @param item the new contents, which get a CAS of their own
+     * @return the status, holding the CAS of the stored version
+     */
+    private MutationStatus store(Item item) {
         MutationStatus ms = incrCoords(item.getKeySpec());
-        onItemMutated.onAction(this, item, ms.getCoords());
-        return ms;
+        Item stored = putItem(item.withCas(nextCas(), ms.getCoords().getSeqno()));
+        mutated(stored, ms.getCoords());
+        return new MutationStatus(ms.getCoords(), stored.getCasReal());
     }
 
-    public MutationStatus replace(Item item, boolean xerrorEnabled) {
-        // I don't give a shit about atomicity right now..
-        Item old = lookup(item.getKeySpec());
-        if (old == null) {
-            return new MutationStatus(ErrorCode.KEY_ENOENT);
+    public MutationStatus add(Item item, boolean xerrorEnabled) {
+        synchronized (lockFor(item.getKeySpec())) {
+            Item old = lookup(item.getKeySpec());
+            if (old != null && old.isLocked()) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            } else if (old != null || item.getCas() != 0) {
+                return new MutationStatus(ErrorCode.KEY_EEXISTS);
+            }
+            ErrorCode err = reserve(item, null);
+            if (err != ErrorCode.SUCCESS) {
+                return new MutationStatus(err);
+            }
+            return store(item);
         }
+    }
 
-        if (!old.ensureUnlocked(item.getCas())) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        }
+    public MutationStatus replace(Item item, boolean xerrorEnabled) {
+        synchronized (lockFor(item.getKeySpec())) {
+            Item old = lookup(item.getKeySpec());
+            if (old == null) {
+                return new MutationStatus(ErrorCode.KEY_ENOENT);
+            }
 
-        if (item.getCas() != old.getCas()) {
-            if (item.getCas() != 0) {
-                return new MutationStatus(ErrorCode.KEY_EEXISTS);
+            if (!old.isUnlockedFor(item.getCas())) {
+                return new MutationStatus(lockedError(xerrorEnabled));
             }
-        }
 
-        MutationStatus ms = incrCoords(item.getKeySpec());
-        item.setCas(++casCounter);
-        kv.put(item.getKeySpec(), item);
-        onItemMutated.onAction(this, item, ms.getCoords());
-        return ms;
+            if (item.getCas() != old.getCasReal()) {
+                if (item.getCas() != 0) {
+                    return new MutationStatus(ErrorCode.KEY_EEXISTS);
+                }
+            }
+            ErrorCode err = reserve(item, old);
+            if (err != ErrorCode.SUCCESS) {
+                return new MutationStatus(err);
+            }
+            return store(item);
+        }
     }
 
     public MutationStatus set(Item item, boolean xerrorEnabled) {
-        if (item.getCas() == 0) {
+        if (item.getCas() != 0) {
+            return replace(item, xerrorEnabled);
+        }
+        synchronized (lockFor(item.getKeySpec())) {
             Item old = lookup(item.getKeySpec());
             if (old != null && old.isLocked()) {
                 return new MutationStatus(lockedError(xerrorEnabled));
             }
-
-            MutationStatus ms = incrCoords(item.getKeySpec());
-            item.setCas(++casCounter);
-            kv.put(item.getKeySpec(), item);
-            onItemMutated.onAction(this, item, ms.getCoords());
-            return ms;
-        } else {
-            return replace(item, xerrorEnabled);
+            ErrorCode err = reserve(item, old);
+            if (err != ErrorCode.SUCCESS) {
+                return new MutationStatus(err);
+            }
+            return store(item);
         }
     }
 
     public MutationStatus delete(KeySpec ks, long cas, boolean xerrorEnabled) {
-        // I don't give a shit about atomicity right now..
-        Item i = lookup(ks);
-        if (i == null) {
-            return new MutationStatus(ErrorCode.KEY_ENOENT);
-        }
+        synchronized (lockFor(ks)) {
+            Item i = lookup(ks);
+            if (i == null) {
+                return new MutationStatus(ErrorCode.KEY_ENOENT);
+            }
 
-        if (!i.ensureUnlocked(cas)) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        }
+            if (!i.isUnlockedFor(cas)) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            }
 
-        if (cas == 0 || cas == i.getCas()) {
-            MutationStatus ms = incrCoords(i.getKeySpec());
-            kv.remove(ks);
-            onItemDelete.onAction(this, i, ms.getCoords());
-            return ms;
+            if (cas == 0 || cas == i.getCasReal()) {
+                MutationStatus ms = incrCoords(i.getKeySpec());
+                removeItem(ks);
+                deleted(i, ms.getCoords());
+                return ms;
+            }
+            return new MutationStatus(ErrorCode.KEY_EEXISTS);
         }
-        return new MutationStatus(ErrorCode.KEY_EEXISTS);
     }
 
     private MutationStatus modifyItemValue(Item i, boolean isAppend, boolean xerrorEnabled) {
-        Item old = lookup(i.getKeySpec());
-        if (old == null) {
-            return new MutationStatus(ErrorCode.KEY_ENOENT);
-        }
-        if (!old.ensureUnlocked(i.getCas())) {
-            return new MutationStatus(lockedError(xerrorEnabled));
-        }
-        if (isAppend) {
-            old.append(i);
-        } else {
-            old.prepend(i);
+        synchronized (lockFor(i.getKeySpec())) {
+            Item old = fetchValue(lookup(i.getKeySpec()));
+            if (old == null) {
+                return new MutationStatus(ErrorCode.KEY_ENOENT);
+            }
+            if (!old.isUnlockedFor(i.getCas())) {
+                return new MutationStatus(lockedError(xerrorEnabled));
+            }
+            if (pager != null) {
+                // Paging may eject the value of the old version from the
+                // store, but that version itself keeps it
+                ErrorCode err = pager.reserve(i.getValueLength());
+                if (err != ErrorCode.SUCCESS) {
+                    return new MutationStatus(err);
+                }
+            }
+            MutationStatus ms = incrCoords(old.getKeySpec());
+            Item updated = putItem((isAppend ? old.withAppended(i) : old.withPrepended(i)).withCas(nextCas(), ms.getCoords().getSeqno()));
+            mutated(updated, ms.getCoords());
+            return new MutationStatus(ms.getCoords(), updated.getCasReal());
         }
-        MutationStatus ms = incrCoords(old.getKeySpec());
-        old.setCas(++casCounter);
-        onItemMutated.onAction(this, old, ms.getCoords());
-        return ms;
     }
 
     public MutationStatus append(Item i, boolean xerrorEnabled) {
@@ -249,33 +741,45 @@ public class VBucketStore {
     }
 
     public Item get(KeySpec ks) {
-        return lookup(ks);
+        return fetchValue(lookup(ks));
     }
 
+    /**
+     * Get a random item: a random key of a random vBucket (so keys of
+     * vBuckets with few items are more likely to be picked)
+     * @return the item, or null if there are none
+     */
     public Item getRandom() {
-        Random r = new Random();
-        while (!kv.isEmpty()) {
-            Collection<Item> c = kv.values();
-            int max = r.nextInt(c.size());
-            Iterator<Item> iter = c.iterator();
-            for (int i = 0; i < max - 1; i++) {
-                if (!iter.hasNext()) {
-                    break;
-                }
-                iter.next();
-            }
-
-            if (!iter.hasNext()) {
+        int numPartitions = samplers.length();
+        int first = random.nextInt(numPartitions);
+        for (int ii = 0; ii < numPartitions; ++ii) {
+            KeySampler sampler = samplers.get((first + ii) % numPartitions);
+            if (sampler == null) {
                 continue;
             }
-            Item itm = lookup(iter.next().getKeySpec());
-            if (itm != null) {
-                return itm;
+            // Expired items are deleted as they are found, so this only
+            // gives up on the vBucket if most of it has expired
+            for (int attempt = 0; attempt < MAX_RANDOM_ATTEMPTS; ++attempt) {
+                KeySpec ks = sampler.sample(random);
+                if (ks == null) {
+                    break;
+                }
+                Item itm = fetchValue(lookup(ks));
+                if (itm != null) {
+                    return itm;
+                }
             }
         }
         return null;
     }
 
+    /**
+     * Apply a mutation received from the master of a vBucket. The mutations
+     * are applied by the replicator of the master, which doesn't hold any
+     * lock of the master while doing so, so the lock of the key is taken
+     * like for any other mutation: this keeps the mutation from racing with
+     * the items of the replica being expired.
+     */
     private void forceMutation(int vbid, Item itm, VBucketCoordinates coords, boolean isDelete) {
         StorageVBucketCoordinates cur;
         synchronized (vbCoords) {
@@ -285,12 +789,16 @@ public class VBucketStore {
             }
         }
         cur.seekSeqno(coords.getSeqno());
-        if (isDelete) {
-            kv.remove(itm.getKeySpec());
-            onItemDelete.onAction(this, itm, coords);
-        } else {
-            kv.put(itm.getKeySpec(), itm);
-            onItemMutated.onAction(this, itm, coords);
+        synchronized (lockFor(itm.getKeySpec())) {
+            if (isDelete) {
+                removeItem(itm.getKeySpec());
+                deleted(itm, coords);
+            } else {
+                mutated(putItem(itm), coords);
+            }
+        }
+        if (!isDelete && pager != null) {
+            pager.check();
         }
     }
 
@@ -318,8 +826,84 @@ public class VBucketStore {
         forceMutation(itm.getKeySpec().vbId, itm, coords, true);
     }
 
-    public Map<KeySpec,Item> getMap() {
-        return kv;
+    /**
+     * Get the items of a single vBucket
+     * @param vbid the vBucket
+     * @return a (live) view of the items in the vBucket
+     */
+    public Map<KeySpec, Item> getPartition(int vbid) {
+        ConcurrentMap<KeySpec, Item> partition = partitions.get(vbid);
+        if (partition == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(partition);
+    }
+
+    /**
+     * Get the number of items in a vBucket
+     * @param vbid the vBucket
+     * @return the number of items, including those which have expired but
+     *         were not yet removed
+     */
+    public int getItemCount(int vbid) {
+        ConcurrentMap<KeySpec, Item> partition = partitions.get(vbid);
+        return partition == null ? 0 : partition.size();
+    }
+
+    /**
+     * Remove all items, without invoking any of the callbacks
+     */
+    void clear() {
+        for (int ii = 0; ii < partitions.length(); ++ii) {
+            expiryIndex.set(ii, null);
+            seqnoIndex.set(ii, null);
+            samplers.set(ii, null);
+            ConcurrentMap<KeySpec, Item> partition = partitions.getAndSet(ii, null);
+            if (partition != null && allocator != null) {
+                for (Item item : partition.values()) {
+                    item.releaseValue();
+                }
+            }
+        }
+        if (pager != null) {
+            pager.reset();
+        }
+    }
+
+    /**
+     * Make room for an item which is about to be stored
+     * @param item the new item
+     * @param old the item it replaces, if any
+     * @return SUCCESS, or the error to fail the store with if the item
+     *         doesn't fit within the memory quota
+     */
+    private ErrorCode reserve(Item item, Item old) {
+        if (pager == null) {
+            return ErrorCode.SUCCESS;
+        }
+        return pager.reserve(item.getMemorySize() - (old == null ? 0 : old.getMemorySize()));
+    }
+
+    /**
+     * @return the number of items deleted because they were found to have
+     *         expired when they were accessed
+     */
+    long getNumExpiredOnAccess() {
+        return numExpiredOnAccess.get();
+    }
+
+    /**
+     * @return the number of expired items deleted by the expiry pager
+     */
+    long getNumExpiredByPager() {
+        return numExpiredByPager.get();
+    }
+
+    /**
+     * @return the number of vBuckets (and thus of partitions) of the store
+     */
+    int getNumPartitions() {
+        return partitions.length();
     }
 
     /**
@@ -335,7 +919,7 @@ public class VBucketStore {
             return original + (int)Info.getClockOffset();
         }
 
-        return (int)((new Date().getTime() / 1000) + original + Info.getClockOffset());
+        return (int)(CachedClock.currentTimeSeconds() + original);
     }
 
     private ErrorCode lockedError(boolean xerrorEnabled) {
@@ -36,6 +36,8 @@ public class ClientResponse {
     private byte[] body;
     private int opaque;
     private byte opcode;
+    private boolean request;
+    private short vbucket;
 
     long cas;
 
@@ -77,6 +79,21 @@ public class ClientResponse {
 
     public boolean success() { return status == ErrorCode.SUCCESS; }
 
+    /**
+     * @return true if this is a request sent by the server (such as the
+     *         messages of a DCP stream), rather than a response
+     */
+    public boolean isRequest() {
+        return request;
+    }
+
+    /**
+     * @return the vBucket of a request sent by the server
+     */
+    public short getVBucketId() {
+        return vbucket;
+    }
+
 
     public static ClientResponse read(InputStream input) throws IOException {
         byte[] header = new byte[24];
@@ -96,11 +113,12 @@ public class ClientResponse {
 
         ByteBuffer buf = ByteBuffer.wrap(header);
         byte magic = buf.get();
-        if (magic != (byte)0x81) {
+        if (magic != (byte)0x81 && magic != (byte)0x80) {
             throw new IOException("Illegal magic: " + magic);
         }
 
         ClientResponse ret = new ClientResponse();
+        ret.request = magic == (byte)0x80;
         ret.opcode = buf.get();
         ret.code = CommandCode.valueOf(ret.opcode);
 
@@ -108,7 +126,12 @@ public class ClientResponse {
         byte extlen = buf.get();
         buf.get(); // ignore datatype
 
-        ret.status = ErrorCode.valueOf(buf.getShort());
+        if (ret.request) {
+            ret.vbucket = buf.getShort();
+            ret.status = ErrorCode.SUCCESS;
+        } else {
+            ret.status = ErrorCode.valueOf(buf.getShort());
+        }
         int totalLen = buf.getInt();
         ret.opaque = buf.getInt();
         ret.cas = buf.getLong();
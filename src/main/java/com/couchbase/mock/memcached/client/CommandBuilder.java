@@ -34,6 +34,7 @@ public class CommandBuilder {
     private byte[] extras = {};
     private long cas = 0;
     private int opaque = opaqueCounter++;
+    private boolean response;
     private short vbucket = 0;
     private final CommandCode command;
 
@@ -112,6 +113,17 @@ public class CommandBuilder {
         return this;
     }
 
+    /**
+     * Build a response (to a request sent by the server) rather than a
+     * request
+     * @param opaque the opaque of the request
+     */
+    public CommandBuilder response(int opaque) {
+        this.response = true;
+        this.opaque = opaque;
+        return this;
+    }
+
     public CommandBuilder extras(byte[] extras) {
         this.extras = extras;
         return this;
@@ -310,8 +322,8 @@ public class CommandBuilder {
         byte[] ret = new byte[totalLen];
         ByteBuffer buffer = ByteBuffer.wrap(ret);
 
-        // Magic: PROTOCOL_BINARY_REQ
-        buffer.put((byte) 0x80);
+        // Magic: PROTOCOL_BINARY_REQ or PROTOCOL_BINARY_RES
+        buffer.put(response ? (byte) 0x81 : (byte) 0x80);
 
         // Opcode
         buffer.put((byte) command.cc());
@@ -55,6 +55,16 @@ public class MemcachedClient {
         return sendRequest(builder.build());
     }
 
+    /**
+     * Send a packet without waiting for a response, for the commands which
+     * don't have any (or when the responses are read separately)
+     * @param packet the packet to send
+     */
+    public void send(byte[] packet) throws IOException {
+        output.write(packet);
+        output.flush();
+    }
+
     public void close() throws IOException  {
         socket.close();
         input.close();
@@ -49,11 +49,20 @@ public abstract class Verifier {
   }
 
   static class DurationExceededException extends VerificationException {
-    public DurationExceededException(long expected, long actual) {
+    public DurationExceededException(long expected, double actual) {
       super("Retries lasted for too long (`max-duration`). Expected: " + expected + ". Actual: " + actual);
     }
   }
 
+  /**
+   * Get the time between two entries. The entries carry nanosecond timestamps,
+   * so this is accurate well below the millisecond
+   * @return the time in (fractional) milliseconds
+   */
+  protected static double millisBetween(MemcachedServer.CommandLogEntry from, MemcachedServer.CommandLogEntry to) {
+    return (to.getNanoTimestamp() - from.getNanoTimestamp()) / 1000000.0;
+  }
+
   protected void verify(List<MemcachedServer.CommandLogEntry> entries, RetrySpec spec) throws VerificationException {
     if (entries.size() < 2) {
       throw new VerificationException("No commands executed: Log has " + entries.size());
@@ -62,14 +71,13 @@ public abstract class Verifier {
     firstEntry = entries.get(0);
     entries.remove(0);
 
-    long endTime = entries.get(entries.size()-1).getMsTimestamp();
-    long duration = endTime - firstEntry.getMsTimestamp();
+    double duration = millisBetween(firstEntry, entries.get(entries.size()-1));
 
     if (duration > spec.getMaxDuration() + fuzzMillis) {
       throw new DurationExceededException(spec.getMaxDuration(), duration);
     }
 
-    if (entries.get(0).getMsTimestamp() - firstEntry.getMsTimestamp() < spec.getAfter() - 1) {
+    if (millisBetween(firstEntry, entries.get(0)) < spec.getAfter() - 1) {
       throw new FirstRetryTooSoonException();
     }
     verifyImpl(entries, spec);
@@ -81,7 +89,7 @@ public abstract class Verifier {
     @Override
      protected void verifyImpl(List<MemcachedServer.CommandLogEntry> entries, RetrySpec spec) throws VerificationException {
       for (int i = 1; i < entries.size(); i++) {
-        long duration = entries.get(i).getMsTimestamp() - entries.get(i-1).getMsTimestamp();
+        double duration = millisBetween(entries.get(i-1), entries.get(i));
         if (Math.abs(duration - spec.getInterval()) > fuzzMillis) {
           throw new VerificationException("Too much spacing between intervals: " + duration + ". Expected: " + spec.getInterval());
         }
@@ -89,18 +97,19 @@ public abstract class Verifier {
 
       // Determine when our *last* retry attempt is supposed to be. This is to ensure
       // that we're not skimping on retries.
-      // Note that max-duration is inclusive of any 'after' interval
-      long lastRetryExpected = entries.get(0).getMsTimestamp() + (spec.getMaxDuration() - (spec.getInterval() + spec.getAfter()));
+      // Note that max-duration is inclusive of any 'after' interval. Both
+      // times are relative to the first retry.
+      long lastRetryExpected = spec.getMaxDuration() - (spec.getInterval() + spec.getAfter());
 
       // We should tolerate the client skipping the last beat
       long lastIntervalMaxDiff = fuzzMillis;
 
-      long lastTimestamp = entries.get(entries.size() - 1).getMsTimestamp();
+      double lastRetry = millisBetween(entries.get(0), entries.get(entries.size() - 1));
 
-      if (Math.abs(lastTimestamp - lastRetryExpected) > lastIntervalMaxDiff) {
+      if (Math.abs(lastRetry - lastRetryExpected) > lastIntervalMaxDiff) {
         throw new VerificationException(
-                String.format("Not enough/too many retries. Last TS=%d. Last expected=%d. Diff=%d. MaxDiff=%d",
-                        lastTimestamp, lastRetryExpected, Math.abs(lastRetryExpected - lastTimestamp),
+                String.format("Not enough/too many retries. Last retry=%.3f. Last expected=%d. Diff=%.3f. MaxDiff=%d",
+                        lastRetry, lastRetryExpected, Math.abs(lastRetryExpected - lastRetry),
                         lastIntervalMaxDiff));
       }
     }
@@ -111,7 +120,7 @@ public abstract class Verifier {
     protected void verifyImpl(List<MemcachedServer.CommandLogEntry> entries, RetrySpec spec) throws VerificationException{
       // Iterate through each log entry.
       for (int i = 1; i < entries.size(); i++) {
-        long duration = entries.get(i).getMsTimestamp() - entries.get(i-1).getMsTimestamp();
+        double duration = millisBetween(entries.get(i-1), entries.get(i));
         long expectedDuration = spec.getInterval() * i;
         expectedDuration = Math.min(spec.getCeil(), expectedDuration);
         if (Math.abs(duration - expectedDuration) > fuzzMillis) {
@@ -126,7 +135,7 @@ public abstract class Verifier {
     @Override
     protected void verifyImpl(List<MemcachedServer.CommandLogEntry> entries, RetrySpec spec) throws VerificationException {
       for (int i = 1; i < entries.size(); i++) {
-        long duration = entries.get(i).getMsTimestamp() - entries.get(i-1).getMsTimestamp();
+        double duration = millisBetween(entries.get(i-1), entries.get(i));
         long expectedDuration = (long)Math.pow((double)spec.getInterval(), (double)i);
         if (spec.getCeil() > 0) {
           expectedDuration = Math.min(spec.getCeil(), expectedDuration);
@@ -23,8 +23,8 @@ import java.nio.ByteBuffer;
  */
 public class BinaryArithmeticCommand extends BinaryCommand {
 
-    public BinaryArithmeticCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinaryArithmeticCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     public long getDelta() {
@@ -27,6 +27,7 @@ import java.util.UUID;
 public class BinaryCommand {
 
     private final CommandCode cc;
+    private final boolean response;
     protected final short keyLength;
     protected final byte extraLength;
     protected final byte opcode;
@@ -35,11 +36,39 @@ public class BinaryCommand {
     private final int opaque;
     final long cas;
     final ByteBuffer bodyBuffer;
+    private final ByteBuffer valueBuffer;
     private String eventId;
+    private KeySpec keySpec;
 
-    BinaryCommand(ByteBuffer header) throws ProtocolException {
+    BinaryCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        this(header, body, false);
+    }
+
+    /**
+     * Create a new command from a request header and (part of) its body.
+     *
+     * If the entire body is available it is used in place, and the command
+     * holds a view into <code>body</code>. Such a command is only valid
+     * until the buffer it was created from is reused, which is fine as
+     * commands are executed as soon as they are received.
+     *
+     * Otherwise the available bytes are copied into a buffer owned by the
+     * command, and the remainder of the body is read into it later on
+     * (see {@link #getInputBuffer()}). If <code>separateValue</code> is set
+     * and the extras and key are already available, the value is received
+     * into an array of its own so that it may be handed out without copying
+     * it yet again.
+     *
+     * @param header the 24 byte request header
+     * @param body the bytes following the header, or null if none are
+     *             available yet. The bytes used by the command are consumed.
+     * @param separateValue whether a partially received value should be
+     *                      kept apart from the rest of the body
+     * @throws ProtocolException if the header is invalid
+     */
+    BinaryCommand(ByteBuffer header, ByteBuffer body, boolean separateValue) throws ProtocolException {
         header.rewind();
-        header.get(); // magic already validated
+        response = header.get() == (byte) 0x81; // magic already validated
         opcode = header.get();
         cc = CommandCode.valueOf(opcode);
         keyLength = header.getShort();
@@ -51,15 +80,49 @@ public class BinaryCommand {
         bodyLength = header.getInt();
         opaque = header.getInt();
         cas = header.getLong();
-        if (bodyLength > 0) {
-            bodyBuffer = ByteBuffer.allocate(bodyLength);
-        } else {
+        if (bodyLength < 0 || extraLength + keyLength > bodyLength) {
+            throw new ProtocolException("Invalid body length");
+        }
+
+        int available = body == null ? 0 : body.remaining();
+        int headLength = extraLength + keyLength;
+        if (bodyLength == 0) {
             bodyBuffer = null;
+            valueBuffer = null;
+        } else if (available >= bodyLength) {
+            bodyBuffer = body.slice();
+            bodyBuffer.limit(bodyLength);
+            bodyBuffer.position(bodyLength);
+            body.position(body.position() + bodyLength);
+            valueBuffer = null;
+        } else if (separateValue && available >= headLength) {
+            bodyBuffer = ByteBuffer.allocate(headLength);
+            valueBuffer = ByteBuffer.allocate(bodyLength - headLength);
+            transfer(body, bodyBuffer);
+            transfer(body, valueBuffer);
+        } else {
+            bodyBuffer = ByteBuffer.allocate(bodyLength);
+            valueBuffer = null;
+            if (body != null) {
+                transfer(body, bodyBuffer);
+            }
         }
     }
 
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int nr = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer view = src.slice();
+        view.limit(nr);
+        dst.put(view);
+        src.position(src.position() + nr);
+    }
+
+    /**
+     * Get the buffer the rest of the body should be read into
+     * @return the buffer, or null if the command has no body
+     */
     public ByteBuffer getInputBuffer() {
-        return bodyBuffer;
+        return valueBuffer == null ? bodyBuffer : valueBuffer;
     }
 
     public CommandCode getComCode() {
@@ -68,6 +131,15 @@ public class BinaryCommand {
 
     public byte getOpcode() { return opcode; }
 
+    /**
+     * Check if this is a response sent by the client, rather than a request.
+     * Clients only send responses to the requests of a DCP producer.
+     * @return true if the magic is the one of a response
+     */
+    public boolean isResponse() {
+        return response;
+    }
+
     public int getOpaque() {
         return opaque;
     }
@@ -80,30 +152,89 @@ public class BinaryCommand {
         return cas;
     }
 
+    /**
+     * Get a read-only view of the key
+     * @return the key bytes
+     */
+    public ByteBuffer getKeyBuffer() {
+        return view(extraLength, keyLength);
+    }
+
     public String getKey() {
         if (keyLength == 0) {
             return null;
+        } else if (bodyBuffer.hasArray()) {
+            return new String(bodyBuffer.array(), bodyBuffer.arrayOffset() + extraLength, keyLength);
         } else {
-            return new String(bodyBuffer.array(), extraLength, keyLength);
+            byte[] key = new byte[keyLength];
+            getKeyBuffer().get(key);
+            return new String(key);
         }
     }
 
+    /**
+     * Get the key along with the vBucket it belongs to. The key bytes are
+     * copied out of the receive buffer without being decoded, and the same
+     * instance is returned every time.
+     * @return the key
+     */
     public KeySpec getKeySpec() {
-        return new KeySpec(getKey(), vbucket);
+        if (keySpec == null) {
+            keySpec = KeySpec.fromBuffer(bodyBuffer, extraLength, keyLength, vbucket);
+        }
+        return keySpec;
+    }
+
+    public int getValueLength() {
+        return bodyLength - extraLength - keyLength;
     }
 
+    /**
+     * Get a read-only view of the value
+     * @return the value bytes
+     */
+    public ByteBuffer getValueBuffer() {
+        if (valueBuffer != null) {
+            ByteBuffer ret = valueBuffer.asReadOnlyBuffer();
+            ret.flip();
+            return ret;
+        }
+        return view(extraLength + keyLength, getValueLength());
+    }
+
+    /**
+     * Get the value. Unlike {@link #getValueBuffer()} the returned array
+     * does not refer to the receive buffer, so it may be retained (e.g. by
+     * an {@link com.couchbase.mock.memcached.Item}) once the command has
+     * been executed. This is where the value gets copied out of the
+     * receive buffer, unless it was received into an array of its own.
+     * @return the value
+     */
     public byte[] getValue() {
-        byte ret[] = new byte[bodyLength - extraLength - keyLength];
-        System.arraycopy(bodyBuffer.array(), extraLength + keyLength, ret, 0, ret.length);
+        if (valueBuffer != null) {
+            return valueBuffer.array();
+        }
+        byte ret[] = new byte[getValueLength()];
+        getValueBuffer().get(ret);
         return ret;
     }
 
+    private ByteBuffer view(int offset, int length) {
+        if (bodyBuffer == null) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer ret = bodyBuffer.asReadOnlyBuffer();
+        ret.limit(offset + length);
+        ret.position(offset);
+        return ret.slice();
+    }
+
     public String getEventId() {
         return eventId;
     }
 
     public boolean complete() {
-        return bodyLength == 0 || !bodyBuffer.hasRemaining();
+        return bodyLength == 0 || !getInputBuffer().hasRemaining();
     }
 
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The DCP requests sent by a client which carry extras (or a value) of
+ * their own: DCP_OPEN, DCP_STREAM_REQ, DCP_BUFFER_ACKNOWLEDGEMENT and
+ * DCP_CONTROL.
+ */
+public class BinaryDcpCommand extends BinaryCommand {
+    /** The flag of DCP_OPEN asking for a producer connection */
+    public static final int OPEN_PRODUCER = 0x01;
+
+    private int flags;
+    private long startSeqno;
+    private long endSeqno;
+    private long vBucketUuid;
+    private long snapshotStartSeqno;
+    private long snapshotEndSeqno;
+    private int ackBytes;
+
+    public BinaryDcpCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
+    }
+
+    private void checkExtras(int length) throws ProtocolException {
+        if (extraLength != length) {
+            throw new ProtocolException("Expected " + length + " bytes of extras for " + getComCode());
+        }
+    }
+
+    @Override
+    public void process() throws ProtocolException {
+        super.process();
+        switch (getComCode()) {
+            case DCP_OPEN:
+                // seqno (4), flags (4)
+                checkExtras(8);
+                flags = bodyBuffer.getInt(4);
+                break;
+            case DCP_STREAM_REQ:
+                // flags (4), reserved (4), start, end, vBucket UUID,
+                // snapshot start and snapshot end (8 each)
+                checkExtras(48);
+                flags = bodyBuffer.getInt(0);
+                startSeqno = bodyBuffer.getLong(8);
+                endSeqno = bodyBuffer.getLong(16);
+                vBucketUuid = bodyBuffer.getLong(24);
+                snapshotStartSeqno = bodyBuffer.getLong(32);
+                snapshotEndSeqno = bodyBuffer.getLong(40);
+                break;
+            case DCP_BUFFER_ACKNOWLEDGEMENT:
+                checkExtras(4);
+                ackBytes = bodyBuffer.getInt(0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public long getStartSeqno() {
+        return startSeqno;
+    }
+
+    /**
+     * @return the sequence number to stop at (inclusive). The value the
+     *         protocol uses for a stream which never ends (all bits set)
+     *         is returned as {@link Long#MAX_VALUE}
+     */
+    public long getEndSeqno() {
+        return endSeqno < 0 ? Long.MAX_VALUE : endSeqno;
+    }
+
+    public long getVBucketUuid() {
+        return vBucketUuid;
+    }
+
+    public long getSnapshotStartSeqno() {
+        return snapshotStartSeqno;
+    }
+
+    public long getSnapshotEndSeqno() {
+        return snapshotEndSeqno;
+    }
+
+    /**
+     * @return the number of bytes a DCP_BUFFER_ACKNOWLEDGEMENT acknowledges
+     */
+    public int getAckBytes() {
+        return ackBytes;
+    }
+
+    /**
+     * @return the value of a DCP_CONTROL setting
+     */
+    public String getControlValue() {
+        return new String(getValue());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached.protocol;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message sent by a DCP producer. Unlike the other responses these are
+ * requests (the server is the one asking), but they are queued for output
+ * just the same way: the header, extras and key first, followed by the
+ * value of the item (if any), which is not copied.
+ */
+public class BinaryDcpMessage extends BinaryResponse {
+    private static final byte MAGIC = (byte) 0x80;
+
+    /** Snapshot marker flags */
+    public static final int SNAPSHOT_MEMORY = 0x01;
+    public static final int SNAPSHOT_DISK = 0x02;
+
+    /** Stream end flags */
+    public static final int END_OK = 0x00;
+    public static final int END_CLOSED = 0x01;
+    public static final int END_STATE_CHANGED = 0x02;
+
+    /** The item whose value is sent, if it was retained */
+    private final Item retained;
+
+    private BinaryDcpMessage(ByteBuffer buffer, ByteBuffer[] payload, Item retained) {
+        super(buffer, payload);
+        this.retained = retained;
+    }
+
+    @Override
+    public void release() {
+        if (retained != null) {
+            retained.releaseValueBuffers();
+        }
+    }
+
+    private static ByteBuffer create(CommandCode cc, short vbucket, int opaque, int extraLength, byte[] key, int valueLength, long cas) {
+        int keyLength = key == null ? 0 : key.length;
+        ByteBuffer message = allocate(24 + extraLength + keyLength);
+        message.put(MAGIC);
+        message.put((byte) cc.cc());
+        message.putShort((short) keyLength);
+        message.put((byte) extraLength);
+        message.put((byte) 0);
+        message.putShort(vbucket);
+        message.putInt(extraLength + keyLength + valueLength);
+        message.putInt(opaque);
+        message.putLong(cas);
+        return message;
+    }
+
+    private static BinaryDcpMessage finish(ByteBuffer message, byte[] key, ByteBuffer[] payload) {
+        return finish(message, key, payload, null);
+    }
+
+    private static BinaryDcpMessage finish(ByteBuffer message, byte[] key, ByteBuffer[] payload, Item retained) {
+        if (key != null) {
+            message.put(key);
+        }
+        message.rewind();
+        return new BinaryDcpMessage(message, payload, retained);
+    }
+
+    public static BinaryDcpMessage snapshotMarker(short vbucket, int opaque, long start, long end, int flags) {
+        ByteBuffer message = create(CommandCode.DCP_SNAPSHOT_MARKER, vbucket, opaque, 20, null, 0, 0);
+        message.putLong(start);
+        message.putLong(end);
+        message.putInt(flags);
+        return finish(message, null, null);
+    }
+
+    /**
+     * Create a mutation. If the value of the item is kept off-heap, it is
+     * sent straight out of the allocator, and is retained until the message
+     * is released.
+     * @param opaque the opaque of the stream
+     * @param item the item, as it is now
+     * @param seqno the sequence number of the mutation
+     * @return the message, or null if the item was dropped by its store and
+     *         its off-heap value released already
+     */
+    public static BinaryDcpMessage mutation(int opaque, Item item, long seqno) {
+        ByteBuffer[] value = item.retainValueBuffers();
+        if (value == null) {
+            return null;
+        }
+        byte[] key = item.getKeySpec().getBytes();
+        int valueLength = remaining(value);
+        ByteBuffer message = create(CommandCode.DCP_MUTATION, item.getKeySpec().vbId, opaque, 31, key, valueLength, item.getCasReal());
+        message.putLong(seqno);
+        message.putLong(1); // revision seqno
+        message.putInt(item.getFlags());
+        message.putInt(item.getExpiryTime());
+        message.putInt(0); // lock time
+        message.putShort((short) 0); // no extended metadata
+        message.put((byte) 0); // NRU
+        return finish(message, key, valueLength == 0 ? null : value, item);
+    }
+
+    public static BinaryDcpMessage deletion(int opaque, KeySpec ks, long seqno) {
+        byte[] key = ks.getBytes();
+        ByteBuffer message = create(CommandCode.DCP_DELETION, ks.vbId, opaque, 18, key, 0, 0);
+        message.putLong(seqno);
+        message.putLong(1); // revision seqno
+        message.putShort((short) 0); // no extended metadata
+        return finish(message, key, null);
+    }
+
+    public static BinaryDcpMessage streamEnd(short vbucket, int opaque, int flags) {
+        ByteBuffer message = create(CommandCode.DCP_STREAM_END, vbucket, opaque, 4, null, 0, 0);
+        message.putInt(flags);
+        return finish(message, null, null);
+    }
+
+    public static BinaryDcpMessage noop(int opaque) {
+        return finish(create(CommandCode.DCP_NOOP, (short) 0, opaque, 0, null, 0, 0), null, null);
+    }
+
+    public CommandCode getComCode() {
+        return CommandCode.valueOf(buffer.get(1));
+    }
+
+    /**
+     * @return the total size of the message, value included
+     */
+    public int getLength() {
+        return 24 + buffer.getInt(8);
+    }
+}
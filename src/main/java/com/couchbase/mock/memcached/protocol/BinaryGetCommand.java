@@ -23,8 +23,8 @@ import java.nio.ByteBuffer;
  */
 public class BinaryGetCommand extends BinaryCommand {
 
-    public BinaryGetCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinaryGetCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     public int getExpiration() {
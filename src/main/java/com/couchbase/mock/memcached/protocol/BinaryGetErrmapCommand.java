@@ -25,14 +25,14 @@ import java.nio.ByteBuffer;
 public class BinaryGetErrmapCommand extends BinaryCommand {
     private short version = 0;
 
-    BinaryGetErrmapCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    BinaryGetErrmapCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     @Override
     public void process() {
         // Get 16 bit version number
-        ByteBuffer bb = ByteBuffer.wrap(getValue());
+        ByteBuffer bb = getValueBuffer();
         version = bb.getShort();
     }
 
@@ -23,53 +23,81 @@ import java.nio.ByteBuffer;
  * @author Trond Norbye
  */
 public class BinaryGetResponse extends BinaryResponse {
+    /** The item whose value is sent, if it was retained */
+    private final Item retained;
+
     public BinaryGetResponse(BinaryCommand command, ErrorCode error) {
         super(command, error);
+        retained = null;
     }
 
     public BinaryGetResponse(BinaryCommand command, ErrorCode error, String errorContext) {
         super(command, error, errorContext);
+        retained = null;
     }
 
+    /**
+     * Create the response for an item. If its value is kept off-heap, it
+     * is sent straight out of the allocator, and is retained until the
+     * response is released. The item should have been looked up by the
+     * command being executed, which keeps it from being released already
+     * @param command the command
+     * @param item the item
+     */
     public BinaryGetResponse(BinaryCommand command, Item item) {
-        super(create(command, item));
+        this(command, item, null, item.retainValueBuffers());
     }
 
     public BinaryGetResponse(BinaryGetCommand cmd, Item item, long casOverride) {
-        super(create(cmd, item, casOverride));
+        this(cmd, item, casOverride, item.retainValueBuffers());
+    }
+
+    private BinaryGetResponse(BinaryCommand command, Item item, Long casOverride, ByteBuffer[] value) {
+        this(command, item, casOverride, value == null ? new ByteBuffer[0] : value, value == null ? null : item);
     }
 
-    private static ByteBuffer create(BinaryCommand command, Item item) {
-        return create(command, item, null);
+    private BinaryGetResponse(BinaryCommand command, Item item, Long casOverride, ByteBuffer[] value, Item retained) {
+        super(create(command, item, casOverride, remaining(value)), value);
+        this.retained = retained;
+    }
+
+    @Override
+    public void release() {
+        if (retained != null) {
+            retained.releaseValueBuffers();
+        }
     }
 
-    private static ByteBuffer create(BinaryCommand command, Item item, Long casOverride) {
+    /**
+     * Create the header, flags and key of the response. The value itself
+     * is sent straight out of the item, one segment at a time.
+     */
+    private static ByteBuffer create(BinaryCommand command, Item item, Long casOverride, int valueLength) {
         int keySize;
         byte[] keyBytes;
         switch (command.getComCode()) {
             case GETK:
             case GETKQ:
             case GET_REPLICA:
-                keyBytes = command.getKey().getBytes();
-                keySize = command.getKey().length();
+                keyBytes = command.getKeySpec().getBytes();
+                keySize = keyBytes.length;
                 break;
             case GET_RANDOM:
-                keyBytes = item.getKeySpec().key.getBytes();
-                keySize = item.getKeySpec().key.length();
+                keyBytes = item.getKeySpec().getBytes();
+                keySize = keyBytes.length;
                 break;
             default:
                 keySize = 0;
                 keyBytes = null;
         }
-        final ByteBuffer message = create(command, ErrorCode.SUCCESS,
+        final ByteBuffer message = createHeader(command, ErrorCode.SUCCESS,
                 4 /* flags */,
                 keySize,
-                item.getValue().length, casOverride == null ? item.getCas() : casOverride);
+                valueLength, casOverride == null ? item.getCas() : casOverride);
         message.putInt(item.getFlags());
         if (keySize > 0) {
             message.put(keyBytes);
         }
-        message.put(item.getValue());
         message.rewind();
         return message;
     }
@@ -27,8 +27,8 @@ public class BinaryHelloCommand extends BinaryCommand {
     private boolean isProcessed = false;
     private boolean[] features = new boolean[Feature.MAX.getValue()];
 
-    public BinaryHelloCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinaryHelloCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     @Override
@@ -37,7 +37,7 @@ public class BinaryHelloCommand extends BinaryCommand {
             return;
         }
 
-        ByteBuffer bb = ByteBuffer.wrap(getValue());
+        ByteBuffer bb = getValueBuffer();
         while (bb.hasRemaining()) {
             int feature = bb.getShort();
             if (feature < 0 || feature > Feature.MAX.value - 1) {
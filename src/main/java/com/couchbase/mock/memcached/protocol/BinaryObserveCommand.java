@@ -39,8 +39,8 @@ import java.util.List;
 public class BinaryObserveCommand extends BinaryCommand {
     private final List<KeySpec> keySpecs = new ArrayList<KeySpec>();
 
-    protected BinaryObserveCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    protected BinaryObserveCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     public List<KeySpec> getKeySpecs() {
@@ -60,9 +60,7 @@ public class BinaryObserveCommand extends BinaryCommand {
                 short keyLength = bodyBuffer.getShort();
                 byte[] keyBuffer = new byte[keyLength];
                 bodyBuffer.get(keyBuffer);
-                String key = new String(keyBuffer);
-                KeySpec ks = new KeySpec(key, vb);
-                keySpecs.add(ks);
+                keySpecs.add(new KeySpec(keyBuffer, vb));
 
             } catch (BufferUnderflowException e) {
                 throw new ProtocolException();
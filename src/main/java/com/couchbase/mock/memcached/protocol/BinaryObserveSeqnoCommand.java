@@ -23,8 +23,8 @@ import java.nio.ByteBuffer;
  * Created by mnunberg on 2/4/15.
  */
 public class BinaryObserveSeqnoCommand extends BinaryCommand {
-    public BinaryObserveSeqnoCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinaryObserveSeqnoCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     private long uuid = 0;
@@ -15,6 +15,7 @@
  */
 package com.couchbase.mock.memcached.protocol;
 
+import com.couchbase.mock.memcached.BufferPool;
 import com.couchbase.mock.memcached.MutationInfoWriter;
 import com.couchbase.mock.memcached.MutationStatus;
 import com.google.gson.Gson;
@@ -30,16 +31,30 @@ public class BinaryResponse {
     private static final byte DATA_TYPE = 0;
     private static final byte DATA_TYPE_JSON = 1;
     final ByteBuffer buffer;
+    private final ByteBuffer[] payload;
 
     BinaryResponse(final ByteBuffer buffer) {
+        this(buffer, (ByteBuffer[]) null);
+    }
+
+    /**
+     * Create a response whose value is sent from where it is stored rather
+     * than being copied into the response
+     * @param buffer the header, extras and key of the response
+     * @param payload the buffers holding the value
+     */
+    BinaryResponse(final ByteBuffer buffer, final ByteBuffer... payload) {
         this.buffer = buffer;
+        this.payload = payload;
     }
 
     BinaryResponse(BinaryCommand command, ErrorCode errorCode, int extraLength, int keyLength, int dataLength, long cas) {
         buffer = createAndRewind(command, errorCode, extraLength, keyLength, dataLength, cas);
+        payload = null;
     }
 
     public BinaryResponse(BinaryCommand command, ErrorCode errorCode, String errorContext) {
+        payload = null;
         if (command.getEventId() != null || errorContext != null) {
             JsonObject error = new JsonObject();
             if (command.getEventId() != null) {
@@ -75,14 +90,12 @@ public class BinaryResponse {
     }
 
     public static BinaryResponse createWithValue(ErrorCode ec, BinaryCommand command, byte[] value, long cas) {
-        int vallen = value == null ? 0 : value.length;
-        BinaryResponse resp = new BinaryResponse(command, ec, 0, 0, vallen, cas);
-        if (vallen > 0) {
-            resp.buffer.position(24);
-            resp.buffer.put(value);
+        if (value == null || value.length == 0) {
+            return new BinaryResponse(command, ec, 0, 0, 0, cas);
         }
-        resp.buffer.rewind();
-        return resp;
+        ByteBuffer header = createHeader(command, ec, 0, 0, value.length, cas);
+        header.rewind();
+        return new BinaryResponse(header, ByteBuffer.wrap(value));
     }
 
     public BinaryResponse(BinaryCommand command, MutationStatus ms, MutationInfoWriter miw, long cas, byte[] value) {
@@ -92,6 +105,7 @@ public class BinaryResponse {
             valLen = value.length;
         }
         boolean shouldWrite = false;
+        payload = null;
         if (ms.getStatus().value() == ErrorCode.SUCCESS.value()) {
             extlen = miw.extrasLength();
             shouldWrite = true;
@@ -116,7 +130,36 @@ public class BinaryResponse {
     }
 
     static ByteBuffer create(BinaryCommand command, ErrorCode errorCode, int extraLength, int keyLength, int dataLength, long cas) {
-        ByteBuffer message = ByteBuffer.allocate(24 + extraLength + keyLength + dataLength);
+        ByteBuffer message = allocate(24 + extraLength + keyLength + dataLength);
+        return writeHeader(message, command, errorCode, extraLength, keyLength, dataLength, cas);
+    }
+
+    /**
+     * Like {@link #create(BinaryCommand, ErrorCode, int, int, int, long)}, but
+     * without room for the value, which is to be sent as the payload
+     */
+    static ByteBuffer createHeader(BinaryCommand command, ErrorCode errorCode, int extraLength, int keyLength, int dataLength, long cas) {
+        ByteBuffer message = allocate(24 + extraLength + keyLength);
+        return writeHeader(message, command, errorCode, extraLength, keyLength, dataLength, cas);
+    }
+
+    /**
+     * Get the buffer of a response. Small buffers (which is nearly all of
+     * them, as values are usually sent as the payload) are taken from the
+     * header pool of the current thread; see {@link #releaseBuffer()}
+     * @param length the size of the buffer
+     * @return the buffer, whose limit is its size
+     */
+    static ByteBuffer allocate(int length) {
+        if (length > BufferPool.HEADER_BUFFER_SIZE) {
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = BufferPool.forHeaders().acquire();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    private static ByteBuffer writeHeader(ByteBuffer message, BinaryCommand command, ErrorCode errorCode, int extraLength, int keyLength, int dataLength, long cas) {
            message.put(MAGIC);
            message.put(command.getOpcode());
            message.putShort((short)keyLength);
@@ -132,4 +175,52 @@ public class BinaryResponse {
     public ByteBuffer getBuffer() {
         return buffer;
     }
+
+    /**
+     * @return the status code of the response
+     */
+    public short getStatus() {
+        return buffer.getShort(6);
+    }
+
+    /**
+     * Get the part of the response which follows {@link #getBuffer()}, if it
+     * is kept apart (e.g. the value of an item)
+     * @return the buffers of the payload, or null if the whole response is
+     *         in getBuffer()
+     */
+    public ByteBuffer[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Give the buffer back to the header pool it was taken from, if any.
+     * This is called once the buffer was copied into the output of the
+     * connection, after which the response must no longer be used.
+     */
+    public void releaseBuffer() {
+        // Every buffer of this size comes from the pool, see allocate()
+        if (buffer.capacity() == BufferPool.HEADER_BUFFER_SIZE) {
+            BufferPool.forHeaders().release(buffer);
+        }
+    }
+
+    /**
+     * Let go of whatever the payload refers to (such as the off-heap value
+     * of an item), once the response has been sent
+     */
+    public void release() {
+    }
+
+    /**
+     * @param buffers the buffers of a payload
+     * @return the number of bytes remaining in all of the buffers
+     */
+    static int remaining(ByteBuffer[] buffers) {
+        int length = 0;
+        for (ByteBuffer bb : buffers) {
+            length += bb.remaining();
+        }
+        return length;
+    }
 }
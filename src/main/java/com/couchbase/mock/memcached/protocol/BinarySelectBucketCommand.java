@@ -25,8 +25,8 @@ import java.nio.ByteBuffer;
  * Created by mnunberg on 3/3/17.
  */
 public class BinarySelectBucketCommand extends BinaryCommand {
-    public BinarySelectBucketCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinarySelectBucketCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
         if (getKey() == null || getKey().isEmpty()) {
             throw new ProtocolException("Key must not be empty");
         }
@@ -24,8 +24,8 @@ import java.nio.ByteBuffer;
  * @author Trond Norbye
  */
 public class BinaryStoreCommand extends BinaryCommand {
-    public BinaryStoreCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinaryStoreCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body, true);
     }
 
     public Item getItem() {
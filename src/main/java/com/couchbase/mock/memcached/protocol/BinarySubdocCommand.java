@@ -54,8 +54,8 @@ public class BinarySubdocCommand extends BinaryCommand {
         opMap.put(CommandCode.SET, Operation.WRITE_FULLDOC);
     }
 
-    BinarySubdocCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    BinarySubdocCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
         switch (extraLength) {
             case 3: // standard header(3) [path + pathflags]
             case 4: // standard header(3) + docflags(1)
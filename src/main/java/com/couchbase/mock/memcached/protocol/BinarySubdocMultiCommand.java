@@ -29,8 +29,8 @@ public abstract class BinarySubdocMultiCommand extends BinaryCommand {
     private byte docFlags;
     protected final List<MultiSpec> specs = new ArrayList<MultiSpec>();
 
-    public BinarySubdocMultiCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinarySubdocMultiCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     @Override
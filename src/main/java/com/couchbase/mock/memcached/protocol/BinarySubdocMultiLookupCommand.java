@@ -37,7 +37,7 @@ public class BinarySubdocMultiLookupCommand extends BinarySubdocMultiCommand {
         }
     }
 
-    public BinarySubdocMultiLookupCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinarySubdocMultiLookupCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 }
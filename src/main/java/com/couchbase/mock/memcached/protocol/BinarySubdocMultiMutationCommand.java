@@ -26,8 +26,8 @@ import java.nio.ByteBuffer;
  * Created by mnunberg on 10/9/15.
  */
 public class BinarySubdocMultiMutationCommand extends BinarySubdocMultiCommand {
-    public BinarySubdocMultiMutationCommand(ByteBuffer header) throws ProtocolException {
-        super(header);
+    public BinarySubdocMultiMutationCommand(ByteBuffer header, ByteBuffer body) throws ProtocolException {
+        super(header, body);
     }
 
     @Override
@@ -44,6 +44,13 @@ public enum CommandCode {
 
     GET_RANDOM(0xb6),
 
+    // DCP
+    DCP_OPEN(0x50), DCP_ADD_STREAM(0x51), DCP_CLOSE_STREAM(0x52),
+    DCP_STREAM_REQ(0x53), DCP_GET_FAILOVER_LOG(0x54), DCP_STREAM_END(0x55),
+    DCP_SNAPSHOT_MARKER(0x56), DCP_MUTATION(0x57), DCP_DELETION(0x58),
+    DCP_EXPIRATION(0x59), DCP_SET_VBUCKET_STATE(0x5b), DCP_NOOP(0x5c),
+    DCP_BUFFER_ACKNOWLEDGEMENT(0x5d), DCP_CONTROL(0x5e),
+
     // Subdoc
     SUBDOC_GET(0xC5), SUBDOC_EXISTS(0xC6),
     SUBDOC_DICT_ADD(0xC7), SUBDOC_DICT_UPSERT(0xC8),
@@ -186,6 +193,34 @@ public enum CommandCode {
                 return GET_ERRMAP;
             case (byte)0x89:
                 return SELECT_BUCKET;
+            case 0x50:
+                return DCP_OPEN;
+            case 0x51:
+                return DCP_ADD_STREAM;
+            case 0x52:
+                return DCP_CLOSE_STREAM;
+            case 0x53:
+                return DCP_STREAM_REQ;
+            case 0x54:
+                return DCP_GET_FAILOVER_LOG;
+            case 0x55:
+                return DCP_STREAM_END;
+            case 0x56:
+                return DCP_SNAPSHOT_MARKER;
+            case 0x57:
+                return DCP_MUTATION;
+            case 0x58:
+                return DCP_DELETION;
+            case 0x59:
+                return DCP_EXPIRATION;
+            case 0x5b:
+                return DCP_SET_VBUCKET_STATE;
+            case 0x5c:
+                return DCP_NOOP;
+            case 0x5d:
+                return DCP_BUFFER_ACKNOWLEDGEMENT;
+            case 0x5e:
+                return DCP_CONTROL;
             default:
                 return ILLEGAL;
         }
@@ -291,6 +326,18 @@ public enum CommandCode {
                 return "get_errormap";
             case SELECT_BUCKET:
                 return "select_bucket";
+            case DCP_OPEN:
+                return "dcp_open";
+            case DCP_STREAM_REQ:
+                return "dcp_stream_req";
+            case DCP_CLOSE_STREAM:
+                return "dcp_close_stream";
+            case DCP_NOOP:
+                return "dcp_noop";
+            case DCP_BUFFER_ACKNOWLEDGEMENT:
+                return "dcp_buffer_acknowledgement";
+            case DCP_CONTROL:
+                return "dcp_control";
             default:
                 return "unknown";
 
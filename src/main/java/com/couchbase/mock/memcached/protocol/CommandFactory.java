@@ -25,14 +25,33 @@ import java.nio.ByteBuffer;
  */
 public class CommandFactory {
     public static BinaryCommand create(ByteBuffer header) throws ProtocolException {
+        return create(header, null);
+    }
+
+    /**
+     * Create a command from its header and whatever part of its body is
+     * available. See {@link BinaryCommand#BinaryCommand(ByteBuffer, ByteBuffer, boolean)}
+     * for how the body is used.
+     *
+     * @param header the 24 byte request header
+     * @param body the bytes following the header (may be null)
+     * @return the command
+     * @throws ProtocolException if the header is invalid
+     */
+    public static BinaryCommand create(ByteBuffer header, ByteBuffer body) throws ProtocolException {
         header.rewind();
-        if (header.get() != (byte) 0x80) {
+        byte magic = header.get();
+        if (magic != (byte) 0x80 && magic != (byte) 0x81) {
             // create a better one... this is an illegal command
             throw new ProtocolException("Illegal magic: " + header.get(0));
         }
 
         CommandCode cc = CommandCode.valueOf(header.get());
         header.rewind();
+        if (magic == (byte) 0x81 && cc != CommandCode.DCP_NOOP) {
+            // The only requests we send are the NOOPs of DCP producers
+            throw new ProtocolException("Unexpected response: " + cc);
+        }
         switch (cc) {
             case ADD:
             case ADDQ:
@@ -44,13 +63,13 @@ public class CommandFactory {
             case SETQ:
             case REPLACE:
             case REPLACEQ:
-                return new BinaryStoreCommand(header);
+                return new BinaryStoreCommand(header, body);
 
             case INCREMENT:
             case INCREMENTQ:
             case DECREMENT:
             case DECREMENTQ:
-                return new BinaryArithmeticCommand(header);
+                return new BinaryArithmeticCommand(header, body);
 
             case GET:
             case GETQ:
@@ -61,16 +80,16 @@ public class CommandFactory {
             case TOUCH:
             case GETL:
             case GET_REPLICA:
-                return new BinaryGetCommand(header);
+                return new BinaryGetCommand(header, body);
 
             case OBSERVE:
-                return new BinaryObserveCommand(header);
+                return new BinaryObserveCommand(header, body);
 
             case HELLO:
-                return new BinaryHelloCommand(header);
+                return new BinaryHelloCommand(header, body);
 
             case OBSERVE_SEQNO:
-                return new BinaryObserveSeqnoCommand(header);
+                return new BinaryObserveSeqnoCommand(header, body);
 
             case SUBDOC_EXISTS:
             case SUBDOC_GET:
@@ -84,18 +103,23 @@ public class CommandFactory {
             case SUBDOC_REPLACE:
             case SUBDOC_DICT_ADD:
             case SUBDOC_DICT_UPSERT:
-                return new BinarySubdocCommand(header);
+                return new BinarySubdocCommand(header, body);
             case SUBDOC_MULTI_LOOKUP:
-                return new BinarySubdocMultiLookupCommand(header);
+                return new BinarySubdocMultiLookupCommand(header, body);
             case SUBDOC_MULTI_MUTATION:
-                return new BinarySubdocMultiMutationCommand(header);
+                return new BinarySubdocMultiMutationCommand(header, body);
             case GET_ERRMAP:
-                return new BinaryGetErrmapCommand(header);
+                return new BinaryGetErrmapCommand(header, body);
             case SELECT_BUCKET:
-                return new BinarySelectBucketCommand(header);
+                return new BinarySelectBucketCommand(header, body);
+            case DCP_OPEN:
+            case DCP_STREAM_REQ:
+            case DCP_BUFFER_ACKNOWLEDGEMENT:
+            case DCP_CONTROL:
+                return new BinaryDcpCommand(header, body);
 
             default:
-                return new BinaryCommand(header);
+                return new BinaryCommand(header, body);
         }
     }
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock;
+
+import junit.framework.TestCase;
+
+public class CachedClockTest extends TestCase {
+    public void testFollowsSystemClock() throws Exception {
+        long before = CachedClock.currentTimeMillis();
+        Thread.sleep(100);
+        long after = CachedClock.currentTimeMillis();
+        assertTrue(after - before >= 100 - CachedClock.TICK_MILLIS);
+        assertTrue(Math.abs(System.currentTimeMillis() + Info.getClockOffset() * 1000 - after) <= 1000);
+    }
+
+    public void testTimeTravelIsImmediate() {
+        long before = CachedClock.currentTimeSeconds();
+        Info.timeTravel(3600);
+        try {
+            assertTrue(CachedClock.currentTimeSeconds() >= before + 3600);
+        } finally {
+            Info.timeTravel(-3600);
+        }
+        assertTrue(CachedClock.currentTimeSeconds() < before + 3600);
+    }
+}
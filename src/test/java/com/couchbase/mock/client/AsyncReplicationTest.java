@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.util.Map;
+
+/**
+ * Tests for replicas receiving the mutations in the background, with a lag
+ */
+public class AsyncReplicationTest extends ClientBaseTest {
+    private static final long LAG = 500;
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.asyncReplication = true;
+        bucketConfiguration.replicationLag = LAG;
+        super.setUp();
+    }
+
+    private int indexOf(MemcachedServer server) {
+        MemcachedServer[] servers = getBucket().getServers();
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i] == server) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a node of the bucket");
+    }
+
+    private long getSeqno(MemcachedServer server, short vb) {
+        return server.getStorage().getCache(vb).getCurrentCoords(vb).getSeqno();
+    }
+
+    public void testReplicaLagsBehind() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedServer master = getServer(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getBucket().getVBucketInfo()[vb].getReplicas().get(0);
+        long before = getSeqno(replica, vb);
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("lagging", vb).value("value"));
+        assertTrue(resp.success());
+        long seqno = getSeqno(master, vb);
+        assertTrue(seqno > before);
+
+        // The master is done, but the replica hasn't seen the mutation yet
+        assertEquals(before, getSeqno(replica, vb));
+        MemcachedClient replicaClient = getBinClient(indexOf(replica));
+        resp = replicaClient.sendRequest(new CommandBuilder(CommandCode.GET_REPLICA).key("lagging", vb));
+        assertEquals(ErrorCode.KEY_ENOENT, resp.getStatus());
+        int numReplicas = getBucket().getVBucketInfo()[vb].getReplicas().size();
+        assertEquals(Integer.toString(numReplicas), master.getStats("").get("ep_dcp_replica_items_remaining"));
+
+        assertTrue(master.awaitReplication(LAG * 10));
+        assertEquals(seqno, getSeqno(replica, vb));
+        resp = replicaClient.sendRequest(new CommandBuilder(CommandCode.GET_REPLICA).key("lagging", vb));
+        assertTrue(resp.success());
+        assertEquals("value", resp.getValue());
+    }
+
+    public void testDeduplication() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedServer master = getServer(0);
+        short vb = findValidVbucket(0);
+        MemcachedServer replica = getBucket().getVBucketInfo()[vb].getReplicas().get(0);
+
+        ClientResponse resp;
+        for (int i = 0; i < 10; i++) {
+            resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("dedup", vb).value("value" + i));
+            assertTrue(resp.success());
+        }
+
+        assertTrue(master.awaitReplication(LAG * 10));
+        // The replica skips the intermediate values but still ends up at the
+        // seqno of the master
+        assertEquals(getSeqno(master, vb), getSeqno(replica, vb));
+        Item item = replica.getStorage().getCache(vb).get(new KeySpec("dedup", vb));
+        assertEquals("value9", new String(item.getValue()));
+
+        // Every replica gets all the mutations, less the ones skipped
+        int numReplicas = getBucket().getVBucketInfo()[vb].getReplicas().size();
+        Map<String, String> stats = master.getStats("");
+        assertEquals("0", stats.get("ep_dcp_replica_items_remaining"));
+        long sent = Long.parseLong(stats.get("ep_dcp_replica_items_sent"));
+        long deduplicated = Long.parseLong(stats.get("ep_dcp_replica_items_deduplicated"));
+        assertTrue(deduplicated > 0);
+        assertEquals(10 * numReplicas, sent + deduplicated);
+    }
+}
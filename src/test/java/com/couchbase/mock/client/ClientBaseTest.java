@@ -153,7 +153,7 @@ public abstract class ClientBaseTest extends TestCase {
         return new MemcachedClient(sock);
     }
 
-    private Bucket getBucket() {
+    protected Bucket getBucket() {
         return couchbaseMock.getBuckets().get(bucketConfiguration.name);
     }
 
@@ -16,6 +16,8 @@
 
 package com.couchbase.mock.client;
 
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
 import com.couchbase.mock.memcached.client.ClientResponse;
 import com.couchbase.mock.memcached.client.CommandBuilder;
 import com.couchbase.mock.memcached.client.MemcachedClient;
@@ -23,7 +25,12 @@ import com.couchbase.mock.memcached.protocol.CommandCode;
 import com.couchbase.mock.memcached.protocol.ErrorCode;
 import net.spy.memcached.internal.OperationFuture;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.Map;
 
 public class ClientMiscTest extends ClientBaseTest {
     public void testUnknownOpcode() throws Exception {
@@ -86,6 +93,27 @@ public class ClientMiscTest extends ClientBaseTest {
         }
     }
 
+    public void testVBucketDetails() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest((new CommandBuilder(CommandCode.FLUSH).build()));
+        assertTrue(resp.success());
+
+        short vb = findValidVbucket(0);
+        for (int i = 0; i < 3; i++) {
+            resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("vbdetails-" + i, vb).value("value"));
+            assertTrue(resp.success());
+        }
+
+        Map<String, String> stats = getServer(0).getStats("vbucket-details");
+        assertEquals("active", stats.get("vb_" + vb));
+        assertEquals("3", stats.get("vb_" + vb + ":num_items"));
+
+        resp = binClient.sendRequest((new CommandBuilder(CommandCode.FLUSH).build()));
+        assertTrue(resp.success());
+        stats = getServer(0).getStats("vbucket-details");
+        assertEquals("0", stats.get("vb_" + vb + ":num_items"));
+    }
+
     public void testSelectBucket() throws Exception {
         CommandBuilder cb = new CommandBuilder(CommandCode.SELECT_BUCKET);
         cb.key(bucketConfiguration.getName(), (short) 0);
@@ -96,4 +124,103 @@ public class ClientMiscTest extends ClientBaseTest {
         resp = getBinClient().sendRequest(cb);
         assertEquals(ErrorCode.EACCESS, resp.getStatus());
     }
+
+    public void testPipelinedRequests() throws Exception {
+        final int numKeys = 500;
+        short vb = findValidVbucket(0);
+        MemcachedServer server = getServer(0);
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        MemcachedClient binClient = new MemcachedClient(sock);
+
+        // Send everything in one go, so that the server receives many
+        // commands (and partial commands) per read
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        for (int i = 0; i < numKeys; i++) {
+            String key = "pipelined_" + i;
+            bao.write(new CommandBuilder(CommandCode.SETQ).key(key, vb).value(key.getBytes(), 0).build());
+        }
+        for (int i = 0; i < numKeys; i++) {
+            bao.write(new CommandBuilder(CommandCode.GETKQ).key("pipelined_" + i, vb).build());
+        }
+        bao.write(new CommandBuilder(CommandCode.NOOP).build());
+
+        OutputStream output = sock.getOutputStream();
+        output.write(bao.toByteArray());
+        output.flush();
+
+        for (int i = 0; i < numKeys; i++) {
+            ClientResponse resp = binClient.readResponse();
+            assertEquals(CommandCode.GETKQ, resp.getComCode());
+            assertTrue(resp.success());
+            assertEquals("pipelined_" + i, resp.getKey());
+            assertEquals("pipelined_" + i, resp.getValue());
+        }
+        assertEquals(CommandCode.NOOP, binClient.readResponse().getComCode());
+        binClient.close();
+    }
+
+    public void testLargeValues() throws Exception {
+        // Values which fit the receive buffer but span several reads, as
+        // well as values which are too large for it
+        int[] sizes = { 60000, 64 * 1024, 1024 * 1024 };
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+
+        for (int size : sizes) {
+            String key = "large_" + size;
+            byte[] value = new byte[size];
+            for (int i = 0; i < size; i++) {
+                value[i] = (byte) ('a' + i % 26);
+            }
+
+            ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key(key, vb).value(value, 0));
+            assertTrue(resp.success());
+            resp = binClient.sendRequest(new CommandBuilder(CommandCode.APPEND).key(key, vb).value(value));
+            assertTrue(resp.success());
+
+            resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key(key, vb));
+            assertTrue(resp.success());
+            ByteBuffer stored = resp.getRawValue();
+            assertEquals(size * 2, stored.remaining());
+            for (int i = 0; i < size * 2; i++) {
+                assertEquals(value[i % size], stored.get(i));
+            }
+        }
+    }
+
+    public void testHiccupDoesNotBlockOtherConnections() throws Exception {
+        final int hiccupTime = 2000;
+        MemcachedServer server = getServer(0);
+        short vb = findValidVbucket(0);
+        Socket stalled = new Socket();
+        stalled.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        Socket other = new Socket();
+        other.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+
+        server.setHiccup(hiccupTime, 1);
+        try {
+            long start = System.currentTimeMillis();
+            stalled.getOutputStream().write(new CommandBuilder(CommandCode.NOOP).build());
+            Thread.sleep(100);
+            other.getOutputStream().write(new CommandBuilder(CommandCode.SET).key("hiccup", vb).value("value").build());
+
+            // The first connection is stalled, but the node keeps serving the other one
+            KeySpec ks = new KeySpec("hiccup", vb);
+            while (server.getStorage().getCached(ks) == null && System.currentTimeMillis() - start < hiccupTime / 2) {
+                Thread.sleep(10);
+            }
+            assertNotNull(server.getStorage().getCached(ks));
+
+            ClientResponse resp = new MemcachedClient(stalled).readResponse();
+            assertEquals(CommandCode.NOOP, resp.getComCode());
+            assertTrue(System.currentTimeMillis() - start >= hiccupTime / 2);
+            resp = new MemcachedClient(other).readResponse();
+            assertTrue(resp.success());
+        } finally {
+            server.setHiccup(0, 0);
+            stalled.close();
+            other.close();
+        }
+    }
 }
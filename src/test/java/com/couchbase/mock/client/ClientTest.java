@@ -15,6 +15,8 @@
  */
 package com.couchbase.mock.client;
 
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedNode;
@@ -125,6 +127,26 @@ public class ClientTest extends ClientBaseTest {
         assertNotNull(client.get(key));
     }
 
+    public void testExpiryPager() throws Exception {
+        String key = "expiry_pager_key";
+        OperationFuture ft = client.set(key, 1, key);
+        ft.get();
+        assertTrue(mockClient.request(new TimeTravelRequest(2)).isOk());
+
+        // The item is deleted without ever being accessed again, and the
+        // deletion is replicated
+        KeySpec ks = new KeySpec(key, getBucket().getVbIndexForKey(key));
+        long expired = 0;
+        for (MemcachedServer server : getBucket().getServers()) {
+            server.runExpiryPager();
+            expired += Long.parseLong(server.getStats("").get("ep_expired_pager"));
+        }
+        assertEquals(1, expired);
+        for (MemcachedServer server : getBucket().getServers()) {
+            assertNull(server.getStorage().getCache(ks.vbId).getPartition(ks.vbId).get(ks));
+        }
+    }
+
     public void testAppend() throws Exception {
         String baseStr = "MIDDLE";
         String beginStr = "BEGIN_";
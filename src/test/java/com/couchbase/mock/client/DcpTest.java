@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.BasicVBucketCoordinates;
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.VBucketCoordinates;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.BinaryDcpMessage;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for streaming the changes of a vBucket over DCP
+ */
+public class DcpTest extends ClientBaseTest {
+    private short vb;
+    private MemcachedClient data;
+    private MemcachedClient dcp;
+
+    @Override
+    protected void setUp() throws Exception {
+        // Expired items are only removed when they are accessed
+        bucketConfiguration.expiryPagerInterval = 0;
+        super.setUp();
+        vb = findValidVbucket(0);
+        data = getBinClient(0);
+        dcp = getBinClient(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        data.close();
+        dcp.close();
+        super.tearDown();
+    }
+
+    private VBucketCoordinates getCoords() {
+        return getServer(0).getStorage().getCache(vb).getCurrentCoords(vb);
+    }
+
+    private void store(String key, String value) throws Exception {
+        assertTrue(data.sendRequest(CommandBuilder.buildStore(key, vb, value)).success());
+    }
+
+    private ClientResponse open(int flags) throws Exception {
+        byte[] extras = new byte[8];
+        ByteBuffer.wrap(extras).putInt(4, flags);
+        return dcp.sendRequest(new CommandBuilder(CommandCode.DCP_OPEN).key("test", (short) 0).extras(extras));
+    }
+
+    private ClientResponse control(String key, String value) throws Exception {
+        return dcp.sendRequest(new CommandBuilder(CommandCode.DCP_CONTROL).key(key, (short) 0).value(value));
+    }
+
+    private ClientResponse streamRequest(short vbid, long start, long end, long uuid) throws Exception {
+        byte[] extras = new byte[48];
+        ByteBuffer.wrap(extras).putInt(0, 0).putLong(8, start).putLong(16, end).putLong(24, uuid);
+        return dcp.sendRequest(new CommandBuilder(CommandCode.DCP_STREAM_REQ).vBucket(vbid).extras(extras));
+    }
+
+    private static long getSeqno(ClientResponse msg) {
+        return ByteBuffer.wrap(msg.getExtras()).getLong(0);
+    }
+
+    private static int getLength(ClientResponse msg) {
+        return 24 + msg.getExtras().length + msg.getKey().length() + msg.getRawValue().remaining();
+    }
+
+    /**
+     * Read the mutations of the stream until all the given keys were seen
+     * @return the value of every key, by key
+     */
+    private Map<String, String> readMutations(int numKeys) throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        long lastSeqno = 0;
+        while (values.size() < numKeys) {
+            ClientResponse msg = dcp.readResponse();
+            assertTrue(msg.isRequest());
+            assertEquals(vb, msg.getVBucketId());
+            if (msg.getComCode() == CommandCode.DCP_SNAPSHOT_MARKER) {
+                continue;
+            }
+            assertEquals(CommandCode.DCP_MUTATION, msg.getComCode());
+            assertTrue(getSeqno(msg) >= lastSeqno);
+            lastSeqno = getSeqno(msg);
+            values.put(msg.getKey(), msg.getValue());
+        }
+        return values;
+    }
+
+    public void testStream() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store("dcp_" + i, "value" + i);
+        }
+        assertTrue(open(0x01).success());
+
+        ClientResponse resp = streamRequest(vb, 0, -1, 0);
+        assertTrue(resp.success());
+        // The failover log
+        assertEquals(16, resp.getRawValue().remaining());
+        assertEquals(getCoords().getUuid(), resp.getRawValue().getLong());
+
+        ClientResponse marker = dcp.readResponse();
+        assertEquals(CommandCode.DCP_SNAPSHOT_MARKER, marker.getComCode());
+        assertEquals(resp.getOpaque(), marker.getOpaque());
+        Map<String, String> values = readMutations(10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value" + i, values.get("dcp_" + i));
+        }
+
+        // Changes made once the stream is open
+        store("dcp_0", "changed");
+        assertTrue(data.sendRequest(new CommandBuilder(CommandCode.DELETE).key("dcp_1", vb)).success());
+        boolean mutated = false;
+        boolean deleted = false;
+        while (!mutated || !deleted) {
+            ClientResponse msg = dcp.readResponse();
+            if (msg.getComCode() == CommandCode.DCP_MUTATION) {
+                assertEquals("dcp_0", msg.getKey());
+                assertEquals("changed", msg.getValue());
+                mutated = true;
+            } else if (msg.getComCode() == CommandCode.DCP_DELETION) {
+                assertEquals("dcp_1", msg.getKey());
+                assertEquals(getCoords().getSeqno(), getSeqno(msg));
+                deleted = true;
+            } else {
+                assertEquals(CommandCode.DCP_SNAPSHOT_MARKER, msg.getComCode());
+            }
+        }
+
+        Map<String, String> stats = getServer(0).getStats("dcp");
+        assertEquals("1", stats.get("ep_dcp_count"));
+        assertEquals("12", stats.get("ep_dcp_items_sent"));
+    }
+
+    public void testEndSeqno() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            store("dcp_" + i, "value" + i);
+        }
+        long end = getCoords().getSeqno();
+        store("after_end", "value");
+        assertTrue(open(0x01).success());
+        assertTrue(streamRequest(vb, 0, end, 0).success());
+
+        Map<String, String> values = readMutations(5);
+        assertFalse(values.containsKey("after_end"));
+        ClientResponse msg = dcp.readResponse();
+        assertEquals(CommandCode.DCP_STREAM_END, msg.getComCode());
+        assertEquals(BinaryDcpMessage.END_OK, ByteBuffer.wrap(msg.getExtras()).getInt());
+
+        // The stream is gone once it ended
+        resp(ErrorCode.KEY_ENOENT, dcp.sendRequest(new CommandBuilder(CommandCode.DCP_CLOSE_STREAM).vBucket(vb)));
+        assertTrue(streamRequest(vb, end, -1, getCoords().getUuid()).success());
+        assertEquals("value", readMutations(1).get("after_end"));
+    }
+
+    public void testBackfill() throws Exception {
+        // Load the items in bulk, so that they aren't in the seqno index
+        long uuid = getCoords().getUuid();
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 1; i <= 5; i++) {
+            items.add(Item.restore(new KeySpec("dcp_" + i, vb), 0, 0, ("value" + i).getBytes(), null, 100 + i, i));
+        }
+        // Expired, but not removed yet
+        items.add(Item.restore(new KeySpec("expired", vb), 0, 1, "value".getBytes(), null, 106, 6));
+        getServer(0).getStorage().loadVBucket(vb, items, new BasicVBucketCoordinates(uuid, 6));
+        assertTrue(open(0x01).success());
+
+        assertTrue(streamRequest(vb, 0, 6, 0).success());
+        ClientResponse marker = dcp.readResponse();
+        assertEquals(CommandCode.DCP_SNAPSHOT_MARKER, marker.getComCode());
+        ByteBuffer extras = ByteBuffer.wrap(marker.getExtras());
+        assertEquals(1, extras.getLong(0));
+        assertEquals(6, extras.getLong(8));
+        assertEquals(BinaryDcpMessage.SNAPSHOT_DISK, extras.getInt(16));
+        for (int i = 1; i <= 5; i++) {
+            ClientResponse msg = dcp.readResponse();
+            assertEquals(CommandCode.DCP_MUTATION, msg.getComCode());
+            assertEquals("dcp_" + i, msg.getKey());
+            assertEquals(i, getSeqno(msg));
+        }
+        assertEquals(CommandCode.DCP_STREAM_END, dcp.readResponse().getComCode());
+        // Reading the expired item didn't delete it
+        assertTrue(getServer(0).getStorage().getCache(vb).getPartition(vb).containsKey(new KeySpec("expired", vb)));
+        assertEquals(6, getCoords().getSeqno());
+
+        // What the client has already is not sent again
+        assertTrue(streamRequest(vb, 3, 6, uuid).success());
+        marker = dcp.readResponse();
+        assertEquals(CommandCode.DCP_SNAPSHOT_MARKER, marker.getComCode());
+        assertEquals(4, ByteBuffer.wrap(marker.getExtras()).getLong(0));
+        for (int i = 4; i <= 5; i++) {
+            ClientResponse msg = dcp.readResponse();
+            assertEquals("dcp_" + i, msg.getKey());
+            assertEquals(i, getSeqno(msg));
+        }
+        assertEquals(CommandCode.DCP_STREAM_END, dcp.readResponse().getComCode());
+    }
+
+    public void testFlowControl() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            value.append('x');
+        }
+        for (int i = 0; i < 50; i++) {
+            store("dcp_" + i, value.toString());
+        }
+        assertTrue(open(0x01).success());
+        assertTrue(control("connection_buffer_size", "1024").success());
+        assertTrue(streamRequest(vb, 0, -1, 0).success());
+
+        int received = 0;
+        int keys = 0;
+        while (received < 1024) {
+            ClientResponse msg = dcp.readResponse();
+            if (msg.getComCode() == CommandCode.DCP_MUTATION) {
+                keys++;
+            }
+            received += getLength(msg);
+        }
+        // Nothing more is sent until the client acknowledges what it got
+        Thread.sleep(300);
+        assertEquals(Integer.toString(received), getServer(0).getStats("dcp").get("ep_dcp_total_bytes"));
+
+        int unacked = received;
+        while (keys < 50) {
+            if (unacked >= 512) {
+                byte[] extras = new byte[4];
+                ByteBuffer.wrap(extras).putInt(unacked);
+                dcp.send(new CommandBuilder(CommandCode.DCP_BUFFER_ACKNOWLEDGEMENT).extras(extras).build());
+                unacked = 0;
+            }
+            ClientResponse msg = dcp.readResponse();
+            if (msg.getComCode() == CommandCode.DCP_MUTATION) {
+                keys++;
+            }
+            unacked += getLength(msg);
+        }
+    }
+
+    public void testNoop() throws Exception {
+        assertTrue(open(0x01).success());
+        assertTrue(control("enable_noop", "true").success());
+        assertTrue(control("set_noop_interval", "1").success());
+        assertTrue(streamRequest(vb, 0, -1, 0).success());
+
+        ClientResponse msg = dcp.readResponse();
+        assertEquals(CommandCode.DCP_NOOP, msg.getComCode());
+        assertTrue(msg.isRequest());
+        dcp.send(new CommandBuilder(CommandCode.DCP_NOOP).response((int) msg.getOpaque()).build());
+
+        // The connection is still usable afterwards
+        store("dcp_0", "value");
+        assertEquals("value", readMutations(1).get("dcp_0"));
+    }
+
+    public void testStreamErrors() throws Exception {
+        resp(ErrorCode.EINVAL, streamRequest(vb, 0, -1, 0));
+        // Consumers aren't supported
+        resp(ErrorCode.NOT_SUPPORTED, open(0));
+        assertTrue(open(0x01).success());
+
+        store("dcp_0", "value");
+        VBucketCoordinates coords = getCoords();
+        resp(ErrorCode.ERANGE, streamRequest(vb, 5, 1, coords.getUuid()));
+        resp(ErrorCode.NOT_MY_VBUCKET, streamRequest(findValidVbucket(1), 0, -1, 0));
+
+        ClientResponse resp = streamRequest(vb, 1, -1, coords.getUuid() + 1);
+        resp(ErrorCode.ROLLBACK, resp);
+        assertEquals(0, resp.getRawValue().getLong());
+        resp = streamRequest(vb, coords.getSeqno() + 10, -1, coords.getUuid());
+        resp(ErrorCode.ROLLBACK, resp);
+        assertEquals(coords.getSeqno(), resp.getRawValue().getLong());
+
+        assertTrue(streamRequest(vb, 0, -1, 0).success());
+        resp(ErrorCode.KEY_EEXISTS, skipStream(streamRequest(vb, 0, -1, 0)));
+        resp(ErrorCode.SUCCESS, skipStream(dcp.sendRequest(new CommandBuilder(CommandCode.DCP_CLOSE_STREAM).vBucket(vb))));
+    }
+
+    /**
+     * Skip the messages of the stream which arrived before a response
+     */
+    private ClientResponse skipStream(ClientResponse resp) throws Exception {
+        while (resp.isRequest()) {
+            resp = dcp.readResponse();
+        }
+        return resp;
+    }
+
+    private static void resp(ErrorCode expected, ClientResponse resp) {
+        assertFalse(resp.isRequest());
+        assertEquals(expected, resp.getStatus());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Tests for nodes writing the persisted items to disk
+ */
+public class DiskPersistenceTest extends ClientBaseTest {
+    private File dataDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dataDir = File.createTempFile("mock", "");
+        assertTrue(dataDir.delete());
+        bucketConfiguration.dataPath = dataDir.getPath();
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(dataDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public void testFlusher() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedServer server = getServer(0);
+        short vb = findValidVbucket(0);
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("persisted", vb).value("value"));
+        assertTrue(resp.success());
+        long seqno = server.getStorage().getCache(vb).getCurrentCoords(vb).getSeqno();
+
+        assertTrue(server.awaitPersistence(5000));
+        assertEquals(seqno, server.getStorage().getPersistedSeqno(vb));
+        assertEquals("value", new String(server.getStorage().getPersisted(getItem("persisted", vb).getKeySpec()).getValue()));
+        Map<String, String> stats = server.getStats("");
+        assertEquals("0", stats.get("ep_queue_size"));
+        assertTrue(Long.parseLong(stats.get("ep_total_persisted")) > 0);
+        assertTrue(new File(dataDir, bucketConfiguration.name + "/node-0/vb_" + vb + ".log").length() > 0);
+    }
+}
@@ -344,6 +344,85 @@ public class MockAPITest extends ClientBaseTest {
         }
     }
 
+    public void testTimings() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("timed", vb).value("value")).success());
+            assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("timed", vb)).success());
+        }
+
+        // STAT timings returns a summary per opcode and phase
+        ArrayList<String> keys = new ArrayList<String>();
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.STAT).key("timings", (short) 0));
+        while (resp.getKey().length() > 0) {
+            keys.add(resp.getKey());
+            if (resp.getKey().equals("get_queue")) {
+                JsonObject summary = new Gson().fromJson(resp.getValue(), JsonObject.class);
+                assertEquals(10, summary.get("count").getAsLong());
+                assertTrue(summary.get("p50").getAsLong() <= summary.get("max").getAsLong());
+            }
+            resp = binClient.readResponse();
+        }
+        assertTrue(resp.success());
+        assertTrue(keys.contains("set_queue"));
+        assertTrue(keys.contains("set_flush"));
+        assertTrue(keys.contains("get_queue"));
+        assertTrue(keys.contains("get_flush"));
+
+        MockResponse mres = mockClient.request(new GetTimingsRequest(bucketConfiguration.name));
+        assertTrue(mres.isOk());
+        JsonObject total = mres.getPayload().getAsJsonObject().getAsJsonObject("total");
+        JsonObject flush = total.getAsJsonObject("get").getAsJsonObject("flush");
+        assertEquals(10, flush.get("count").getAsLong());
+        assertTrue(flush.getAsJsonArray("buckets").size() > 0);
+        assertEquals(bucketConfiguration.numNodes,
+                mres.getPayload().getAsJsonObject().getAsJsonArray("servers").size());
+
+        assertFalse(mockClient.request(new GetTimingsRequest("nonexistent")).isOk());
+    }
+
+    public void testTrafficStats() throws Exception {
+        MemcachedServer server = getServer(0);
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        assertTrue(Long.parseLong(server.getStats(null).get("curr_connections")) >= 1);
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("counted", vb).value("value"));
+        assertTrue(resp.success());
+        long cas = resp.getCas();
+        assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("counted", vb)).success());
+        assertFalse(binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("not-counted", vb)).success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("counted", vb).value("value").cas(cas + 1));
+        assertEquals(ErrorCode.KEY_EEXISTS, resp.getStatus());
+        assertTrue(binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("counted", vb).value("value").cas(cas)).success());
+        assertFalse(binClient.sendRequest(new CommandBuilder(CommandCode.DELETE).key("not-counted", vb)).success());
+
+        java.util.Map<String, String> stats = server.getStats(null);
+        assertEquals("3", stats.get("cmd_set"));
+        assertEquals("2", stats.get("cmd_get"));
+        assertEquals("1", stats.get("get_hits"));
+        assertEquals("1", stats.get("get_misses"));
+        assertEquals("1", stats.get("cas_hits"));
+        assertEquals("1", stats.get("cas_badval"));
+        assertEquals("1", stats.get("delete_misses"));
+        assertTrue(Long.parseLong(stats.get("bytes_read")) >= 6 * 24);
+        // The bytes are counted once the write returns, which may be after
+        // we've received the response
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Long.parseLong(server.getStats(null).get("bytes_written")) < 6 * 24) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        MockResponse mres = mockClient.request(new GetStatsRequest(bucketConfiguration.name));
+        assertTrue(mres.isOk());
+        JsonObject payload = mres.getPayload().getAsJsonObject();
+        assertEquals(bucketConfiguration.numNodes, payload.getAsJsonArray("servers").size());
+        assertEquals(3, payload.getAsJsonArray("servers").get(0).getAsJsonObject().get("cmd_set").getAsLong());
+        assertTrue(payload.getAsJsonObject("total").get("cmd_total_ops").getAsLong() >= 6);
+    }
+
     public void testBasicEnhancedErrors() throws Exception {
         checkEnhancedErrorsEnabled(0, false);
 
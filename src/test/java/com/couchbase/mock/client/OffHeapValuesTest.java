@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tests for nodes keeping the values of their items off-heap
+ */
+public class OffHeapValuesTest extends ClientBaseTest {
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.offHeapValues = true;
+        super.setUp();
+    }
+
+    private long getUsedBytes(MemcachedServer server) {
+        return Long.parseLong(server.getStats("slabs").get("bytes_used"));
+    }
+
+    public void testStoreAndRetrieve() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedServer server = getServer(0);
+        short vb = findValidVbucket(0);
+        assertNotNull(server.getStorage().getAllocator());
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("offheap", vb).value("hello"));
+        assertTrue(resp.success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.APPEND).key("offheap", vb).value(" world"));
+        assertTrue(resp.success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("offheap", vb));
+        assertTrue(resp.success());
+        assertEquals("hello world", resp.getValue());
+        assertEquals("hello world", new String(getItem("offheap", vb).getValue()));
+
+        // The persisted item shares the value of the cache
+        assertEquals(11, getUsedBytes(server));
+
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.DELETE).key("offheap", vb));
+        assertTrue(resp.success());
+        assertEquals(0, getUsedBytes(server));
+    }
+
+    public void testLargeValue() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        short vb = findValidVbucket(0);
+        byte[] value = new byte[2 * 1024 * 1024];
+        Arrays.fill(value, (byte) 'x');
+
+        ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("large", vb).value(value, 0));
+        assertTrue(resp.success());
+        resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key("large", vb));
+        assertTrue(resp.success());
+        assertEquals(value.length, resp.getValue().length());
+    }
+
+    public void testOverwriteReusesMemory() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        MemcachedServer server = getServer(0);
+        short vb = findValidVbucket(0);
+
+        for (int i = 0; i < 100; i++) {
+            ClientResponse resp = binClient.sendRequest(new CommandBuilder(CommandCode.SET).key("overwrite", vb).value("value" + i));
+            assertTrue(resp.success());
+        }
+        Map<String, String> stats = server.getStats("slabs");
+        assertEquals("1", stats.get("active_slabs"));
+        assertEquals("value99".length(), getUsedBytes(server));
+    }
+}
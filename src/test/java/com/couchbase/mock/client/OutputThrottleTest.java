@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+
+/**
+ * Tests for the output watermarks of the nodes
+ */
+public class OutputThrottleTest extends ClientBaseTest {
+    private static final int HIGH_WATERMARK = 256 * 1024;
+    private static final int VALUE_SIZE = 64 * 1024;
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.connectionOutputHighWatermark = HIGH_WATERMARK;
+        bucketConfiguration.connectionOutputLowWatermark = HIGH_WATERMARK / 4;
+        super.setUp();
+    }
+
+    private long getStat(MemcachedServer server, String name) {
+        Map<String, String> stats = server.getStats(null);
+        return Long.parseLong(stats.get(name));
+    }
+
+    public void testSlowReader() throws Exception {
+        final int numGets = 500;
+        MemcachedServer server = getServer(0);
+        short vb = findValidVbucket(0);
+        byte[] value = new byte[VALUE_SIZE];
+        ClientResponse resp = getBinClient(0).sendRequest(new CommandBuilder(CommandCode.SET).key("throttled", vb).value(value, 0));
+        assertTrue(resp.success());
+
+        Socket sock = new Socket();
+        sock.setReceiveBufferSize(64 * 1024);
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        MemcachedClient binClient = new MemcachedClient(sock);
+
+        // Ask for ~32MB of data without reading any of it
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        for (int i = 0; i < numGets; i++) {
+            bao.write(new CommandBuilder(CommandCode.GET).key("throttled", vb).build());
+        }
+        OutputStream output = sock.getOutputStream();
+        output.write(bao.toByteArray());
+        output.flush();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (getStat(server, "output_throttle_events") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(getStat(server, "output_throttle_events") > 0);
+        // Once throttled, no more than a single response may be added
+        assertTrue(getStat(server, "output_pending_bytes") <= HIGH_WATERMARK + VALUE_SIZE + 1024);
+
+        for (int i = 0; i < numGets; i++) {
+            resp = binClient.readResponse();
+            assertTrue(resp.success());
+            assertEquals(VALUE_SIZE, resp.getRawValue().remaining());
+        }
+        binClient.close();
+
+        deadline = System.currentTimeMillis() + 10000;
+        while (getStat(server, "output_pending_bytes") != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, getStat(server, "output_pending_bytes"));
+    }
+}
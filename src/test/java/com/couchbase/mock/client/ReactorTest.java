@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.client.ClientResponse;
+import com.couchbase.mock.memcached.client.CommandBuilder;
+import com.couchbase.mock.memcached.client.MemcachedClient;
+import com.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for nodes served by more than one reactor thread (and receiving
+ * into direct buffers)
+ */
+public class ReactorTest extends ClientBaseTest {
+    private static final int NUM_REACTORS = 4;
+
+    @Override
+    protected void setUp() throws Exception {
+        bucketConfiguration.numReactors = NUM_REACTORS;
+        bucketConfiguration.directBuffers = true;
+        super.setUp();
+    }
+
+    public void testConcurrentClients() throws Exception {
+        assertEquals(NUM_REACTORS, getServer(0).getNumReactors());
+
+        final short vb = findValidVbucket(0);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < NUM_REACTORS * 2; i++) {
+            final MemcachedClient binClient = getBinClient(0);
+            final String prefix = "reactor_" + i + "_";
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            String key = prefix + j;
+                            ClientResponse resp = binClient.sendRequest(
+                                    new CommandBuilder(CommandCode.SET).key(key, vb).value(key.getBytes(), 0));
+                            assertTrue(resp.success());
+
+                            resp = binClient.sendRequest(new CommandBuilder(CommandCode.GET).key(key, vb));
+                            assertTrue(resp.success());
+                            assertEquals(key, resp.getValue());
+                        }
+                        binClient.close();
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.client;
+
+import com.couchbase.mock.memcached.Item;
+import com.couchbase.mock.memcached.KeySpec;
+import com.couchbase.mock.memcached.MemcachedServer;
+import com.couchbase.mock.memcached.VBucketInfo;
+import com.couchbase.mock.views.DesignDocument;
+import net.spy.memcached.internal.OperationFuture;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for dumping the buckets to a snapshot and restoring them from it
+ */
+public class SnapshotTest extends ClientBaseTest {
+    private static final int NUM_ITEMS = 100;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("mock", ".snapshot");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private long getSeqno(MemcachedServer server, short vb) {
+        return server.getStorage().getCache(vb).getCurrentCoords(vb).getSeqno();
+    }
+
+    public void testDumpAndRestore() throws Exception {
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            OperationFuture<Boolean> ft = client.set("snapshot_" + i, 3600, "value" + i);
+            assertTrue(ft.get());
+        }
+        String body = "{\"views\":{\"all\":{\"map\":\"function(doc, meta) { emit(meta.id, null); }\"}}}";
+        getBucket().getCAPIServer().addDesign(DesignDocument.create(body, "snapshot"));
+
+        short vb = getBucket().getVbIndexForKey("snapshot_0");
+        VBucketInfo vbi = getBucket().getVBucketInfo()[vb];
+        Item before = getItem("snapshot_0", vb);
+        long seqno = getSeqno(vbi.getOwner(), vb);
+
+        MockResponse resp = mockClient.request(new SnapshotRequest(file.getPath(), false));
+        assertTrue(resp.getErrorMessage(), resp.isOk());
+        assertEquals(NUM_ITEMS, resp.getPayload().getAsJsonObject().get("items").getAsInt());
+
+        // Change the bucket after taking the snapshot
+        assertTrue(client.set("snapshot_0", 0, "changed").get());
+        assertTrue(client.set("not_in_snapshot", 0, "value").get());
+        getBucket().getCAPIServer().removeDesign(getBucket().getCAPIServer().getDesigns().iterator().next());
+
+        resp = mockClient.request(new SnapshotRequest(file.getPath(), true));
+        assertTrue(resp.getErrorMessage(), resp.isOk());
+        assertEquals(NUM_ITEMS, resp.getPayload().getAsJsonObject().get("items").getAsInt());
+
+        assertEquals("value0", client.get("snapshot_0"));
+        assertNull(client.get("not_in_snapshot"));
+        Item after = getItem("snapshot_0", vb);
+        assertEquals(before.getCas(), after.getCas());
+        assertEquals(before.getExpiryTime(), after.getExpiryTime());
+        assertEquals(seqno, getSeqno(vbi.getOwner(), vb));
+
+        // The replicas get the items and the seqnos as well
+        for (MemcachedServer replica : vbi.getReplicas()) {
+            assertEquals(seqno, getSeqno(replica, vb));
+            Item copy = replica.getStorage().getCache(vb).get(new KeySpec("snapshot_0", vb));
+            assertEquals(before.getCas(), copy.getCas());
+        }
+        assertEquals(1, getBucket().getCAPIServer().getDesigns().size());
+        assertEquals("_design/snapshot", getBucket().getCAPIServer().getDesigns().iterator().next().getId());
+    }
+
+    public void testTruncatedSnapshot() throws Exception {
+        assertTrue(client.set("snapshot_0", 0, "value0").get());
+        MockResponse resp = mockClient.request(new SnapshotRequest(file.getPath(), false));
+        assertTrue(resp.getErrorMessage(), resp.isOk());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(client.set("not_in_snapshot", 0, "value").get());
+        resp = mockClient.request(new SnapshotRequest(file.getPath(), true));
+        assertFalse(resp.isOk());
+        // Nothing was flushed
+        assertEquals("value", client.get("not_in_snapshot"));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandLogTest extends TestCase {
+    private static List<MemcachedServer.CommandLogEntry> snapshot(CommandLog log) {
+        List<MemcachedServer.CommandLogEntry> entries = new ArrayList<MemcachedServer.CommandLogEntry>();
+        log.snapshot(entries);
+        return entries;
+    }
+
+    public void testWrapAround() {
+        CommandLog log = new CommandLog(8);
+        for (int i = 0; i < 5; i++) {
+            log.append(i * 1000L, i, (short) i, i * 31, 0);
+        }
+        List<MemcachedServer.CommandLogEntry> entries = snapshot(log);
+        assertEquals(5, entries.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, entries.get(i).getOpcode());
+            assertEquals(i * 1000L, entries.get(i).getNanoTimestamp());
+            assertEquals(i, entries.get(i).getVBucket());
+            assertEquals(i * 31, entries.get(i).getKeyHash());
+        }
+
+        // Only the most recent entries are kept
+        for (int i = 5; i < 20; i++) {
+            log.append(i * 1000L, i, (short) i, i * 31, -1);
+        }
+        entries = snapshot(log);
+        assertEquals(8, entries.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(12 + i, entries.get(i).getOpcode());
+            assertEquals(-1, entries.get(i).getStatus());
+        }
+    }
+
+    public void testClear() {
+        CommandLog log = new CommandLog(8);
+        for (int i = 0; i < 10; i++) {
+            log.append(i, i, (short) 0, 0, 0);
+        }
+        log.clear();
+        assertTrue(snapshot(log).isEmpty());
+        log.append(10, 10, (short) 0, 0, 0);
+        entriesAre(snapshot(log), 10);
+    }
+
+    private static void entriesAre(List<MemcachedServer.CommandLogEntry> entries, int... opcodes) {
+        assertEquals(opcodes.length, entries.size());
+        for (int i = 0; i < opcodes.length; i++) {
+            assertEquals(opcodes[i], entries.get(i).getOpcode());
+        }
+    }
+
+    public void testConcurrentSnapshots() throws Exception {
+        final CommandLog log = new CommandLog(64);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000; i++) {
+                    log.append(i, i, (short) 0, 0, 0);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            List<MemcachedServer.CommandLogEntry> entries = snapshot(log);
+            assertTrue(entries.size() <= 64);
+            for (int i = 1; i < entries.size(); i++) {
+                assertEquals(entries.get(i - 1).getOpcode() + 1, entries.get(i).getOpcode());
+            }
+        }
+        writer.join();
+    }
+
+    public void testLegacyTimestamp() {
+        MemcachedServer.CommandLogEntry entry = new MemcachedServer.CommandLogEntry(0, 123456L);
+        assertEquals(123456L, entry.getMsTimestamp());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.Info;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+public class DiskStoreTest extends TestCase {
+    private static final short VB = 1;
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("diskstore", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    private static Item createItem(String key, String value, long cas) {
+        return new Item(new KeySpec(key, VB), 0xcafe, 0, value.getBytes(), "xattr".getBytes(), cas);
+    }
+
+    public void testFlush() throws Exception {
+        DiskStore store = new DiskStore(dir, 4);
+        store.put(createItem("key", "value", 1234), new BasicVBucketCoordinates(42, 10));
+        // Nothing is visible before it was written
+        assertNull(store.get(new KeySpec("key", VB)));
+        assertEquals(0, store.getCoords(VB).getSeqno());
+        assertEquals(1, store.getQueueSize());
+
+        assertEquals(1, store.flushBatch());
+        assertEquals(0, store.getQueueSize());
+        Item item = store.get(new KeySpec("key", VB));
+        assertNotNull(item);
+        assertEquals("value", new String(item.getValue()));
+        assertEquals("xattr", new String(item.getXattr()));
+        assertEquals(0xcafe, item.getFlags());
+        assertEquals(1234, item.getCas());
+        assertEquals(42, store.getCoords(VB).getUuid());
+        assertEquals(10, store.getCoords(VB).getSeqno());
+
+        store.remove(new KeySpec("key", VB), new BasicVBucketCoordinates(42, 11));
+        store.flushBatch();
+        assertNull(store.get(new KeySpec("key", VB)));
+        assertEquals(11, store.getCoords(VB).getSeqno());
+    }
+
+    public void testFlushLocked() throws Exception {
+        DiskStore store = new DiskStore(dir, 4);
+        Item locked = createItem("key", "value", 1234).withLock(30);
+        assertTrue(locked.isLocked());
+        store.put(locked, new BasicVBucketCoordinates(42, 1));
+        store.flushBatch();
+        // The lock isn't persisted, but the real CAS of the item is
+        assertEquals(1234, store.get(new KeySpec("key", VB)).getCas());
+
+        store = new DiskStore(dir, 4);
+        Item item = store.get(new KeySpec("key", VB));
+        assertFalse(item.isLocked());
+        assertEquals(1234, item.getCas());
+    }
+
+    public void testReloadAfterTimeTravel() throws Exception {
+        Info.timeTravel(3600);
+        try {
+            DiskStore store = new DiskStore(dir, 4);
+            Item item = new Item(new KeySpec("key", VB), 0, 60, "value".getBytes(), null, 1);
+            store.put(item, new BasicVBucketCoordinates(42, 1));
+            store.flushBatch();
+
+            store = new DiskStore(dir, 4);
+            // The expiry time is reloaded as it was, without the offset of the clock being added again
+            assertEquals(item.getExpiryTime(), store.get(new KeySpec("key", VB)).getExpiryTime());
+        } finally {
+            Info.timeTravel(-3600);
+        }
+    }
+
+    public void testIsPersisted() throws Exception {
+        DiskStore store = new DiskStore(dir, 4);
+        Item item = createItem("key", "value", 1234);
+        store.put(item, new BasicVBucketCoordinates(42, 1));
+        assertFalse(store.isPersisted(item));
+        store.flushBatch();
+        assertTrue(store.isPersisted(item));
+        assertFalse(store.isPersisted(createItem("key", "value", 4321)));
+
+        // A queued version with the same CAS isn't persisted yet
+        Item touched = item.withExpiryTime(60, 2);
+        store.put(touched, new BasicVBucketCoordinates(42, 2));
+        assertFalse(store.isPersisted(touched));
+        store.flushBatch();
+        assertTrue(store.isPersisted(touched));
+
+        store = new DiskStore(dir, 4);
+        assertTrue(store.isPersisted(item));
+    }
+
+    public void testDeduplication() throws Exception {
+        DiskStore store = new DiskStore(dir, 4);
+        for (int ii = 1; ii <= 10; ii++) {
+            store.put(createItem("key", "value" + ii, ii), new BasicVBucketCoordinates(42, ii));
+        }
+        assertEquals(1, store.flushBatch());
+        assertEquals("value10", new String(store.get(new KeySpec("key", VB)).getValue()));
+        assertEquals(10, store.getCoords(VB).getSeqno());
+    }
+
+    public void testRecovery() throws Exception {
+        DiskStore store = new DiskStore(dir, 4);
+        store.put(createItem("kept", "value", 1), new BasicVBucketCoordinates(42, 1));
+        store.put(createItem("deleted", "value", 2), new BasicVBucketCoordinates(42, 2));
+        store.flushBatch();
+        store.remove(new KeySpec("deleted", VB), new BasicVBucketCoordinates(42, 3));
+        store.flushBatch();
+
+        // A record which was only partially written
+        FileOutputStream out = new FileOutputStream(new File(dir, "vb_" + VB + ".log"), true);
+        out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        out.close();
+
+        store = new DiskStore(dir, 4);
+        assertEquals("value", new String(store.get(new KeySpec("kept", VB)).getValue()));
+        assertNull(store.get(new KeySpec("deleted", VB)));
+        assertEquals(3, store.getCoords(VB).getSeqno());
+        assertEquals(1, store.values(VB).size());
+
+        // The log can still be appended to
+        store.put(createItem("new", "value", 4), new BasicVBucketCoordinates(42, 4));
+        store.flushBatch();
+        store = new DiskStore(dir, 4);
+        assertEquals(2, store.values(VB).size());
+    }
+
+    public void testCompaction() throws Exception {
+        DiskStore store = new DiskStore(dir, 4);
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        File log = new File(dir, "vb_" + VB + ".log");
+        for (int ii = 1; ii <= 500; ii++) {
+            store.put(createItem("key" + (ii % 2), value + ii, ii), new BasicVBucketCoordinates(42, ii));
+            store.flushBatch();
+        }
+        assertTrue(log.length() < DiskStore.COMPACTION_MIN_SIZE);
+        assertEquals(value + 500, new String(store.get(new KeySpec("key0", VB)).getValue()));
+        assertEquals(value + 499, new String(store.get(new KeySpec("key1", VB)).getValue()));
+
+        store = new DiskStore(dir, 4);
+        assertEquals(500, store.getCoords(VB).getSeqno());
+        assertEquals(value + 499, new String(store.get(new KeySpec("key1", VB)).getValue()));
+    }
+
+    public void testWarmup() throws Exception {
+        VBucketInfo[] vbi = new VBucketInfo[4];
+        for (int ii = 0; ii < vbi.length; ii++) {
+            vbi[ii] = new VBucketInfo();
+        }
+        Storage storage = new Storage(vbi, null, new BucketConfiguration(), dir);
+        VBucketStore cache = storage.getCache(VB);
+        cache.set(createItem("key", "value", 0), false);
+        long seqno = cache.getCurrentCoords(VB).getSeqno();
+        storage.getDiskStore().flushBatch();
+        assertEquals(seqno, storage.getPersistedSeqno(VB));
+
+        storage = new Storage(vbi, null, new BucketConfiguration(), dir);
+        assertEquals("value", new String(storage.getCached(new KeySpec("key", VB)).getValue()));
+        assertEquals(seqno, storage.getCache(VB).getCurrentCoords(VB).getSeqno());
+    }
+
+    public void testReplicatedDeletion() throws Exception {
+        VBucketInfo[] vbi = new VBucketInfo[4];
+        for (int ii = 0; ii < vbi.length; ii++) {
+            vbi[ii] = new VBucketInfo();
+        }
+        Storage storage = new Storage(vbi, null, new BucketConfiguration(), dir);
+        storage.applyReplicatedMutation(createItem("key", "value", 1), new BasicVBucketCoordinates(42, 1));
+        storage.getDiskStore().flushBatch();
+        assertNotNull(storage.getPersisted(new KeySpec("key", VB)));
+
+        storage.applyReplicatedDeletion(new Item(new KeySpec("key", VB)), new BasicVBucketCoordinates(42, 2));
+        storage.getDiskStore().flushBatch();
+        assertNull(storage.getPersisted(new KeySpec("key", VB)));
+
+        // The deletion is not reloaded as an item after a restart
+        storage = new Storage(vbi, null, new BucketConfiguration(), dir);
+        assertNull(storage.getCached(new KeySpec("key", VB)));
+        assertEquals(0, storage.getDiskStore().values(VB).size());
+        assertEquals(2, storage.getPersistedSeqno(VB));
+    }
+}
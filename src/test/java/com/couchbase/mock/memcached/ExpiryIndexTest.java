@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+public class ExpiryIndexTest extends TestCase {
+    private static final int NUM_VBUCKETS = 4;
+    private Storage storage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int ii = 0; ii < vbi.length; ++ii) {
+            vbi[ii] = new VBucketInfo();
+        }
+        storage = new Storage(vbi, null, new BucketConfiguration());
+    }
+
+    private Item store(String key, short vb, int expiry) {
+        Item item = new Item(new KeySpec(key, vb), 0, expiry, "value".getBytes(), null, 0);
+        assertEquals(ErrorCode.SUCCESS, storage.getCache(vb).set(item, false).getStatus());
+        return item;
+    }
+
+    private static long now() {
+        return VBucketStore.convertExpiryTime(1) - 1;
+    }
+
+    private Item getCached(String key, short vb) {
+        return storage.getCache(vb).getPartition(vb).get(new KeySpec(key, vb));
+    }
+
+    public void testExpireItems() {
+        for (int ii = 0; ii < 100; ++ii) {
+            store("expiring_" + ii, (short) (ii % NUM_VBUCKETS), 10);
+            store("forever_" + ii, (short) (ii % NUM_VBUCKETS), 0);
+        }
+        long seqno = storage.getCache((short) 0).getCurrentCoords(0).getSeqno();
+
+        assertEquals(0, storage.expireItems(now(), 1000));
+        assertEquals(100, storage.expireItems(now() + 20, 1000));
+        for (int ii = 0; ii < 100; ++ii) {
+            short vb = (short) (ii % NUM_VBUCKETS);
+            assertNull(getCached("expiring_" + ii, vb));
+            assertNull(storage.getPersisted(new KeySpec("expiring_" + ii, vb)));
+            assertNotNull(getCached("forever_" + ii, vb));
+        }
+
+        // Every deletion is a mutation of its own
+        assertEquals(seqno + 25, storage.getCache((short) 0).getCurrentCoords(0).getSeqno());
+        assertEquals("100", storage.getExpiryStats().get("ep_expired_pager"));
+        assertEquals("0", storage.getExpiryStats().get("ep_expired_access"));
+    }
+
+    public void testBatches() {
+        for (int ii = 0; ii < 2500; ++ii) {
+            store("key_" + ii, (short) 0, 10);
+        }
+        assertEquals(2500, storage.expireItems(now() + 20, 1000));
+        assertEquals(0, storage.getCache((short) 0).getItemCount(0));
+        assertEquals(0, storage.getMemUsed());
+    }
+
+    public void testStaleEntries() {
+        // Overwritten without an expiry time
+        store("overwritten", (short) 0, 10);
+        store("overwritten", (short) 0, 0);
+
+        // Touched to expire later
+        Item touched = store("touched", (short) 0, 10);
+        VBucketStore cache = storage.getCache((short) 0);
+        assertEquals(ErrorCode.SUCCESS, cache.touch(cache.get(touched.getKeySpec()), 100, false));
+
+        assertEquals(0, storage.expireItems(now() + 20, 1000));
+        assertNotNull(getCached("overwritten", (short) 0));
+        assertNotNull(getCached("touched", (short) 0));
+
+        assertEquals(1, storage.expireItems(now() + 200, 1000));
+        assertNull(getCached("touched", (short) 0));
+    }
+
+    public void testExpiredOnAccess() {
+        Item item = store("key", (short) 0, 10);
+        assertNotNull(storage.getCache((short) 0).get(item.getKeySpec()));
+        assertEquals("0", storage.getExpiryStats().get("ep_expired_access"));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.Bucket;
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class ItemPagerTest extends TestCase {
+    private static final int NUM_VBUCKETS = 16;
+    private static final int QUOTA = 64 * 1024;
+
+    private Storage createStorage(Bucket.BucketType type) {
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int ii = 0; ii < vbi.length; ++ii) {
+            vbi[ii] = new VBucketInfo();
+        }
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = type;
+        config.ramQuota = QUOTA;
+        return new Storage(vbi, null, config);
+    }
+
+    private static Item createItem(int ii, int size) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) ('a' + ii % 26));
+        return new Item(new KeySpec("key_" + ii, (short) (ii % NUM_VBUCKETS)), 0, 0, value, null, 0);
+    }
+
+    private static long getStat(Storage storage, String name) {
+        return Long.parseLong(storage.getMemoryStats().get(name));
+    }
+
+    public void testAccounting() {
+        Storage storage = createStorage(Bucket.BucketType.COUCHBASE);
+        Item item = createItem(1, 100);
+        VBucketStore cache = storage.getCache(item.getKeySpec().vbId);
+        assertEquals(ErrorCode.SUCCESS, cache.set(item, false).getStatus());
+        long size = Item.METADATA_SIZE + "key_1".length() + 100;
+        assertEquals(size, storage.getMemUsed());
+
+        assertEquals(ErrorCode.SUCCESS, cache.append(createItem(1, 10), false).getStatus());
+        assertEquals(size + 10, storage.getMemUsed());
+
+        assertEquals(ErrorCode.SUCCESS, cache.set(createItem(1, 50), false).getStatus());
+        assertEquals(size - 50, storage.getMemUsed());
+
+        assertEquals(ErrorCode.SUCCESS, cache.delete(item.getKeySpec(), 0, false).getStatus());
+        assertEquals(0, storage.getMemUsed());
+    }
+
+    public void testEjectValues() {
+        Storage storage = createStorage(Bucket.BucketType.COUCHBASE);
+        for (int ii = 0; ii < 200; ++ii) {
+            Item item = createItem(ii, 1024);
+            assertEquals(ErrorCode.SUCCESS, storage.getCache(item.getKeySpec().vbId).set(item, false).getStatus());
+            assertTrue(storage.getMemUsed() <= QUOTA);
+        }
+        assertTrue(getStat(storage, "ep_num_value_ejects") > 0);
+        assertEquals(0, getStat(storage, "evictions"));
+
+        // All the items are still there, with the ejected values read back from disk
+        for (int ii = 0; ii < 200; ++ii) {
+            Item expected = createItem(ii, 1024);
+            Item item = storage.getCache(expected.getKeySpec().vbId).get(expected.getKeySpec());
+            assertNotNull(item);
+            assertTrue(Arrays.equals(expected.getValue(), item.getValue()));
+        }
+        assertTrue(getStat(storage, "ep_bg_fetched") > 0);
+    }
+
+    public void testEvictItems() {
+        Storage storage = createStorage(Bucket.BucketType.MEMCACHED);
+        for (int ii = 0; ii < 200; ++ii) {
+            Item item = createItem(ii, 1024);
+            assertEquals(ErrorCode.SUCCESS, storage.getCache(item.getKeySpec().vbId).set(item, false).getStatus());
+            assertTrue(storage.getMemUsed() <= QUOTA);
+        }
+        long evictions = getStat(storage, "evictions");
+        assertTrue(evictions > 0);
+        assertEquals(0, getStat(storage, "ep_num_value_ejects"));
+
+        int found = 0;
+        for (int ii = 0; ii < 200; ++ii) {
+            KeySpec ks = createItem(ii, 0).getKeySpec();
+            if (storage.getCache(ks.vbId).get(ks) != null) {
+                found++;
+            }
+        }
+        assertEquals(200 - evictions, found);
+    }
+
+    public void testRecentlyUsedItemsSurvive() {
+        Storage storage = createStorage(Bucket.BucketType.MEMCACHED);
+        Item hot = createItem(0, 1024);
+        VBucketStore cache = storage.getCache(hot.getKeySpec().vbId);
+        cache.set(hot, false);
+        for (int ii = 1; ii < 200; ++ii) {
+            Item item = createItem(ii, 1024);
+            storage.getCache(item.getKeySpec().vbId).set(item, false);
+            assertNotNull(cache.get(hot.getKeySpec()));
+        }
+    }
+
+    public void testTooLarge() {
+        Item item = createItem(0, QUOTA);
+        Storage storage = createStorage(Bucket.BucketType.COUCHBASE);
+        assertEquals(ErrorCode.ETMPFAIL, storage.getCache(item.getKeySpec().vbId).set(item, false).getStatus());
+        storage = createStorage(Bucket.BucketType.MEMCACHED);
+        assertEquals(ErrorCode.ENOMEM, storage.getCache(item.getKeySpec().vbId).set(item, false).getStatus());
+        assertEquals(0, storage.getMemUsed());
+    }
+
+    public void testStats() {
+        Map<String, String> stats = createStorage(Bucket.BucketType.COUCHBASE).getMemoryStats();
+        assertEquals(Integer.toString(QUOTA), stats.get("ep_max_size"));
+        assertEquals(Long.toString(QUOTA / 100 * 85), stats.get("ep_mem_high_wat"));
+        assertEquals(Long.toString(QUOTA / 100 * 75), stats.get("ep_mem_low_wat"));
+        assertEquals("0", stats.get("mem_used"));
+    }
+}
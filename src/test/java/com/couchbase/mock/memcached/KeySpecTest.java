@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class KeySpecTest extends TestCase {
+    public void testStringAndBytesAreEqual() {
+        KeySpec fromString = new KeySpec("hello", (short) 3);
+        KeySpec fromBytes = new KeySpec("hello".getBytes(), (short) 3);
+        assertEquals(fromString, fromBytes);
+        assertEquals(fromString.hashCode(), fromBytes.hashCode());
+        assertEquals("hello", fromBytes.getKey());
+        assertFalse(fromString.equals(new KeySpec("hello", (short) 4)));
+        assertFalse(fromString.equals(new KeySpec("hellO", (short) 3)));
+    }
+
+    public void testFromBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap("xxkeyyy".getBytes());
+        buffer.position(1);
+        KeySpec ks = KeySpec.fromBuffer(buffer, 2, 3, (short) 0);
+        assertEquals(new KeySpec("key", (short) 0), ks);
+        assertEquals(1, buffer.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(7);
+        direct.put("xxkeyyy".getBytes());
+        assertEquals(ks, KeySpec.fromBuffer(direct, 2, 3, (short) 0));
+        assertEquals(new KeySpec("", (short) 0), KeySpec.fromBuffer(direct, 0, 0, (short) 0));
+    }
+
+    public void testCrc() {
+        String[] keys = { "", "a", "foo", "a somewhat longer key with \u00e9 in it" };
+        for (String key : keys) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(key.getBytes());
+            assertEquals(crc32.getValue(), new KeySpec(key, (short) 0).getCrc() & 0xffffffffL);
+        }
+    }
+}
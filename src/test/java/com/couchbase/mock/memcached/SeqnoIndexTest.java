@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SeqnoIndexTest extends TestCase {
+    private static final int NUM_VBUCKETS = 4;
+    private Storage storage;
+    private VBucketStore cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int ii = 0; ii < vbi.length; ++ii) {
+            vbi[ii] = new VBucketInfo();
+        }
+        storage = new Storage(vbi, null, new BucketConfiguration());
+        cache = storage.getCache((short) 0);
+    }
+
+    private long store(String key, short vb) {
+        Item item = new Item(new KeySpec(key, vb), 0, 0, "value".getBytes(), null, 0);
+        MutationStatus ms = cache.set(item, false);
+        assertEquals(ErrorCode.SUCCESS, ms.getStatus());
+        return ms.getCoords().getSeqno();
+    }
+
+    private List<String> changedKeys(int vb, long seqno) {
+        List<String> keys = new ArrayList<String>();
+        long last = seqno;
+        for (SeqnoIndex.Entry entry : cache.getSeqnoIndex(vb).getChangesSince(seqno)) {
+            assertTrue(entry.getSeqno() > last);
+            last = entry.getSeqno();
+            keys.add(entry.getKey().getKey() + (entry.isDeleted() ? "-" : ""));
+        }
+        return keys;
+    }
+
+    public void testChangesSince() {
+        long first = store("a", (short) 0);
+        store("b", (short) 0);
+        long third = store("c", (short) 0);
+        store("other", (short) 1);
+
+        assertEquals(3, changedKeys(0, first - 1).size());
+        assertEquals(1, changedKeys(0, third - 1).size());
+        assertEquals(0, changedKeys(0, third).size());
+        assertEquals(third, cache.getSeqnoIndex(0).getHighSeqno());
+        assertEquals(1, changedKeys(1, 0).size());
+    }
+
+    public void testDeduplication() {
+        long first = store("a", (short) 0);
+        store("b", (short) 0);
+        long last = store("a", (short) 0);
+
+        List<String> keys = changedKeys(0, first - 1);
+        assertEquals(2, keys.size());
+        assertEquals("b", keys.get(0));
+        assertEquals("a", keys.get(1));
+        assertEquals(last, cache.getSeqnoIndex(0).get(new KeySpec("a", (short) 0)).getSeqno());
+        assertEquals(1, cache.getSeqnoIndex(0).getNumDeduplicated());
+
+        // Deletions are kept as tombstones
+        MutationStatus ms = cache.delete(new KeySpec("b", (short) 0), 0, false);
+        assertEquals(ErrorCode.SUCCESS, ms.getStatus());
+        keys = changedKeys(0, first - 1);
+        assertEquals(2, keys.size());
+        assertEquals("a", keys.get(0));
+        assertEquals("b-", keys.get(1));
+        assertEquals(2, cache.getSeqnoIndex(0).size());
+    }
+
+    public void testReset() {
+        store("a", (short) 0);
+        storage.flush();
+        SeqnoIndex index = cache.getSeqnoIndex(0);
+        assertEquals(0, index.size());
+        assertEquals(cache.getCurrentCoords(0).getSeqno(), index.getStartSeqno());
+
+        long seqno = store("b", (short) 0);
+        assertEquals(1, changedKeys(0, 0).size());
+        assertEquals(seqno, cache.getSeqnoIndex(0).getHighSeqno());
+
+        // A new UUID starts a new history
+        VBucketInfo[] vbi = new VBucketInfo[NUM_VBUCKETS];
+        for (int ii = 0; ii < vbi.length; ++ii) {
+            vbi[ii] = new VBucketInfo();
+        }
+        storage.updateCoordinateInfo(vbi);
+        assertEquals(0, changedKeys(0, 0).size());
+        store("c", (short) 0);
+        assertEquals(1, changedKeys(0, 0).size());
+        assertEquals(cache.getCurrentCoords(0).getUuid(), cache.getSeqnoIndex(0).getUuid());
+    }
+}
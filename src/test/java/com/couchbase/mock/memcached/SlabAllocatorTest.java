@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class SlabAllocatorTest extends TestCase {
+    public void testValueAndXattr() {
+        SlabAllocator allocator = new SlabAllocator();
+        SlabAllocator.Chunk chunk = allocator.allocate("value".getBytes(), "{}".getBytes());
+        assertEquals("value", new String(chunk.copyValue()));
+        assertEquals("{}", new String(chunk.copyXattr()));
+        assertEquals(7, allocator.getUsedBytes());
+        assertEquals(SlabAllocator.PAGE_SIZE, allocator.getAllocatedBytes());
+
+        chunk = allocator.allocate(new byte[0], null);
+        assertEquals(0, chunk.copyValue().length);
+        assertNull(chunk.copyXattr());
+    }
+
+    public void testChunksAreReused() {
+        SlabAllocator allocator = new SlabAllocator();
+        SlabAllocator.Chunk[] chunks = new SlabAllocator.Chunk[10000];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = allocator.allocate(("value" + i).getBytes(), null);
+        }
+        long allocated = allocator.getAllocatedBytes();
+        for (int i = 0; i < chunks.length; i++) {
+            assertEquals("value" + i, new String(chunks[i].copyValue()));
+            chunks[i].release();
+        }
+        assertEquals(0, allocator.getUsedBytes());
+
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = allocator.allocate(("other" + i).getBytes(), null);
+        }
+        assertEquals(allocated, allocator.getAllocatedBytes());
+        for (int i = 0; i < chunks.length; i++) {
+            assertEquals("other" + i, new String(chunks[i].copyValue()));
+        }
+    }
+
+    public void testRetain() {
+        SlabAllocator allocator = new SlabAllocator();
+        SlabAllocator.Chunk chunk = allocator.allocate("value".getBytes(), null);
+        assertTrue(chunk.retain());
+        chunk.release();
+        assertEquals(5, allocator.getUsedBytes());
+        chunk.release();
+        assertEquals(0, allocator.getUsedBytes());
+        assertFalse(chunk.retain());
+    }
+
+    public void testLargeValue() {
+        SlabAllocator allocator = new SlabAllocator();
+        byte[] value = new byte[SlabAllocator.PAGE_SIZE * 3];
+        Arrays.fill(value, (byte) 'x');
+        SlabAllocator.Chunk chunk = allocator.allocate(value, null);
+        assertTrue(Arrays.equals(value, chunk.copyValue()));
+        assertEquals(value.length, allocator.getAllocatedBytes());
+        chunk.release();
+        assertEquals(0, allocator.getAllocatedBytes());
+    }
+
+    public void testItemValueOutlivesReaders() {
+        SlabAllocator allocator = new SlabAllocator();
+        Item item = new Item(new KeySpec("key", (short) 0), 0, 0, "value".getBytes(), "{}".getBytes(), 0);
+        Item stored = new Item(item, allocator);
+        assertEquals(7, allocator.getUsedBytes());
+        Item appended = stored.withAppended(new Item(new KeySpec("key", (short) 0), 0, 0, "-more".getBytes(), null, 0));
+
+        // A response holds on to the value until it has been sent
+        ByteBuffer[] buffers = stored.retainValueBuffers();
+        stored.releaseValue();
+        stored.releaseValue();
+        assertEquals(7, allocator.getUsedBytes());
+        byte[] sent = new byte[buffers[0].remaining()];
+        buffers[0].get(sent);
+        assertEquals("value", new String(sent));
+        stored.releaseValueBuffers();
+        assertEquals(0, allocator.getUsedBytes());
+        assertNull(stored.retainValueBuffers());
+
+        // So does a command which looked the item up
+        stored = new Item(appended, allocator);
+        assertEquals(12, allocator.getUsedBytes());
+        Item.startPinning();
+        try {
+            assertTrue(stored.pin());
+            stored.releaseValue();
+            assertEquals(12, allocator.getUsedBytes());
+            assertEquals("value-more", new String(stored.getValue()));
+            assertEquals("{}", new String(stored.getXattr()));
+        } finally {
+            Item.releasePinned();
+        }
+        assertEquals(0, allocator.getUsedBytes());
+
+        // Once released, the value is gone rather than empty
+        assertNull(stored.onHeap());
+        try {
+            stored.getValue();
+            fail("The value was released");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    public void testOnHeap() {
+        SlabAllocator allocator = new SlabAllocator();
+        Item item = new Item(new KeySpec("key", (short) 0), 0, 0, "value".getBytes(), "{}".getBytes(), 1234);
+        assertSame(item, item.onHeap());
+        Item stored = new Item(item, allocator);
+        Item copy = stored.onHeap();
+        stored.releaseValue();
+        assertEquals(0, allocator.getUsedBytes());
+        assertEquals("value", new String(copy.getValue()));
+        assertEquals("{}", new String(copy.getXattr()));
+        assertEquals(1234, copy.getCas());
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.couchbase.mock.memcached;
+
+import com.couchbase.mock.BucketConfiguration;
+import com.couchbase.mock.Info;
+import com.couchbase.mock.memcached.protocol.ErrorCode;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VBucketStoreTest extends TestCase {
+    private static final int NUM_THREADS = 8;
+    private static final KeySpec KEY = new KeySpec("key", (short) 0);
+    private Storage storage;
+    private VBucketStore cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        VBucketInfo[] vbi = new VBucketInfo[] { new VBucketInfo() };
+        storage = new Storage(vbi, null, new BucketConfiguration());
+        cache = storage.getCache((short) 0);
+    }
+
+    private static Item createItem(String value, long cas) {
+        return new Item(KEY, 0, 0, value.getBytes(), null, cas);
+    }
+
+    private void runConcurrently(final Runnable task) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int ii = 0; ii < NUM_THREADS; ++ii) {
+            threads.add(new Thread(task));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public void testConcurrentAdd() throws Exception {
+        final AtomicInteger added = new AtomicInteger();
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                if (cache.add(createItem("value", 0), false).getStatus() == ErrorCode.SUCCESS) {
+                    added.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(1, added.get());
+    }
+
+    public void testConcurrentAppend() throws Exception {
+        final int numAppends = 500;
+        assertEquals(ErrorCode.SUCCESS, cache.set(createItem("", 0), false).getStatus());
+        long seqno = cache.getCurrentCoords(0).getSeqno();
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int ii = 0; ii < numAppends; ++ii) {
+                    assertEquals(ErrorCode.SUCCESS, cache.append(createItem("x", 0), false).getStatus());
+                }
+            }
+        });
+        assertEquals(NUM_THREADS * numAppends, cache.get(KEY).getValueLength());
+        assertEquals(seqno + NUM_THREADS * numAppends, cache.getCurrentCoords(0).getSeqno());
+    }
+
+    public void testConcurrentCasUpdates() throws Exception {
+        final int numUpdates = 200;
+        assertEquals(ErrorCode.SUCCESS, cache.set(createItem("0", 0), false).getStatus());
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int ii = 0; ii < numUpdates; ++ii) {
+                    while (true) {
+                        Item current = cache.get(KEY);
+                        int value = Integer.parseInt(new String(current.getValue()));
+                        Item next = createItem(Integer.toString(value + 1), current.getCas());
+                        if (cache.replace(next, false).getStatus() == ErrorCode.SUCCESS) {
+                            break;
+                        }
+                    }
+                }
+            }
+        });
+        assertEquals(Integer.toString(NUM_THREADS * numUpdates), new String(cache.get(KEY).getValue()));
+    }
+
+    public void testCasIsMonotonic() {
+        assertEquals(ErrorCode.SUCCESS, cache.set(createItem("value", 0), false).getStatus());
+        long cas = cache.get(KEY).getCas();
+        Info.timeTravel(-3600);
+        try {
+            assertEquals(ErrorCode.SUCCESS, cache.set(createItem("value", 0), false).getStatus());
+            assertTrue(cache.get(KEY).getCas() > cas);
+        } finally {
+            Info.timeTravel(3600);
+        }
+    }
+
+    public void testGetRandom() {
+        assertNull(cache.getRandom());
+        Set<String> keys = new HashSet<String>();
+        for (int ii = 0; ii < 10; ++ii) {
+            KeySpec ks = new KeySpec("key" + ii, (short) 0);
+            assertEquals(ErrorCode.SUCCESS, cache.set(new Item(ks, 0, 0, "value".getBytes(), null, 0), false).getStatus());
+            keys.add(ks.getKey());
+        }
+        // Deleted keys are never picked, and the others all are eventually
+        for (int ii = 0; ii < 5; ++ii) {
+            assertEquals(ErrorCode.SUCCESS, cache.delete(new KeySpec("key" + ii, (short) 0), 0, false).getStatus());
+            keys.remove("key" + ii);
+        }
+        Set<String> seen = new HashSet<String>();
+        for (int ii = 0; ii < 1000; ++ii) {
+            String key = cache.getRandom().getKeySpec().getKey();
+            assertTrue(key, keys.contains(key));
+            seen.add(key);
+        }
+        assertEquals(keys, seen);
+
+        for (String key : keys) {
+            cache.delete(new KeySpec(key, (short) 0), 0, false);
+        }
+        assertNull(cache.getRandom());
+    }
+
+    public void testVersionsAreNotModified() {
+        assertEquals(ErrorCode.SUCCESS, cache.set(createItem("value", 0), false).getStatus());
+        Item first = cache.get(KEY);
+        // The persisted store shares the version rather than copying it
+        assertSame(first, storage.getPersisted(KEY));
+
+        Item appended = createItem("-more", 0);
+        MutationStatus ms = cache.append(appended, false);
+        assertEquals(ErrorCode.SUCCESS, ms.getStatus());
+        Item second = cache.get(KEY);
+        assertEquals("value", new String(first.getValue()));
+        assertEquals("value-more", new String(second.getValue()));
+        assertEquals(second.getCas(), ms.getCas());
+        assertEquals(0, appended.getCas());
+        assertSame(second, storage.getPersisted(KEY));
+
+        Item locked = cache.lock(second, 10);
+        assertNotNull(locked);
+        assertTrue(locked.isLocked());
+        assertFalse(second.isLocked());
+        assertTrue(locked.getCasReal() != second.getCasReal());
+        assertNull(cache.lock(second, 10));
+
+        assertFalse(ErrorCode.SUCCESS == cache.touch(locked, 3600, false));
+
+        assertEquals(ErrorCode.ETMPFAIL, cache.unlock(locked, second.getCasReal()));
+        assertEquals(ErrorCode.SUCCESS, cache.unlock(locked, locked.getCasReal()));
+        assertTrue(locked.isLocked());
+        Item unlocked = cache.get(KEY);
+        assertFalse(unlocked.isLocked());
+        assertEquals(locked.getCasReal(), unlocked.getCas());
+
+        assertEquals(ErrorCode.SUCCESS, cache.touch(unlocked, 3600, false));
+        assertEquals(0, unlocked.getExpiryTime());
+        assertTrue(cache.get(KEY).getExpiryTime() > 0);
+    }
+
+    public void testAppendKeepsSegments() {
+        byte[] doc = new byte[64 * 1024];
+        Arrays.fill(doc, (byte) 'x');
+        assertEquals(ErrorCode.SUCCESS, cache.set(createItem(new String(doc), 0), false).getStatus());
+
+        StringBuilder expected = new StringBuilder(new String(doc));
+        int numAppends = Item.MAX_SEGMENTS * 3 + 5;
+        for (int ii = 0; ii < numAppends; ++ii) {
+            String delta = "-" + ii;
+            if (ii % 2 == 0) {
+                assertEquals(ErrorCode.SUCCESS, cache.append(createItem(delta, 0), false).getStatus());
+                expected.append(delta);
+            } else {
+                assertEquals(ErrorCode.SUCCESS, cache.prepend(createItem(delta, 0), false).getStatus());
+                expected.insert(0, delta);
+            }
+            Item item = cache.get(KEY);
+            assertTrue(item.getValueBuffers().length <= Item.MAX_SEGMENTS);
+            assertEquals(expected.length(), item.getValueLength());
+        }
+
+        Item item = cache.get(KEY);
+        StringBuilder gathered = new StringBuilder();
+        boolean docKept = false;
+        for (ByteBuffer bb : item.getValueBuffers()) {
+            // The document itself is never copied as part of a compaction
+            docKept |= bb.remaining() == doc.length;
+            byte[] segment = new byte[bb.remaining()];
+            bb.get(segment);
+            gathered.append(new String(segment));
+        }
+        assertEquals(expected.toString(), gathered.toString());
+        assertTrue(docKept);
+        assertEquals(expected.toString(), new String(item.getValue()));
+        assertEquals(1, item.getValueBuffers().length);
+    }
+}